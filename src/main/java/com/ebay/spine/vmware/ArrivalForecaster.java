@@ -0,0 +1,186 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.ebay.spine.vmware.services.Clock;
+
+/**
+ * Estimates the rate at which sessions arrive for each capability, with 2
+ * exponentially decaying averages : a fast one for the current rate, and a
+ * slow one for the usual rate. A trough is when the current rate is well
+ * under the usual one.
+ * 
+ * Only depends on the Clock it is given, so recorded arrivals can be replayed
+ * against a simulated clock ( see ArrivalForecasterTest ).
+ * 
+ * @author freynaud
+ * 
+ */
+public class ArrivalForecaster {
+
+	private final Clock clock;
+	// ms
+	private final long fastWindow;
+	private final long slowWindow;
+	private final double troughRatio;
+	private final ConcurrentMap<String, Rate> rates = new ConcurrentHashMap<String, Rate>();
+
+	/**
+	 * 
+	 * @param clock
+	 * @param fastWindow
+	 *            time constant of the current rate, in ms.
+	 * @param slowWindow
+	 *            time constant of the usual rate, in ms.
+	 * @param troughRatio
+	 *            the current rate has to be under troughRatio * the usual
+	 *            rate for a trough.
+	 */
+	public ArrivalForecaster(Clock clock, long fastWindow, long slowWindow, double troughRatio) {
+		this.clock = clock;
+		this.fastWindow = fastWindow;
+		this.slowWindow = slowWindow;
+		this.troughRatio = troughRatio;
+	}
+
+	/**
+	 * 
+	 * @param capability
+	 *            a requested capability.
+	 * @return the key arrivals are counted by. The same key as the node
+	 *         lookups ( see CapabilityIndex.keyOf() ), so that a request
+	 *         without a platform is counted against all the nodes that can
+	 *         serve it.
+	 */
+	public static String keyOf(Map<String, Object> capability) {
+		return CapabilityIndex.keyOf(capability);
+	}
+
+	/**
+	 * a session arrived for that capability.
+	 * 
+	 * @param key
+	 */
+	public void record(String key) {
+		Rate rate = rates.get(key);
+		if (rate == null) {
+			Rate created = new Rate(clock.now());
+			rate = rates.putIfAbsent(key, created);
+			if (rate == null) {
+				rate = created;
+			}
+		}
+		rate.add(clock.now());
+	}
+
+	/**
+	 * 
+	 * @param key
+	 * @return the current number of arrivals per minute.
+	 */
+	public double getRate(String key) {
+		Rate rate = rates.get(key);
+		return rate == null ? 0 : rate.get(clock.now(), true) * 60000;
+	}
+
+	/**
+	 * 
+	 * @param key
+	 * @return the usual number of arrivals per minute.
+	 */
+	public double getBaseline(String key) {
+		Rate rate = rates.get(key);
+		return rate == null ? 0 : rate.get(clock.now(), false) * 60000;
+	}
+
+	/**
+	 * 
+	 * @param key
+	 * @param ms
+	 * @return the number of sessions expected in the next ms, at the current
+	 *         rate.
+	 */
+	public double expectedArrivals(String key, long ms) {
+		return getRate(key) * ms / 60000;
+	}
+
+	/**
+	 * 
+	 * @param key
+	 * @param pending
+	 *            number of requests queued for that capability.
+	 * @return true if nothing is waiting and the current rate is well under
+	 *         the usual one. Never true before the usual rate is known.
+	 */
+	public boolean isTrough(String key, int pending) {
+		if (pending > 0) {
+			return false;
+		}
+		Rate rate = rates.get(key);
+		if (rate == null || clock.now() - rate.since < slowWindow) {
+			return false;
+		}
+		return getRate(key) < troughRatio * getBaseline(key);
+	}
+
+	/**
+	 * 
+	 * @return the capabilities seen so far.
+	 */
+	public Iterable<String> getKeys() {
+		return rates.keySet();
+	}
+
+	/**
+	 * 2 decaying counts of arrivals. Each arrival adds 1/window, and the
+	 * value decays with exp(-dt/window), so the value is the rate per ms.
+	 */
+	private class Rate {
+		private final long since;
+		private long last;
+		private double fast = 0;
+		private double slow = 0;
+
+		Rate(long now) {
+			since = now;
+			last = now;
+		}
+
+		synchronized void add(long now) {
+			decay(now);
+			fast += 1.0 / fastWindow;
+			slow += 1.0 / slowWindow;
+		}
+
+		synchronized double get(long now, boolean current) {
+			decay(now);
+			return current ? fast : slow;
+		}
+
+		private void decay(long now) {
+			long dt = now - last;
+			if (dt > 0) {
+				fast *= Math.exp(-(double) dt / fastWindow);
+				slow *= Math.exp(-(double) dt / slowWindow);
+				last = now;
+			}
+		}
+	}
+}
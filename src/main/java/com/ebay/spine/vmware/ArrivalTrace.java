@@ -0,0 +1,139 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Session arrivals recorded on a hub, one per line : time in ms, a space, and
+ * the capability key ( see ArrivalForecaster.keyOf() ).
+ * 
+ * Arrivals are recorded in memory, and written to the file by flush(), so
+ * that the threads admitting sessions never wait for the disk.
+ * 
+ * @author freynaud
+ * 
+ */
+public class ArrivalTrace {
+
+	private static final Logger log = Logger.getLogger(ArrivalTrace.class);
+
+	private final String file;
+	private final Queue<String> pending = new ConcurrentLinkedQueue<String>();
+	private volatile boolean closed = false;
+	private Writer writer = null;
+
+	public ArrivalTrace(String file) {
+		this.file = file;
+	}
+
+	/**
+	 * records an arrival, to be written by the next flush(). Doesn't block.
+	 * 
+	 * @param time
+	 * @param key
+	 */
+	public void record(long time, String key) {
+		if (!closed) {
+			pending.add(time + " " + key + "\n");
+		}
+	}
+
+	/**
+	 * appends the arrivals recorded so far to the file. Recording stops at
+	 * the first error.
+	 */
+	public synchronized void flush() {
+		if (closed || pending.isEmpty()) {
+			return;
+		}
+		try {
+			if (writer == null) {
+				writer = new FileWriter(file, true);
+			}
+			String line;
+			while ((line = pending.poll()) != null) {
+				writer.write(line);
+			}
+			writer.flush();
+		} catch (IOException e) {
+			log.warn("Cannot record the arrivals in " + file + " anymore : " + e.getMessage());
+			close();
+		}
+	}
+
+	public synchronized void close() {
+		closed = true;
+		pending.clear();
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				log.debug("error closing " + file, e);
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @return the arrivals in the file, in the order they were recorded.
+	 * @throws IOException
+	 */
+	public List<Arrival> read() throws IOException {
+		List<Arrival> res = new ArrayList<Arrival>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int space = line.indexOf(' ');
+				if (space > 0) {
+					res.add(new Arrival(Long.parseLong(line.substring(0, space)), line.substring(space + 1)));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return res;
+	}
+
+	public static class Arrival {
+		private final long time;
+		private final String key;
+
+		public Arrival(long time, String key) {
+			this.time = time;
+			this.key = key;
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		public String getKey() {
+			return key;
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.openqa.grid.internal.utils.CapabilityMatcher;
+import org.openqa.grid.internal.utils.DefaultCapabilityMatcher;
+
+/**
+ * The nodes of the hub by browserName, so that finding the nodes that may
+ * serve a request doesn't depend on how many nodes there are.
+ * 
+ * With the grid's DefaultCapabilityMatcher, a node only serves a request for
+ * a browserName if it registered that browserName : the lookup returns all
+ * the nodes that can serve the request, and maybe a few more. Confirm each
+ * one with hasCapability(). The platform and version are left to the matcher
+ * ( platform families, ANY ... ). With any other matcher, all the nodes are
+ * candidates.
+ * 
+ * keyOf() and keysOf() reduce a capability to its browserName, platform and
+ * version with wildcards, to count the requests of the same kind ( see
+ * ArrivalForecaster ). They are not used for matching.
+ * 
+ * A node registering again replaces the previous proxy with the same id. A
+ * proxy is removed when the registry tears it down.
+ * 
+ * @author freynaud
+ * 
+ */
+public class CapabilityIndex {
+
+	static final String ANY = "*";
+	private static final String BROWSER = "browserName";
+	private static final String[] FIELDS = { BROWSER, "platform", "version" };
+
+	private static CapabilityIndex instance = null;
+
+	private final ConcurrentMap<String, Set<VirtualMachineRemoteProxy>> byBrowser = new ConcurrentHashMap<String, Set<VirtualMachineRemoteProxy>>();
+	private final Set<VirtualMachineRemoteProxy> all = Collections.newSetFromMap(new ConcurrentHashMap<VirtualMachineRemoteProxy, Boolean>());
+	// the proxy indexed for each node id.
+	private final Map<String, VirtualMachineRemoteProxy> byId = new HashMap<String, VirtualMachineRemoteProxy>();
+
+	public static synchronized CapabilityIndex getInstance() {
+		if (instance == null) {
+			instance = new CapabilityIndex();
+		}
+		return instance;
+	}
+
+	/**
+	 * 
+	 * @param requestedCapability
+	 * @return the key of the request.
+	 */
+	public static String keyOf(Map<String, Object> requestedCapability) {
+		StringBuilder res = new StringBuilder();
+		for (String field : FIELDS) {
+			res.append(normalize(requestedCapability.get(field))).append('|');
+		}
+		return res.toString();
+	}
+
+	/**
+	 * 
+	 * @param capabilities
+	 *            the capabilities of a node.
+	 * @return the keys of all the requests the node can serve.
+	 */
+	public static Set<String> keysOf(List<Map<String, Object>> capabilities) {
+		Set<String> res = new HashSet<String>();
+		for (Map<String, Object> capability : capabilities) {
+			String[] values = new String[FIELDS.length];
+			for (int i = 0; i < FIELDS.length; i++) {
+				values[i] = normalize(capability.get(FIELDS[i]));
+			}
+			// each field is either the value or a wildcard.
+			for (int mask = 0; mask < 1 << FIELDS.length; mask++) {
+				StringBuilder key = new StringBuilder();
+				for (int i = 0; i < FIELDS.length; i++) {
+					key.append((mask & 1 << i) != 0 ? ANY : values[i]).append('|');
+				}
+				res.add(key.toString());
+			}
+		}
+		return res;
+	}
+
+	private static String normalize(Object value) {
+		if (value == null) {
+			return ANY;
+		}
+		String res = value.toString().trim().toLowerCase();
+		if (res.length() == 0 || "any".equals(res)) {
+			return ANY;
+		}
+		return res;
+	}
+
+	/**
+	 * indexes the proxy, instead of the previous one with the same id if any.
+	 * 
+	 * @param proxy
+	 */
+	public synchronized void add(VirtualMachineRemoteProxy proxy) {
+		VirtualMachineRemoteProxy previous = byId.put(proxy.getId(), proxy);
+		if (previous != null && previous != proxy) {
+			removeFromSets(previous);
+		}
+		all.add(proxy);
+		for (Map<String, Object> capability : proxy.getOriginalRegistrationRequest().getCapabilities()) {
+			String browser = normalize(capability.get(BROWSER));
+			if (ANY.equals(browser)) {
+				// only serves the requests that don't ask for a browser.
+				continue;
+			}
+			Set<VirtualMachineRemoteProxy> proxies = byBrowser.get(browser);
+			if (proxies == null) {
+				Set<VirtualMachineRemoteProxy> created = Collections.newSetFromMap(new ConcurrentHashMap<VirtualMachineRemoteProxy, Boolean>());
+				proxies = byBrowser.putIfAbsent(browser, created);
+				if (proxies == null) {
+					proxies = created;
+				}
+			}
+			proxies.add(proxy);
+		}
+	}
+
+	/**
+	 * removes the proxy. Does nothing if it was already replaced by a new
+	 * proxy with the same id.
+	 * 
+	 * @param proxy
+	 */
+	public synchronized void remove(VirtualMachineRemoteProxy proxy) {
+		if (byId.get(proxy.getId()) != proxy) {
+			return;
+		}
+		byId.remove(proxy.getId());
+		removeFromSets(proxy);
+	}
+
+	private void removeFromSets(VirtualMachineRemoteProxy proxy) {
+		all.remove(proxy);
+		for (Set<VirtualMachineRemoteProxy> proxies : byBrowser.values()) {
+			proxies.remove(proxy);
+		}
+	}
+
+	/**
+	 * 
+	 * @param requestedCapability
+	 * @param matcher
+	 *            the matcher of the registry.
+	 * @return the nodes that may serve the request, whatever their state.
+	 *         Confirm with hasCapability().
+	 */
+	public Collection<VirtualMachineRemoteProxy> getProxies(Map<String, Object> requestedCapability, CapabilityMatcher matcher) {
+		String browser = normalize(requestedCapability.get(BROWSER));
+		if (ANY.equals(browser) || !(matcher instanceof DefaultCapabilityMatcher)) {
+			return all;
+		}
+		Set<VirtualMachineRemoteProxy> res = byBrowser.get(browser);
+		return res == null ? Collections.<VirtualMachineRemoteProxy> emptySet() : res;
+	}
+}
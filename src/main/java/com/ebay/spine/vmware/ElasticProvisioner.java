@@ -0,0 +1,358 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.openqa.grid.common.RegistrationRequest;
+import org.openqa.grid.internal.Registry;
+import org.openqa.grid.internal.RemoteProxy;
+
+import com.ebay.spine.vmware.model.VirtualMachineWrapper;
+import com.ebay.spine.vmware.services.Clock;
+import com.ebay.spine.vmware.services.CloneBackend;
+import com.ebay.spine.vmware.services.CredentialsProperties;
+import com.ebay.spine.vmware.services.NodeRole;
+import com.ebay.spine.vmware.services.VSphereCloneBackend;
+import com.ebay.spine.vmware.services.VirtualMachineInventory;
+import com.ebay.spine.vmware.services.VirtualMachinePool;
+import com.ebay.spine.vmware.services.WarmPool;
+
+/**
+ * Adds nodes to the grid when the queue of new session requests grows, by
+ * creating linked clones of a template VM, and removes them when they are not
+ * needed anymore. Clones don't have the snapshots of the template, so they are
+ * never reverted : they are thrown away instead.
+ * 
+ * Configured in credentials.properties :
+ * 
+ * elastic.template : name of the VM to clone. No elastic capacity if not
+ * specified. The clones are registered with the same config as the nodes
+ * already registered for the same role.
+ * 
+ * elastic.snapshot : snapshot of the template the clones start from.
+ * 
+ * elastic.min / elastic.max : number of clones to keep, default 0 / 10.
+ * 
+ * elastic.queueThreshold : number of pending requests above which clones are
+ * added, default 0.
+ * 
+ * elastic.batch : max number of clones added or removed at once, default 2.
+ * 
+ * elastic.cooldown : ms to wait after a scale up or down, default 60000.
+ * 
+ * elastic.maxClonesPerDatastore : max number of clone operations running at
+ * the same time on a datastore, default 2.
+ * 
+ * @author freynaud
+ * 
+ */
+public class ElasticProvisioner implements Runnable {
+
+	private static final Logger log = Logger.getLogger(ElasticProvisioner.class);
+
+	private static ElasticProvisioner instance = null;
+	private static boolean configured = false;
+
+	private final Registry registry;
+	private final VirtualMachineInventory inventory;
+	private final CloneBackend backend;
+	private final Clock clock;
+
+	private final String template;
+	private final String snapshot;
+	private final int min;
+	private final int max;
+	private final int queueThreshold;
+	private final int batch;
+	private final long cooldown;
+	private final int maxClonesPerDatastore;
+
+	private final List<VirtualMachineWrapper> clones = new CopyOnWriteArrayList<VirtualMachineWrapper>();
+	// the nodes of the clones, by clone id.
+	private final Map<String, VirtualMachineRemoteProxy> proxies = new ConcurrentHashMap<String, VirtualMachineRemoteProxy>();
+	private final AtomicInteger creating = new AtomicInteger();
+	private final AtomicInteger cloneCount = new AtomicInteger();
+	private final Map<String, Semaphore> datastoreSlots = new HashMap<String, Semaphore>();
+	private final ExecutorService workers;
+	private volatile long lastScale = 0;
+
+	/**
+	 * starts the elastic capacity for the registry if elastic.template is
+	 * specified. Does nothing if it's already started.
+	 * 
+	 * @param registry
+	 */
+	public static synchronized void start(Registry registry) {
+		if (configured) {
+			return;
+		}
+		configured = true;
+		Properties properties = CredentialsProperties.load();
+		if (properties.getProperty("elastic.template") == null) {
+			return;
+		}
+		instance = new ElasticProvisioner(registry, VirtualMachinePool.getInstance(), new VSphereCloneBackend(), Clock.SYSTEM, properties);
+		long period = CredentialsProperties.getInt(properties, "elastic.period", 10000);
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(daemon("elastic-scheduler"));
+		scheduler.scheduleWithFixedDelay(instance, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	public static synchronized ElasticProvisioner getInstance() {
+		return instance;
+	}
+
+	public ElasticProvisioner(Registry registry, VirtualMachineInventory inventory, CloneBackend backend, Clock clock, Properties properties) {
+		this.registry = registry;
+		this.inventory = inventory;
+		this.backend = backend;
+		this.clock = clock;
+		template = properties.getProperty("elastic.template");
+		snapshot = properties.getProperty("elastic.snapshot");
+		min = CredentialsProperties.getInt(properties, "elastic.min", 0);
+		max = CredentialsProperties.getInt(properties, "elastic.max", 10);
+		queueThreshold = CredentialsProperties.getInt(properties, "elastic.queueThreshold", 0);
+		batch = Math.max(1, CredentialsProperties.getInt(properties, "elastic.batch", 2));
+		cooldown = CredentialsProperties.getInt(properties, "elastic.cooldown", 60000);
+		maxClonesPerDatastore = Math.max(1, CredentialsProperties.getInt(properties, "elastic.maxClonesPerDatastore", 2));
+		workers = Executors.newFixedThreadPool(batch, daemon("elastic-worker"));
+		log.info("Elastic capacity : " + min + " to " + max + " clones of " + template + "/" + snapshot);
+	}
+
+	private static ThreadFactory daemon(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	public void run() {
+		try {
+			scale();
+		} catch (Throwable t) {
+			log.error("Error adjusting the elastic capacity : " + t.getMessage(), t);
+		}
+	}
+
+	/**
+	 * compares the queue to the current number of clones, and adds or removes
+	 * some if needed.
+	 */
+	void scale() {
+		int current = clones.size() + creating.get();
+		if (current < min) {
+			scaleUp(min - current);
+			return;
+		}
+		if (clock.now() - lastScale < cooldown) {
+			return;
+		}
+		int pending = getPendingRequests();
+		if (pending > queueThreshold && current < max) {
+			scaleUp(Math.min(batch, max - current));
+		} else if (pending == 0 && clones.size() > min) {
+			scaleDown(Math.min(batch, clones.size() - min));
+		}
+	}
+
+	int getPendingRequests() {
+		return registry.getNewSessionRequests().size();
+	}
+
+	private void scaleUp(int count) {
+		final VirtualMachineWrapper templateVm = inventory.getVMByName(template);
+		if (templateVm == null) {
+			log.warn("Cannot find the template " + template + " to clone.");
+			return;
+		}
+		lastScale = clock.now();
+		log.info("Adding " + count + " clones of " + template);
+		for (int i = 0; i < count; i++) {
+			creating.incrementAndGet();
+			workers.submit(new Runnable() {
+				public void run() {
+					try {
+						addClone(templateVm);
+					} catch (Throwable t) {
+						log.error("Error creating a clone of " + template + " : " + t.getMessage(), t);
+					} finally {
+						creating.decrementAndGet();
+					}
+				}
+			});
+		}
+	}
+
+	private void addClone(VirtualMachineWrapper templateVm) throws InterruptedException {
+		Semaphore slot = getDatastoreSlot(templateVm.getDatastore());
+		VirtualMachineWrapper clone;
+		slot.acquire();
+		try {
+			clone = backend.createLinkedClone(templateVm, snapshot, template + "-clone-" + cloneCount.incrementAndGet());
+		} finally {
+			slot.release();
+		}
+		inventory.add(clone);
+		if (!register(templateVm, clone)) {
+			log.warn("No node registered for the role of " + template + ". Cannot register " + clone.getName());
+			backend.destroy(clone);
+			inventory.remove(clone);
+			return;
+		}
+		clones.add(clone);
+		log.info(clone.getName() + " added to the grid.");
+	}
+
+	/**
+	 * adds a node for the clone to the grid.
+	 * 
+	 * @param templateVm
+	 * @param clone
+	 * @return false if there is no node with the role of the template to copy
+	 *         the registration from.
+	 */
+	protected boolean register(VirtualMachineWrapper templateVm, VirtualMachineWrapper clone) {
+		RegistrationRequest request = createRegistrationRequest(templateVm, clone);
+		if (request == null) {
+			return false;
+		}
+		WarmPool.getInstance().claim(clone);
+		VirtualMachineRemoteProxy proxy = createProxy(request);
+		proxies.put(clone.getId(), proxy);
+		registry.add(proxy);
+		return true;
+	}
+
+	/**
+	 * removes the node of the clone from the grid, if it's idle.
+	 * 
+	 * @param clone
+	 * @return false if the node is busy.
+	 */
+	protected boolean unregister(VirtualMachineWrapper clone) {
+		VirtualMachineRemoteProxy proxy = proxies.get(clone.getId());
+		if (proxy == null || !proxy.retire()) {
+			return false;
+		}
+		proxies.remove(clone.getId());
+		registry.removeIfPresent(proxy);
+		CapabilityIndex.getInstance().remove(proxy);
+		return true;
+	}
+
+	protected VirtualMachineRemoteProxy createProxy(RegistrationRequest request) {
+		VirtualMachineRemoteProxy proxy = new VirtualMachineRemoteProxy(request, registry);
+		// the url is the one of the node the config was copied from. Finding
+		// the clone's one with its IP.
+		proxy.setRemoteURL(null);
+		return proxy;
+	}
+
+	/**
+	 * copy of the registration of a node with the same role, pointing to the
+	 * clone.
+	 * 
+	 * @return the request, null if there is no node to copy.
+	 */
+	private RegistrationRequest createRegistrationRequest(VirtualMachineWrapper templateVm, VirtualMachineWrapper clone) {
+		NodeRole role = templateVm.getRole();
+		for (RemoteProxy p : registry.getAllProxies()) {
+			if (p instanceof VirtualMachineRemoteProxy) {
+				VirtualMachineRemoteProxy proxy = (VirtualMachineRemoteProxy) p;
+				if (role != null && role == proxy.getVm().getRole()) {
+					RegistrationRequest original = proxy.getOriginalRegistrationRequest();
+					RegistrationRequest res = new RegistrationRequest();
+					res.setCapabilities(original.getCapabilities());
+					Map<String, Object> config = new HashMap<String, Object>(original.getConfiguration());
+					config.put("vm", clone.getId());
+					res.setConfiguration(config);
+					return res;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * removes idle clones, the most recent first.
+	 * 
+	 * @param count
+	 */
+	private void scaleDown(int count) {
+		List<VirtualMachineWrapper> idle = new ArrayList<VirtualMachineWrapper>();
+		for (int i = clones.size() - 1; i >= 0 && idle.size() < count; i--) {
+			VirtualMachineWrapper clone = clones.get(i);
+			if (unregister(clone)) {
+				idle.add(clone);
+			}
+		}
+		if (idle.isEmpty()) {
+			return;
+		}
+		lastScale = clock.now();
+		for (final VirtualMachineWrapper vm : idle) {
+			clones.remove(vm);
+			workers.submit(new Runnable() {
+				public void run() {
+					try {
+						backend.destroy(vm);
+						inventory.remove(vm);
+						log.info(vm.getName() + " removed from the grid.");
+					} catch (Throwable t) {
+						log.error("Error destroying " + vm.getName() + " : " + t.getMessage(), t);
+					}
+				}
+			});
+		}
+	}
+
+	private synchronized Semaphore getDatastoreSlot(String datastore) {
+		String key = datastore == null ? "unknown" : datastore;
+		Semaphore res = datastoreSlots.get(key);
+		if (res == null) {
+			res = new Semaphore(maxClonesPerDatastore, true);
+			datastoreSlots.put(key, res);
+		}
+		return res;
+	}
+
+	/**
+	 * 
+	 * @return the number of clones currently in the grid.
+	 */
+	public int getCloneCount() {
+		return clones.size();
+	}
+}
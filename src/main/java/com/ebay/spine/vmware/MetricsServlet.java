@@ -0,0 +1,56 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.ebay.spine.vmware.services.HealthMonitor;
+import com.ebay.spine.vmware.services.Metrics;
+
+/**
+ * Returns the metrics of the hub and the health scores of the VMs as JSON. Added to the hub with
+ * -servlets com.ebay.spine.vmware.MetricsServlet , then available on
+ * /grid/admin/MetricsServlet
+ * 
+ * @author freynaud
+ * 
+ */
+public class MetricsServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		response.setStatus(200);
+		try {
+			JSONObject res = Metrics.getInstance().toJSON();
+			res.put("health", HealthMonitor.getInstance().toJSON());
+			response.getWriter().print(res.toString(2));
+		} catch (JSONException e) {
+			throw new ServletException("Cannot serialize the metrics", e);
+		}
+	}
+}
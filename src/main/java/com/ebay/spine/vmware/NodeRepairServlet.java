@@ -0,0 +1,58 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Puts a BROKEN node back in the grid : the VM is reverted and the node gets
+ * sessions again if the revert works. Added to the hub with -servlets
+ * com.ebay.spine.vmware.NodeRepairServlet , then a POST on
+ * /grid/admin/NodeRepairServlet?id=X where X is the uuid of the VM.
+ * 
+ * @author freynaud
+ * 
+ */
+public class NodeRepairServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		response.setContentType("text/plain");
+		response.setCharacterEncoding("UTF-8");
+		String id = request.getParameter("id");
+		RecycleCoordinator coordinator = RecycleCoordinator.getInstance();
+		VirtualMachineRemoteProxy proxy = (id == null || coordinator == null) ? null : coordinator.getProxy(id);
+		if (proxy == null) {
+			response.setStatus(404);
+			response.getWriter().print("no node for the VM " + id);
+			return;
+		}
+		if (!proxy.repair()) {
+			response.setStatus(409);
+			response.getWriter().print(proxy.getVm().getName() + " is " + proxy.getState() + ", not BROKEN.");
+			return;
+		}
+		response.setStatus(200);
+		response.getWriter().print(proxy.getVm().getName() + " is reverting.");
+	}
+}
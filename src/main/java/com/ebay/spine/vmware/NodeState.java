@@ -0,0 +1,54 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware;
+
+/**
+ * Lifecycle of a node, as seen by the hub.
+ * 
+ * AVAILABLE -> BUSY -> DRAINING -> RECYCLING -> AVAILABLE. BROKEN when the
+ * node is out of the grid until it is repaired ( see
+ * VirtualMachineRemoteProxy.repair() ). QUARANTINED -> RECYCLING
+ * -> AVAILABLE when the VM is unhealthy ( see HealthMonitor ).
+ * 
+ * @author freynaud
+ * 
+ */
+public enum NodeState {
+
+	// no test running, accepts new sessions.
+	AVAILABLE,
+	// tests running, accepts new sessions.
+	BUSY,
+	// due for a recycle. Waits for the running tests to finish, no new
+	// sessions.
+	DRAINING,
+	// cleanup or revert in progress, no new sessions.
+	RECYCLING,
+	// the VM is unhealthy. Waits for the running tests to finish, then is
+	// reverted and probed before getting sessions again. Reverted again later
+	// while it doesn't answer, BROKEN after too many tries.
+	QUARANTINED,
+	// out of the grid : the reverts kept failing, or the node was retired.
+	BROKEN;
+
+	/**
+	 * 
+	 * @return true if a node in that state can get new sessions.
+	 */
+	public boolean acceptsSessions() {
+		return this == AVAILABLE || this == BUSY;
+	}
+}
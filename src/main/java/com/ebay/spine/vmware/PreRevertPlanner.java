@@ -0,0 +1,283 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.openqa.grid.internal.Registry;
+import org.openqa.grid.internal.RemoteProxy;
+import org.openqa.grid.web.servlet.handler.RequestHandler;
+
+import com.ebay.spine.vmware.services.Clock;
+import com.ebay.spine.vmware.services.CredentialsProperties;
+import com.ebay.spine.vmware.services.Metrics;
+
+/**
+ * Reverts idle nodes early when the demand for their capabilities is low, so
+ * that they don't reach their test budget and revert later, when the grid is
+ * busy.
+ * 
+ * A node is reverted early if all its capabilities are in a trough ( see
+ * ArrivalForecaster ), it is idle and has already used a good part of its
+ * test budget. Enough idle nodes are always kept to serve the sessions
+ * expected while the revert runs.
+ * 
+ * The arrivals are the sessions admitted by the nodes, counted by request (
+ * see CapabilityIndex.keyOf() ). A node is measured against all the requests
+ * it can serve. The queue is only used to never revert early a node that
+ * could serve a pending request.
+ * 
+ * Configured in credentials.properties :
+ * 
+ * forecast.enabled : true to revert early, default false.
+ * 
+ * forecast.period : ms between 2 plans, default 10000.
+ * 
+ * forecast.fastWindow / forecast.slowWindow : time constants of the current
+ * and usual arrival rates, in ms, default 120000 / 1800000.
+ * 
+ * forecast.troughRatio : the current rate has to be under that fraction of the
+ * usual rate, default 0.3.
+ * 
+ * forecast.minUsed : fraction of its test budget a node has to have used to be
+ * reverted early, default 0.5.
+ * 
+ * forecast.maxPerPlan : max number of nodes reverted early per plan, default
+ * 1.
+ * 
+ * forecast.trace : file the arrivals are appended to after each plan, to be
+ * replayed against an ArrivalForecaster offline. No trace if not specified.
+ * 
+ * @author freynaud
+ * 
+ */
+public class PreRevertPlanner implements Runnable {
+
+	private static final Logger log = Logger.getLogger(PreRevertPlanner.class);
+
+	private static PreRevertPlanner instance = null;
+	private static boolean configured = false;
+
+	private final Registry registry;
+	private final ArrivalForecaster forecaster;
+	private final double minUsed;
+	private final int maxPerPlan;
+	private final ArrivalTrace trace;
+
+	/**
+	 * starts planning for the registry if forecast.enabled is true. Does
+	 * nothing if it's already started.
+	 * 
+	 * @param registry
+	 */
+	public static synchronized void start(Registry registry) {
+		if (configured) {
+			return;
+		}
+		configured = true;
+		Properties properties = CredentialsProperties.load();
+		if (!Boolean.parseBoolean(properties.getProperty("forecast.enabled"))) {
+			return;
+		}
+		instance = new PreRevertPlanner(registry, createForecaster(Clock.SYSTEM, properties), properties);
+		long period = CredentialsProperties.getInt(properties, "forecast.period", 10000);
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "pre-revert-planner");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(instance, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	public static synchronized PreRevertPlanner getInstance() {
+		return instance;
+	}
+
+	/**
+	 * 
+	 * @param clock
+	 * @param properties
+	 * @return a forecaster configured with the forecast.* properties.
+	 */
+	public static ArrivalForecaster createForecaster(Clock clock, Properties properties) {
+		long fast = CredentialsProperties.getInt(properties, "forecast.fastWindow", 120000);
+		long slow = CredentialsProperties.getInt(properties, "forecast.slowWindow", 1800000);
+		double ratio = Double.parseDouble(properties.getProperty("forecast.troughRatio", "0.3"));
+		return new ArrivalForecaster(clock, fast, slow, ratio);
+	}
+
+	/**
+	 * a session was admitted on a node. Does nothing if the planner isn't
+	 * started.
+	 * 
+	 * @param capability
+	 */
+	public static void recordArrival(Map<String, Object> capability) {
+		PreRevertPlanner planner = getInstance();
+		if (planner != null) {
+			String key = ArrivalForecaster.keyOf(capability);
+			planner.forecaster.record(key);
+			if (planner.trace != null) {
+				planner.trace.record(System.currentTimeMillis(), key);
+			}
+		}
+	}
+
+	public PreRevertPlanner(Registry registry, ArrivalForecaster forecaster, Properties properties) {
+		this.registry = registry;
+		this.forecaster = forecaster;
+		minUsed = Double.parseDouble(properties.getProperty("forecast.minUsed", "0.5"));
+		maxPerPlan = CredentialsProperties.getInt(properties, "forecast.maxPerPlan", 1);
+		String file = properties.getProperty("forecast.trace");
+		trace = file == null ? null : new ArrivalTrace(file);
+	}
+
+	public void run() {
+		try {
+			plan();
+		} catch (Throwable t) {
+			log.error("Error planning the early reverts : " + t.getMessage(), t);
+		}
+		if (trace != null) {
+			trace.flush();
+		}
+	}
+
+	/**
+	 * reverts the nodes that can be reverted early now.
+	 * 
+	 * @return the number of nodes reverted early.
+	 */
+	int plan() {
+		Map<String, Integer> pending = new HashMap<String, Integer>();
+		for (RequestHandler request : registry.getNewSessionRequests()) {
+			increment(pending, ArrivalForecaster.keyOf(request.getDesiredCapabilities()));
+		}
+		// the requests seen so far, and the ones waiting.
+		Set<String> requested = new HashSet<String>(pending.keySet());
+		for (String key : forecaster.getKeys()) {
+			requested.add(key);
+		}
+
+		List<VirtualMachineRemoteProxy> candidates = new ArrayList<VirtualMachineRemoteProxy>();
+		Map<VirtualMachineRemoteProxy, Set<String>> keys = new HashMap<VirtualMachineRemoteProxy, Set<String>>();
+		Map<String, Integer> idle = new HashMap<String, Integer>();
+		for (RemoteProxy p : registry.getAllProxies()) {
+			if (!(p instanceof VirtualMachineRemoteProxy)) {
+				continue;
+			}
+			VirtualMachineRemoteProxy proxy = (VirtualMachineRemoteProxy) p;
+			if (proxy.getState() != NodeState.AVAILABLE || proxy.isBusy()) {
+				continue;
+			}
+			// the requests this node could serve.
+			Set<String> proxyKeys = new HashSet<String>();
+			for (String key : requested) {
+				if (proxy.getCapabilityKeys().contains(key)) {
+					proxyKeys.add(key);
+					increment(idle, key);
+				}
+			}
+			keys.put(proxy, proxyKeys);
+			int budget = proxy.getBudget();
+			if (budget > 0 && proxy.getTotalTestStarted() >= minUsed * budget) {
+				candidates.add(proxy);
+			}
+		}
+
+		// the most used nodes first, they are the closest to a revert anyway.
+		Collections.sort(candidates, new Comparator<VirtualMachineRemoteProxy>() {
+			public int compare(VirtualMachineRemoteProxy a, VirtualMachineRemoteProxy b) {
+				return b.getTotalTestStarted() - a.getTotalTestStarted();
+			}
+		});
+
+		long revertTime = Metrics.getInstance().timer(Metrics.RECYCLE_REVERT).getMean();
+		Map<String, Integer> spare = new HashMap<String, Integer>();
+		for (Map.Entry<String, Integer> e : idle.entrySet()) {
+			String key = e.getKey();
+			Integer queued = pending.get(key);
+			if (forecaster.isTrough(key, queued == null ? 0 : queued)) {
+				// keeps one node more than the sessions expected during the
+				// revert.
+				int reserve = (int) Math.ceil(forecaster.expectedArrivals(key, revertTime)) + 1;
+				spare.put(key, e.getValue() - reserve);
+			}
+		}
+
+		int reverted = 0;
+		for (VirtualMachineRemoteProxy proxy : candidates) {
+			if (reverted >= maxPerPlan) {
+				break;
+			}
+			if (!hasSpare(spare, keys.get(proxy))) {
+				continue;
+			}
+			if (proxy.preRevert()) {
+				reverted++;
+				for (String key : keys.get(proxy)) {
+					spare.put(key, spare.get(key) - 1);
+				}
+				Metrics.getInstance().increment(Metrics.PRE_REVERTS);
+				log.info(proxy.getVm().getName() + " reverted early after " + proxy.getTotalTestStarted() + " of " + proxy.getBudget() + " tests.");
+			}
+		}
+		return reverted;
+	}
+
+	/**
+	 * 
+	 * @return true if all the requests the node could serve are in a trough
+	 *         and have idle nodes to spare. False if the node never served
+	 *         any request.
+	 */
+	private boolean hasSpare(Map<String, Integer> spare, Set<String> keys) {
+		if (keys.isEmpty()) {
+			return false;
+		}
+		for (String key : keys) {
+			Integer s = spare.get(key);
+			if (s == null || s <= 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void increment(Map<String, Integer> counts, String key) {
+		Integer count = counts.get(key);
+		counts.put(key, count == null ? 1 : count + 1);
+	}
+
+	public ArrivalForecaster getForecaster() {
+		return forecaster;
+	}
+}
@@ -0,0 +1,341 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.openqa.grid.internal.Registry;
+import org.openqa.grid.internal.RemoteProxy;
+import org.openqa.grid.internal.utils.CapabilityMatcher;
+import org.openqa.grid.web.servlet.handler.RequestHandler;
+
+import com.ebay.spine.vmware.services.CredentialsProperties;
+
+/**
+ * Keeps the nodes of the hub from all reverting at the same time. Nodes
+ * registered together with the same maxTestBeforeClean would otherwise reach
+ * it together, and the grid would lose most of its capacity at once.
+ * 
+ * - the test budget of each node is shortened or extended a bit, so that
+ * nodes drift apart.
+ * 
+ * - at most a fraction of the nodes revert at the same time. The other ones
+ * wait, out of the grid.
+ * 
+ * - when a revert finishes, the waiting node whose capabilities are the most
+ * requested in the queue goes next.
+ * 
+ * - a node whose revert failed, or that doesn't answer after its quarantine
+ * revert, is submitted again after a backoff. It is
+ * BROKEN once it failed too many times in a row, and is tried again from time
+ * to time, or when someone repairs it ( see NodeRepairServlet ).
+ * 
+ * Configured in credentials.properties :
+ * 
+ * recycle.maxFraction : max fraction of the nodes reverting at the same time,
+ * default 0.25. At least one node can always revert.
+ * 
+ * recycle.stagger : max change of the test budget of a node, as a fraction of
+ * maxTestBeforeClean, default 0.2.
+ * 
+ * recycle.maxAttempts : reverts tried in a row before the node is BROKEN,
+ * default 4.
+ * 
+ * recycle.retryDelay / recycle.maxRetryDelay : ms before the first retry,
+ * doubled after each failure up to the max, default 30000 / 600000.
+ * 
+ * recycle.brokenRetry : ms after which a BROKEN node is tried again, default
+ * 1800000. -1 to wait for a repair.
+ * 
+ * @author freynaud
+ * 
+ */
+public class RecycleCoordinator {
+
+	private static final Logger log = Logger.getLogger(RecycleCoordinator.class);
+
+	private static RecycleCoordinator instance = null;
+
+	private final Registry registry;
+	private final double maxFraction;
+	private final double stagger;
+	private final int maxAttempts;
+	private final long retryDelay;
+	private final long maxRetryDelay;
+	private final long brokenRetry;
+	private final ScheduledExecutorService retries;
+
+	private final AtomicInteger registered = new AtomicInteger();
+	// guarded by this.
+	private final Set<VirtualMachineRemoteProxy> active = new HashSet<VirtualMachineRemoteProxy>();
+	private final List<VirtualMachineRemoteProxy> waiting = new LinkedList<VirtualMachineRemoteProxy>();
+
+	/**
+	 * creates the coordinator for the registry. Does nothing if it's already
+	 * started.
+	 * 
+	 * @param registry
+	 */
+	public static synchronized void start(Registry registry) {
+		if (instance == null) {
+			instance = new RecycleCoordinator(registry, CredentialsProperties.load());
+		}
+	}
+
+	public static synchronized RecycleCoordinator getInstance() {
+		return instance;
+	}
+
+	public RecycleCoordinator(Registry registry, Properties properties) {
+		this.registry = registry;
+		maxFraction = Double.parseDouble(properties.getProperty("recycle.maxFraction", "0.25"));
+		stagger = Double.parseDouble(properties.getProperty("recycle.stagger", "0.2"));
+		maxAttempts = Math.max(1, CredentialsProperties.getInt(properties, "recycle.maxAttempts", 4));
+		retryDelay = CredentialsProperties.getInt(properties, "recycle.retryDelay", 30000);
+		maxRetryDelay = CredentialsProperties.getInt(properties, "recycle.maxRetryDelay", 600000);
+		brokenRetry = CredentialsProperties.getInt(properties, "recycle.brokenRetry", 1800000);
+		retries = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "recycle-retry");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * gives the node a test budget slightly different from the previous nodes.
+	 * Offsets go round -spread .. +spread, so that consecutive nodes never
+	 * share the same budget.
+	 * 
+	 * @param proxy
+	 */
+	public void register(VirtualMachineRemoteProxy proxy) {
+		int max = proxy.getMaxTestBeforeClean();
+		int index = registered.getAndIncrement();
+		if (max < 1) {
+			return;
+		}
+		int spread = Math.min(max - 1, (int) Math.round(max * stagger));
+		if (spread <= 0) {
+			return;
+		}
+		int offset = index % (2 * spread + 1) - spread;
+		proxy.setBudgetOffset(offset);
+		log.debug(proxy.getVm().getName() + " will revert every " + proxy.getBudget() + " tests.");
+	}
+
+	/**
+	 * reverts the node now if not too many nodes are reverting, later
+	 * otherwise.
+	 * 
+	 * @param proxy
+	 *            a node that has to revert and doesn't get sessions anymore.
+	 */
+	public void submit(VirtualMachineRemoteProxy proxy) {
+		// the registry is never called while holding the lock.
+		int maxActive = getMaxActive();
+		synchronized (this) {
+			if (active.contains(proxy) || waiting.contains(proxy)) {
+				return;
+			}
+			if (active.size() >= maxActive) {
+				waiting.add(proxy);
+				log.info(proxy.getVm().getName() + " waits for its revert. " + active.size() + " nodes reverting, " + waiting.size() + " waiting.");
+				return;
+			}
+			active.add(proxy);
+		}
+		start(proxy);
+	}
+
+	/**
+	 * the revert of the node is over, successful or not. Starts the next one.
+	 * 
+	 * @param proxy
+	 */
+	public void done(VirtualMachineRemoteProxy proxy) {
+		int maxActive = getMaxActive();
+		Map<VirtualMachineRemoteProxy, Integer> demand = getDemand(getQueuedCapabilities());
+		VirtualMachineRemoteProxy next;
+		synchronized (this) {
+			if (!active.remove(proxy)) {
+				return;
+			}
+			if (waiting.isEmpty() || active.size() >= maxActive) {
+				return;
+			}
+			next = mostWanted(demand);
+			waiting.remove(next);
+			active.add(next);
+		}
+		start(next);
+	}
+
+	/**
+	 * the revert of the node failed, or the node doesn't answer after it.
+	 * Submits it again later, unless it failed too many times in a row.
+	 * 
+	 * @param proxy
+	 * @param failures
+	 *            number of reverts of the node that failed in a row.
+	 * @return true if the node will be reverted again, false if it has to be
+	 *         BROKEN.
+	 */
+	public boolean failed(final VirtualMachineRemoteProxy proxy, int failures) {
+		if (failures >= maxAttempts) {
+			if (brokenRetry > 0) {
+				log.warn(proxy.getVm().getName() + " failed " + failures + " reverts in a row. Trying again in " + brokenRetry + "ms.");
+				retries.schedule(new Runnable() {
+					public void run() {
+						proxy.repair();
+					}
+				}, brokenRetry, TimeUnit.MILLISECONDS);
+			}
+			return false;
+		}
+		long delay = retryDelay;
+		for (int i = 1; i < failures && delay < maxRetryDelay; i++) {
+			delay *= 2;
+		}
+		delay = Math.min(delay, maxRetryDelay);
+		log.warn(proxy.getVm().getName() + " failed " + failures + " reverts in a row. Reverting again in " + delay + "ms.");
+		retries.schedule(new Runnable() {
+			public void run() {
+				submit(proxy);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+		return true;
+	}
+
+	/**
+	 * 
+	 * @param id
+	 * @return the VM node with that id, null if it isn't in the registry.
+	 */
+	public VirtualMachineRemoteProxy getProxy(String id) {
+		for (RemoteProxy p : registry.getAllProxies()) {
+			if (p instanceof VirtualMachineRemoteProxy && p.getId().equals(id)) {
+				return (VirtualMachineRemoteProxy) p;
+			}
+		}
+		return null;
+	}
+
+	private void start(VirtualMachineRemoteProxy proxy) {
+		try {
+			if (proxy.recycle() == null) {
+				// swapped for a spare, already done.
+				done(proxy);
+			}
+		} catch (Throwable t) {
+			log.error("Error recycling " + proxy.getVm().getName() + " : " + t.getMessage(), t);
+			done(proxy);
+		}
+	}
+
+	/**
+	 * 
+	 * @return the max number of nodes reverting at the same time.
+	 */
+	private int getMaxActive() {
+		int nodes = 0;
+		for (RemoteProxy p : registry.getAllProxies()) {
+			if (p instanceof VirtualMachineRemoteProxy) {
+				nodes++;
+			}
+		}
+		return Math.max(1, (int) (nodes * maxFraction));
+	}
+
+	private List<Map<String, Object>> getQueuedCapabilities() {
+		List<Map<String, Object>> res = new ArrayList<Map<String, Object>>();
+		for (RequestHandler request : registry.getNewSessionRequests()) {
+			res.add(request.getDesiredCapabilities());
+		}
+		return res;
+	}
+
+	/**
+	 * 
+	 * @param queued
+	 *            the capabilities requested by the queued requests.
+	 * @return the number of queued requests each node can serve.
+	 */
+	private Map<VirtualMachineRemoteProxy, Integer> getDemand(List<Map<String, Object>> queued) {
+		Map<VirtualMachineRemoteProxy, Integer> res = new HashMap<VirtualMachineRemoteProxy, Integer>();
+		CapabilityMatcher matcher = registry.getCapabilityMatcher();
+		for (Map<String, Object> capability : queued) {
+			for (VirtualMachineRemoteProxy proxy : CapabilityIndex.getInstance().getProxies(capability, matcher)) {
+				if (!proxy.hasCapability(capability)) {
+					continue;
+				}
+				Integer demand = res.get(proxy);
+				res.put(proxy, demand == null ? 1 : demand + 1);
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * 
+	 * @param demand
+	 *            the number of queued requests each node can serve.
+	 * @return the waiting node that can serve the most queued requests. The
+	 *         oldest one if none of them can.
+	 */
+	private VirtualMachineRemoteProxy mostWanted(Map<VirtualMachineRemoteProxy, Integer> demand) {
+		VirtualMachineRemoteProxy res = waiting.get(0);
+		int best = 0;
+		for (VirtualMachineRemoteProxy proxy : waiting) {
+			Integer d = demand.get(proxy);
+			if (d != null && d > best) {
+				best = d;
+				res = proxy;
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * 
+	 * @return the number of nodes reverting.
+	 */
+	public synchronized int getActive() {
+		return active.size();
+	}
+
+	/**
+	 * 
+	 * @return the number of nodes waiting to revert.
+	 */
+	public synchronized int getWaiting() {
+		return waiting.size();
+	}
+}
@@ -0,0 +1,144 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The state and test counters of a node ( see SessionCounts ). Never locked :
+ * every change is a compare and set on the whole SessionCounts.
+ * 
+ * @author freynaud
+ * 
+ */
+final class SessionAccounting {
+
+	/**
+	 * decides when the node has to be cleaned up or reverted.
+	 */
+	interface Budget {
+		/**
+		 * 
+		 * @param started
+		 *            number of tests started.
+		 * @return true if the node is due once that many tests have started.
+		 */
+		boolean isDue(int started);
+	}
+
+	/**
+	 * a change of the counters.
+	 */
+	static final class Change {
+		private final SessionCounts before;
+		private final SessionCounts after;
+
+		Change(SessionCounts before, SessionCounts after) {
+			this.before = before;
+			this.after = after;
+		}
+
+		SessionCounts getBefore() {
+			return before;
+		}
+
+		SessionCounts getAfter() {
+			return after;
+		}
+
+		/**
+		 * 
+		 * @param state
+		 * @return true if that change moved the node to the state. Only one
+		 *         change ever does until the node leaves the state.
+		 */
+		boolean entered(NodeState state) {
+			return after.getState() == state && before.getState() != state;
+		}
+	}
+
+	private final AtomicReference<SessionCounts> counts = new AtomicReference<SessionCounts>(SessionCounts.CLEAN);
+	private final Budget budget;
+
+	SessionAccounting(Budget budget) {
+		this.budget = budget;
+	}
+
+	SessionCounts get() {
+		return counts.get();
+	}
+
+	void set(SessionCounts value) {
+		counts.set(value);
+	}
+
+	boolean compareAndSet(SessionCounts expect, SessionCounts update) {
+		return counts.compareAndSet(expect, update);
+	}
+
+	/**
+	 * forces the state, whatever the counters are.
+	 * 
+	 * @param state
+	 */
+	void setState(NodeState state) {
+		SessionCounts c;
+		do {
+			c = counts.get();
+		} while (!counts.compareAndSet(c, c.with(state)));
+	}
+
+	/**
+	 * reserves a slot for a new session, if the node accepts sessions and
+	 * isn't due. The slot has to be given back with count(-1, 0) if no
+	 * session is created.
+	 * 
+	 * @return true if the slot is reserved.
+	 */
+	boolean admit() {
+		SessionCounts c;
+		do {
+			c = counts.get();
+			if (!c.getState().acceptsSessions() || budget.isDue(c.getStarted())) {
+				return false;
+			}
+		} while (!counts.compareAndSet(c, c.next(c.getStarted() + 1, c.getFinished(), budget.isDue(c.getStarted() + 1))));
+		return true;
+	}
+
+	/**
+	 * updates the counters.
+	 * 
+	 * @param started
+	 *            change of the number of tests started.
+	 * @param finished
+	 *            change of the number of tests finished.
+	 * @return the counters before and after the change.
+	 */
+	Change count(int started, int finished) {
+		SessionCounts c;
+		SessionCounts n;
+		do {
+			c = counts.get();
+			n = c.next(c.getStarted() + started, c.getFinished() + finished, budget.isDue(c.getStarted() + started));
+		} while (!counts.compareAndSet(c, n));
+		return new Change(c, n);
+	}
+
+	public String toString() {
+		return counts.get().toString();
+	}
+}
@@ -0,0 +1,89 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware;
+
+/**
+ * Immutable state of a node and its test counters since the last revert.
+ * Changed as a whole with a compare and set, so that admitting a session and
+ * deciding to recycle never need a lock and always see consistent counters.
+ * 
+ * @author freynaud
+ * 
+ */
+final class SessionCounts {
+
+	static final SessionCounts CLEAN = new SessionCounts(NodeState.AVAILABLE, 0, 0);
+
+	private final NodeState state;
+	// sessions admitted, including the ones being created.
+	private final int started;
+	private final int finished;
+
+	SessionCounts(NodeState state, int started, int finished) {
+		this.state = state;
+		this.started = started;
+		this.finished = finished;
+	}
+
+	NodeState getState() {
+		return state;
+	}
+
+	int getStarted() {
+		return started;
+	}
+
+	int getFinished() {
+		return finished;
+	}
+
+	/**
+	 * 
+	 * @return true if no session is running or being created.
+	 */
+	boolean isIdle() {
+		return started == finished;
+	}
+
+	/**
+	 * the counters after a change, with the state they lead to.
+	 * 
+	 * @param started
+	 * @param finished
+	 * @param due
+	 *            true if the node has to be recycled.
+	 * @return
+	 */
+	SessionCounts next(int started, int finished, boolean due) {
+		NodeState res;
+		if (!state.acceptsSessions() && state != NodeState.DRAINING) {
+			res = state;
+		} else if (due) {
+			res = started == finished ? NodeState.RECYCLING : NodeState.DRAINING;
+		} else {
+			res = started == finished ? NodeState.AVAILABLE : NodeState.BUSY;
+		}
+		return new SessionCounts(res, started, finished);
+	}
+
+	SessionCounts with(NodeState state) {
+		return new SessionCounts(state, started, finished);
+	}
+
+	public String toString() {
+		return state + " started:" + started + " finished:" + finished;
+	}
+}
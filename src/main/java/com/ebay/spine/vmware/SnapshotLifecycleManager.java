@@ -0,0 +1,437 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.openqa.grid.internal.GridException;
+import org.openqa.grid.internal.Registry;
+import org.openqa.grid.internal.RemoteProxy;
+
+import com.ebay.spine.vmware.model.SnapshotIndex;
+import com.ebay.spine.vmware.model.SnapshotWrapper;
+import com.ebay.spine.vmware.model.VirtualMachineWrapper;
+import com.ebay.spine.vmware.services.Clock;
+import com.ebay.spine.vmware.services.CredentialsProperties;
+import com.ebay.spine.vmware.services.GuestOs;
+import com.ebay.spine.vmware.services.Hypervisor;
+import com.ebay.spine.vmware.services.HypervisorBackend;
+import com.ebay.spine.vmware.services.Metrics;
+import com.ebay.spine.vmware.services.WarmPool;
+
+/**
+ * Keeps the snapshot chains of the node VMs short. Each new snapshot adds a
+ * delta disk the VM reads through, and the reverts get slower as the chain
+ * grows ( the revert time per depth is in the snapshot.revert.depth.N
+ * metrics ).
+ * 
+ * Only works on idle nodes, when no request is waiting. The node doesn't get
+ * sessions while its snapshots are changed ( see
+ * VirtualMachineRemoteProxy.maintain() ) :
+ * 
+ * - the oldest ancestors of the clean snapshot are removed until its depth is
+ * under the max. Removing a snapshot merges its delta disk into its child.
+ * 
+ * - the snapshots that are not the clean snapshot or one of its ancestors are
+ * removed once they are too old.
+ * 
+ * - the clean snapshot is refreshed on a schedule : the VM is reverted, the
+ * refresh script is run in the guest ( updates, patches ... ) and a new
+ * snapshot replaces the clean one, under the same name.
+ * 
+ * The clean snapshot of the node and the snapshot of the WarmPool are never
+ * removed.
+ * 
+ * Configured in credentials.properties :
+ * 
+ * snapshots.lifecycle : true to manage the snapshots, default false.
+ * 
+ * snapshots.period : ms between 2 runs, default 60000.
+ * 
+ * snapshots.maxDepth : max depth of the clean snapshot, default 3.
+ * 
+ * snapshots.maxAge : ms after which a snapshot that isn't used is removed,
+ * default 7 days. -1 to keep them.
+ * 
+ * snapshots.refreshEvery : ms between 2 refreshes of the clean snapshot,
+ * default -1 = never.
+ * 
+ * snapshots.refreshScript : script run in the guest before taking the new
+ * clean snapshot. Required to refresh.
+ * 
+ * snapshots.maxConcurrent : max number of nodes maintained at the same time,
+ * default 1.
+ * 
+ * @author freynaud
+ * 
+ */
+public class SnapshotLifecycleManager implements Runnable {
+
+	private static final Logger log = Logger.getLogger(SnapshotLifecycleManager.class);
+
+	// suffixes of the snapshots used while refreshing the clean snapshot.
+	static final String NEW_SUFFIX = "-refresh";
+	static final String OLD_SUFFIX = "-old";
+
+	private static SnapshotLifecycleManager instance = null;
+	private static boolean configured = false;
+
+	private final Registry registry;
+	private final Clock clock;
+	private final int maxDepth;
+	private final long maxAge;
+	private final long refreshEvery;
+	private final String refreshScript;
+	private final int maxConcurrent;
+	// nodes being maintained.
+	private final AtomicInteger active = new AtomicInteger();
+
+	/**
+	 * starts managing the snapshots of the registry nodes if
+	 * snapshots.lifecycle is true. Does nothing if it's already started.
+	 * 
+	 * @param registry
+	 */
+	public static synchronized void start(Registry registry) {
+		if (configured) {
+			return;
+		}
+		configured = true;
+		Properties properties = CredentialsProperties.load();
+		if (!Boolean.parseBoolean(properties.getProperty("snapshots.lifecycle"))) {
+			return;
+		}
+		instance = new SnapshotLifecycleManager(registry, Clock.SYSTEM, properties);
+		long period = CredentialsProperties.getInt(properties, "snapshots.period", 60000);
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "snapshot-lifecycle");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(instance, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	public static synchronized SnapshotLifecycleManager getInstance() {
+		return instance;
+	}
+
+	public SnapshotLifecycleManager(Registry registry, Clock clock, Properties properties) {
+		this.registry = registry;
+		this.clock = clock;
+		maxDepth = Math.max(1, CredentialsProperties.getInt(properties, "snapshots.maxDepth", 3));
+		maxAge = Long.parseLong(properties.getProperty("snapshots.maxAge", "" + 7L * 24 * 3600 * 1000));
+		refreshEvery = Long.parseLong(properties.getProperty("snapshots.refreshEvery", "-1"));
+		refreshScript = properties.getProperty("snapshots.refreshScript");
+		if (refreshEvery > 0 && refreshScript == null) {
+			log.warn("snapshots.refreshScript not specified. The clean snapshots won't be refreshed.");
+		}
+		maxConcurrent = Math.max(1, CredentialsProperties.getInt(properties, "snapshots.maxConcurrent", 1));
+	}
+
+	public void run() {
+		try {
+			maintainIdleNodes();
+		} catch (Throwable t) {
+			log.error("Error maintaining the snapshots : " + t.getMessage(), t);
+		}
+	}
+
+	/**
+	 * starts the maintenance of the idle nodes that need it, if no request is
+	 * waiting.
+	 * 
+	 * @return the number of nodes put in maintenance.
+	 */
+	int maintainIdleNodes() {
+		if (!registry.getNewSessionRequests().isEmpty()) {
+			return 0;
+		}
+		int started = 0;
+		for (RemoteProxy p : registry.getAllProxies()) {
+			if (active.get() >= maxConcurrent) {
+				break;
+			}
+			if (!(p instanceof VirtualMachineRemoteProxy)) {
+				continue;
+			}
+			final VirtualMachineRemoteProxy proxy = (VirtualMachineRemoteProxy) p;
+			final String clean = proxy.getCleanState();
+			if (clean == null || proxy.getState() != NodeState.AVAILABLE || proxy.isBusy()) {
+				continue;
+			}
+			final VirtualMachineWrapper vm = proxy.getVm();
+			try {
+				if (!needsMaintenance(vm, clean)) {
+					continue;
+				}
+			} catch (Throwable t) {
+				log.debug("cannot read the snapshots of " + vm.getName() + " : " + t.getMessage());
+				continue;
+			}
+			active.incrementAndGet();
+			boolean submitted = false;
+			try {
+				submitted = proxy.maintain(new Callable<Boolean>() {
+					public Boolean call() throws Exception {
+						try {
+							return maintain(vm, clean);
+						} finally {
+							active.decrementAndGet();
+						}
+					}
+				}) != null;
+			} finally {
+				if (!submitted) {
+					active.decrementAndGet();
+				}
+			}
+			if (submitted) {
+				started++;
+			}
+		}
+		return started;
+	}
+
+	/**
+	 * 
+	 * @param vm
+	 * @param clean
+	 * @return true if the clean snapshot is due for a refresh, too deep, or if
+	 *         there are stale snapshots.
+	 */
+	boolean needsMaintenance(VirtualMachineWrapper vm, String clean) {
+		SnapshotIndex index = Hypervisor.getBackend().getSnapshots(vm);
+		SnapshotWrapper cleanSnapshot = index.get(clean);
+		if (cleanSnapshot == null) {
+			return false;
+		}
+		return isRefreshDue(cleanSnapshot) || cleanSnapshot.getDepth() > maxDepth || !getStale(index, clean).isEmpty();
+	}
+
+	/**
+	 * refreshes the clean snapshot if it's due, then removes the snapshots
+	 * that are too deep or stale. Runs on an idle node out of the grid.
+	 * 
+	 * @param vm
+	 * @param clean
+	 * @return true if the VM was reverted.
+	 */
+	boolean maintain(VirtualMachineWrapper vm, String clean) {
+		HypervisorBackend backend = Hypervisor.getBackend();
+		boolean reverted = false;
+		if (isRefreshDue(getSnapshot(backend, vm, clean))) {
+			refresh(backend, vm, clean);
+			reverted = true;
+		}
+		int removed = pruneChain(backend, vm, clean);
+		for (SnapshotWrapper stale : getStale(backend.getSnapshots(vm), clean)) {
+			remove(backend, vm, stale);
+			removed++;
+		}
+		if (removed > 0) {
+			log.info(removed + " snapshots of " + vm.getName() + " removed. " + clean + " is now at depth " + getSnapshot(backend, vm, clean).getDepth());
+		}
+		return reverted;
+	}
+
+	/**
+	 * 
+	 * @return the first snapshot of the VM with that name. Throws a
+	 *         GridException if there is none.
+	 */
+	private SnapshotWrapper getSnapshot(HypervisorBackend backend, VirtualMachineWrapper vm, String name) {
+		SnapshotWrapper res = backend.getSnapshots(vm).get(name);
+		if (res == null) {
+			throw new GridException("Cannot find snapshot " + name + " on VM " + vm.getName());
+		}
+		return res;
+	}
+
+	/**
+	 * removes the oldest ancestors of the clean snapshot until it is at
+	 * maxDepth. The protected snapshots are kept, even if the chain stays too
+	 * deep.
+	 * 
+	 * @return the number of snapshots removed.
+	 */
+	private int pruneChain(HypervisorBackend backend, VirtualMachineWrapper vm, String clean) {
+		SnapshotIndex index = backend.getSnapshots(vm);
+		int position = index.indexOf(clean);
+		int excess = index.getSnapshots().get(position).getDepth() - maxDepth;
+		if (excess <= 0) {
+			return 0;
+		}
+		// root first.
+		List<SnapshotWrapper> ancestors = new ArrayList<SnapshotWrapper>();
+		for (int i = index.getParent(position); i != -1; i = index.getParent(i)) {
+			ancestors.add(0, index.getSnapshots().get(i));
+		}
+		Set<String> keep = getProtected(clean);
+		int removed = 0;
+		for (SnapshotWrapper ancestor : ancestors) {
+			if (removed >= excess) {
+				break;
+			}
+			if (!keep.contains(ancestor.getName()) && isRemovable(index, ancestor)) {
+				remove(backend, vm, ancestor);
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * the snapshots are removed by name : a snapshot with the same name as an
+	 * earlier one is left alone.
+	 */
+	private static boolean isRemovable(SnapshotIndex index, SnapshotWrapper snapshot) {
+		return index.get(snapshot.getName()) == snapshot;
+	}
+
+	private void remove(HypervisorBackend backend, VirtualMachineWrapper vm, SnapshotWrapper snapshot) {
+		backend.deleteSnapshot(vm, snapshot.getName());
+		Metrics.getInstance().increment(Metrics.SNAPSHOTS_PRUNED);
+	}
+
+	/**
+	 * 
+	 * @param index
+	 * @param clean
+	 * @return the snapshots older than maxAge that are not the clean snapshot
+	 *         or one of its ancestors.
+	 */
+	List<SnapshotWrapper> getStale(SnapshotIndex index, String clean) {
+		List<SnapshotWrapper> res = new ArrayList<SnapshotWrapper>();
+		int position = index.indexOf(clean);
+		if (maxAge < 0 || position == -1) {
+			return res;
+		}
+		Set<Integer> chain = new HashSet<Integer>();
+		for (int i = position; i != -1; i = index.getParent(i)) {
+			chain.add(i);
+		}
+		Set<String> keep = getProtected(clean);
+		long now = clock.now();
+		for (int i = 0; i < index.size(); i++) {
+			SnapshotWrapper snapshot = index.getSnapshots().get(i);
+			if (chain.contains(i) || keep.contains(snapshot.getName()) || snapshot.getCreateTime() == null || !isRemovable(index, snapshot)) {
+				continue;
+			}
+			if (now - snapshot.getCreateTime().getTimeInMillis() > maxAge) {
+				res.add(snapshot);
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * 
+	 * @param cleanSnapshot
+	 * @return true if the clean snapshot is older than refreshEvery.
+	 */
+	private boolean isRefreshDue(SnapshotWrapper cleanSnapshot) {
+		if (refreshEvery <= 0 || refreshScript == null || cleanSnapshot.getCreateTime() == null) {
+			return false;
+		}
+		return clock.now() - cleanSnapshot.getCreateTime().getTimeInMillis() > refreshEvery;
+	}
+
+	/**
+	 * takes a new clean snapshot : reverts to the current one, runs the
+	 * refresh script and checks the guest before taking the snapshot. The new
+	 * snapshot is a child of the old one, which is then removed : the chain
+	 * doesn't get deeper.
+	 * 
+	 * The clean snapshot always exists under its name, even if the refresh
+	 * fails half way : if the new snapshot cannot take the clean name, the old
+	 * one gets it back. The leftovers are removed as stale snapshots.
+	 */
+	private void refresh(HypervisorBackend backend, VirtualMachineWrapper vm, String clean) {
+		long start = System.currentTimeMillis();
+		String fresh = clean + NEW_SUFFIX;
+		String old = clean + OLD_SUFFIX;
+		// leftovers of a refresh that failed.
+		for (String leftover : new String[] { fresh, old }) {
+			if (backend.snapshotExists(vm, leftover)) {
+				backend.deleteSnapshot(vm, leftover);
+			}
+		}
+
+		backend.revertToSnapshot(vm, clean);
+		backend.powerOn(vm);
+		if (!backend.isGuestReady(vm)) {
+			throw new GridException(vm.getName() + " isn't ready after reverting to " + clean + ". Not refreshing it.");
+		}
+		int res = backend.runProgramInGuest(vm, GuestOs.forRole(vm.getRole()).getInterpreter(), refreshScript);
+		if (res != 0) {
+			throw new GridException(refreshScript + " failed on " + vm.getName() + " with exit code " + res + ". Not refreshing it.");
+		}
+		if (!backend.isGuestReady(vm)) {
+			throw new GridException(vm.getName() + " isn't ready after " + refreshScript + ". Not refreshing it.");
+		}
+		backend.createSnapshot(vm, fresh);
+
+		// the new snapshot only gets the clean name once the old one is out of
+		// the way.
+		backend.renameSnapshot(vm, clean, old);
+		try {
+			backend.renameSnapshot(vm, fresh, clean);
+		} catch (GridException e) {
+			// giving the old snapshot its name back, the new one is a leftover.
+			backend.renameSnapshot(vm, old, clean);
+			throw e;
+		}
+		try {
+			backend.deleteSnapshot(vm, old);
+		} catch (GridException e) {
+			log.warn("cannot remove " + old + " from " + vm.getName() + " after the refresh : " + e.getMessage());
+		}
+		Metrics.getInstance().record(Metrics.BASE_REFRESH, start);
+		log.info(clean + " of " + vm.getName() + " refreshed in " + (System.currentTimeMillis() - start) + "ms.");
+	}
+
+	/**
+	 * 
+	 * @param clean
+	 * @return the snapshots that are never removed.
+	 */
+	private Set<String> getProtected(String clean) {
+		Set<String> res = new HashSet<String>();
+		res.add(clean);
+		String spares = WarmPool.getInstance().getSnapshot();
+		if (spares != null) {
+			res.add(spares);
+		}
+		return res;
+	}
+
+	public int getActive() {
+		return active.get();
+	}
+}
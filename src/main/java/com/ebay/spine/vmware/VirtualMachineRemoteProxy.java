@@ -23,6 +23,9 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 import org.openqa.grid.common.RegistrationRequest;
@@ -33,7 +36,17 @@ import org.openqa.grid.internal.listeners.TestSessionListener;
 import org.openqa.grid.selenium.proxy.WebDriverRemoteProxy;
 
 import com.ebay.spine.vmware.model.VirtualMachineWrapper;
-import com.ebay.spine.vmware.services.VirtualMachinePool;
+import com.ebay.spine.vmware.services.GuestOs;
+import com.ebay.spine.vmware.services.HealthEvent;
+import com.ebay.spine.vmware.services.HealthMonitor;
+import com.ebay.spine.vmware.services.Hypervisor;
+import com.ebay.spine.vmware.services.HypervisorBackend;
+import com.ebay.spine.vmware.services.IpRegistry;
+import com.ebay.spine.vmware.services.LatencyHistogram;
+import com.ebay.spine.vmware.services.Metrics;
+import com.ebay.spine.vmware.services.NodeRole;
+import com.ebay.spine.vmware.services.RecycleService;
+import com.ebay.spine.vmware.services.WarmPool;
 
 /**
  * Proxy that uses a VMWare virtual machine as a host for the OS where the
@@ -53,6 +66,34 @@ import com.ebay.spine.vmware.services.VirtualMachinePool;
  * 
  * -cleanSnapshot=Y
  * 
+ * Between two reverts, the guest can be cleaned up with a script, which is
+ * much cheaper than a revert. If the script fails or the node doesn't answer
+ * after it, the VM is reverted right away :
+ * 
+ * -cleanupEvery=N
+ * 
+ * -cleanupScript=Z
+ * 
+ * -cleanupInterpreter=I ( optional, defaults to the shell of the guest OS )
+ * 
+ * When the WarmPool keeps spares for the node role and the same snapshot, the
+ * VM is swapped for a clean spare instead of being reverted in place.
+ * 
+ * When the demand is low, idle nodes can be reverted before their budget is
+ * used up ( see PreRevertPlanner ).
+ * 
+ * The snapshots of the VM are pruned and its clean snapshot refreshed while
+ * the node is idle ( see SnapshotLifecycleManager ).
+ * 
+ * The problems of the VM are scored ( see HealthMonitor ). An unhealthy node
+ * is quarantined : no new sessions, a revert once its tests are done, and a
+ * check that it answers before it gets sessions again.
+ * 
+ * The capabilities the VM gets from its vSphere attributes ( see
+ * NodeClassifier ) are added to the ones the node registers with. The node
+ * is indexed by browserName until the registry tears it down ( see
+ * CapabilityIndex ).
+ * 
  * @author freynaud
  * 
  */
@@ -60,22 +101,52 @@ public class VirtualMachineRemoteProxy extends WebDriverRemoteProxy implements T
 
 	private static final Logger log = Logger.getLogger(VirtualMachineRemoteProxy.class);
 
-	// the VM this proxy will control
-	private VirtualMachineWrapper vm;
+	// the VM this proxy will control. Can be swapped for a clean spare ( see
+	// WarmPool )
+	private volatile VirtualMachineWrapper vm;
 
-	// the current number of tests this proxy has run since the VM restarted for
-	// the last time
-	protected int totalTestStarted = 0;
-	protected int totalTestFinished = 0;
+	// state of the node and number of tests it has run since the VM restarted
+	// for the last time. Never locked, see SessionCounts.
+	private final SessionAccounting counts = new SessionAccounting(new SessionAccounting.Budget() {
+		public boolean isDue(int started) {
+			return VirtualMachineRemoteProxy.this.isDue(started);
+		}
+	});
 
 	// number of test that can be run before the VM has to restart.Default to -1
 	// => no revert
 	protected int maxTestBeforeClean = -1;
 
+	// added to maxTestBeforeClean so that the nodes don't all revert together.
+	// See RecycleCoordinator
+	private volatile int budgetOffset = 0;
+
 	// name of the VM to revert to when maxTestBeforeClean is reached.
 	private String cleanState = null;
 
-	private boolean restarting = false;
+	// number of tests between 2 cleanups in the guest. Default to -1 => no
+	// cleanup
+	protected int cleanupEvery = -1;
+
+	// script run in the guest for a cleanup, and its interpreter.
+	private String cleanupScript = null;
+	private String cleanupInterpreter = null;
+
+	// number of tests started at which the next cleanup happens.
+	private volatile int nextCleanup = -1;
+
+	// the VM was found unhealthy. Checked once reverted before coming back.
+	private volatile boolean quarantined = false;
+
+	// reverts that failed in a row. See RecycleCoordinator.failed()
+	private volatile int revertFailures = 0;
+
+	// keys of all the requests this node can serve. See CapabilityIndex.
+	private final Set<String> capabilityKeys;
+
+	// time spent per recycle tier, for all the proxies.
+	private static final LatencyHistogram cleanupTimes = Metrics.getInstance().timer(Metrics.RECYCLE_CLEANUP);
+	private static final LatencyHistogram revertTimes = Metrics.getInstance().timer(Metrics.RECYCLE_REVERT);
 
 	/**
 	 * configure a new proxy for a node. The proxy points to a VM identified by
@@ -85,17 +156,26 @@ public class VirtualMachineRemoteProxy extends WebDriverRemoteProxy implements T
 	 * @param registry
 	 */
 	public VirtualMachineRemoteProxy(RegistrationRequest server, Registry registry) {
-		super(server, registry);
+		super(withVmCapabilities(server), registry);
 
 		String uuid = (String) server.getConfiguration().get("vm");
 
 		if (uuid != null) {
-			vm = VirtualMachinePool.getInstance().getVMById(uuid);
+			vm = Hypervisor.getBackend().getVMById(uuid);
 			super.setId(uuid);
+			WarmPool.getInstance().claim(vm);
+			WarmPool.start();
+			ElasticProvisioner.start(registry);
 		} else {
 			throw new RuntimeException("need a id for the VM");
 		}
+		capabilityKeys = CapabilityIndex.keysOf(getOriginalRegistrationRequest().getCapabilities());
+		CapabilityIndex.getInstance().add(this);
 		configureRestoreStrategy();
+		RecycleCoordinator.start(registry);
+		RecycleCoordinator.getInstance().register(this);
+		PreRevertPlanner.start(registry);
+		SnapshotLifecycleManager.start(registry);
 		
 		Properties properties = new Properties();
 
@@ -114,6 +194,29 @@ public class VirtualMachineRemoteProxy extends WebDriverRemoteProxy implements T
 
 	}
 
+	/**
+	 * adds the capabilities of the VM to the ones the node registers with. The
+	 * values the node registers with win.
+	 * 
+	 * @param request
+	 * @return the request.
+	 */
+	private static RegistrationRequest withVmCapabilities(RegistrationRequest request) {
+		String uuid = (String) request.getConfiguration().get("vm");
+		if (uuid == null) {
+			return request;
+		}
+		Map<String, Object> vmCapabilities = Hypervisor.getBackend().getVMById(uuid).getCapabilities();
+		for (Map<String, Object> capability : request.getCapabilities()) {
+			for (Map.Entry<String, Object> e : vmCapabilities.entrySet()) {
+				if (!capability.containsKey(e.getKey())) {
+					capability.put(e.getKey(), e.getValue());
+				}
+			}
+		}
+		return request;
+	}
+
 	/**
 	 * analyse the parameter passed to define the restore strategy to be used by
 	 * the grid. Each proxy can have its own strategy.
@@ -130,7 +233,7 @@ public class VirtualMachineRemoteProxy extends WebDriverRemoteProxy implements T
 				if (cleanSnapshotName == null) {
 					throw new Exception("cleanSnapshot param not specified.");
 				}
-				if (!vm.snapshotExists(cleanSnapshotName)) {
+				if (!Hypervisor.getBackend().snapshotExists(vm, cleanSnapshotName)) {
 					throw new Exception("cleansnapshot with name " + cleanSnapshotName + " doesn't match any snapshot on this VM");
 				}
 				this.cleanState = cleanSnapshotName;
@@ -141,6 +244,42 @@ public class VirtualMachineRemoteProxy extends WebDriverRemoteProxy implements T
 			maxTestBeforeClean = -1;
 			cleanState = null;
 		}
+		try {
+			configureCleanup();
+		} catch (Exception e) {
+			log.warn("Failure to configure the cleanup in the guest. Reverting to default (no cleanup) " + e.getMessage());
+			cleanupEvery = -1;
+			cleanupScript = null;
+		}
+		nextCleanup = cleanupEvery;
+	}
+
+	/**
+	 * the cleanup tier is optional. It needs a revert strategy to fall back on
+	 * when the cleanup doesn't work.
+	 */
+	private void configureCleanup() throws Exception {
+		Object every = getConfig().get("cleanupEvery");
+		if (every == null) {
+			return;
+		}
+		cleanupEvery = (Integer) every;
+		if (cleanupEvery < 1) {
+			cleanupEvery = -1;
+			return;
+		}
+		if (cleanState == null) {
+			throw new Exception("cleanupEvery needs a valid cleanSnapshot to revert to if the cleanup fails.");
+		}
+		cleanupScript = (String) getConfig().get("cleanupScript");
+		if (cleanupScript == null) {
+			throw new Exception("cleanupScript param not specified.");
+		}
+		cleanupInterpreter = (String) getConfig().get("cleanupInterpreter");
+		if (cleanupInterpreter == null) {
+			cleanupInterpreter = GuestOs.forRole(vm.getRole()).getInterpreter();
+		}
+		log.debug("the VM will run " + cleanupScript + " every " + cleanupEvery + " tests.");
 	}
 
 	/**
@@ -159,77 +298,438 @@ public class VirtualMachineRemoteProxy extends WebDriverRemoteProxy implements T
 
 	/**
 	 * Reverting the VM to the clean state defined at startup. No check for
-	 * currently running tests.
+	 * currently running tests. Blocks until the VM is reverted, so should not
+	 * run on a hub thread. See recycle()
 	 */
 	protected void revertToCleanState() {
 		log.debug(getVm().getName() + "REVERTING TO CLEAN STATE");
-		getRegistry().add(this);
+		Hypervisor.getBackend().revertToSnapshot(getVm(), cleanState);
 		log.debug(getVm().getName() + "CLEAN STATE RESTORED");
-
 	};
 
+	/**
+	 * the VM is clean again. Resets the test counters and makes the proxy
+	 * available for new sessions.
+	 */
 	protected void hasRestarted() {
-		restarting = false;
+		nextCleanup = cleanupEvery;
+		counts.set(SessionCounts.CLEAN);
+		getRegistry().add(this);
 	}
 
 	/**
-	 * check the totalReserved counter and doesn't allow a test to start if the
-	 * limit has been reached = the node is due for restart.
+	 * Reverts the VM in the background. The proxy doesn't accept new sessions
+	 * until the revert is done, and registers itself again once the VM is
+	 * clean.
+	 * 
+	 * Doesn't check how many nodes are reverting : the nodes go through
+	 * RecycleCoordinator.submit() instead.
+	 * 
+	 * @return the future completing when the VM is available again, null if
+	 *         the VM was replaced by a spare and the proxy is already
+	 *         available.
 	 */
-	@Override
-	public TestSession getNewSession(Map<String, Object> requestedCapability) {
-		synchronized (this) {
-			if (restarting) {
-				return null;
+	public Future<?> recycle() {
+		setState(NodeState.RECYCLING);
+		if (swapForSpare()) {
+			return null;
+		}
+		return RecycleService.getInstance().submit(new Runnable() {
+			public void run() {
+				try {
+					long start = System.currentTimeMillis();
+					revertToCleanState();
+					long elapsed = System.currentTimeMillis() - start;
+					revertTimes.record(elapsed);
+					// the IP is checked again after a revert. Doing it now
+					// rather than on the first session.
+					boolean reachable = Hypervisor.getBackend().isReachable(getVm(), Integer.parseInt(getPort()));
+					if (reachable) {
+						remoteURL = null;
+					}
+					if (quarantined) {
+						if (!reachable) {
+							// the VM may only need another revert. Still out
+							// of the grid until then.
+							setState(NodeState.QUARANTINED);
+							log.warn(getVm().getName() + " doesn't answer after its quarantine revert.");
+							if (!RecycleCoordinator.getInstance().failed(VirtualMachineRemoteProxy.this, ++revertFailures)) {
+								setState(NodeState.BROKEN);
+								log.error(getVm().getName() + " is out of the grid until it is repaired.");
+							}
+							return;
+						}
+						HealthMonitor.getInstance().reset(getVm());
+						quarantined = false;
+						log.info(getVm().getName() + " answers after its quarantine revert. Back in the grid.");
+					}
+					revertFailures = 0;
+					hasRestarted();
+					log.info(getVm().getName() + " recycled. Revert took " + elapsed + "ms.");
+				} catch (Throwable t) {
+					// vCenter or the datastore may only be busy for a while.
+					// Reverting again later, out of the grid until then.
+					HealthMonitor.getInstance().record(getVm(), HealthEvent.REVERT_FAILURE);
+					log.error(getVm().getName() + " failed to revert to " + cleanState + " : " + t.getMessage(), t);
+					if (!RecycleCoordinator.getInstance().failed(VirtualMachineRemoteProxy.this, ++revertFailures)) {
+						setState(NodeState.BROKEN);
+						log.error(getVm().getName() + " is out of the grid until it is repaired.");
+					}
+				} finally {
+					RecycleCoordinator.getInstance().done(VirtualMachineRemoteProxy.this);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs the cleanup script in the guest in the background, and checks the
+	 * node still answers. The proxy is available again right after, without
+	 * resetting the test counters. If anything goes wrong, the VM is recycled
+	 * instead.
+	 * 
+	 * @return the future completing when the cleanup is done.
+	 */
+	public Future<?> cleanup() {
+		setState(NodeState.RECYCLING);
+		return RecycleService.getInstance().submit(new Runnable() {
+			public void run() {
+				long start = System.currentTimeMillis();
+				boolean healthy = false;
+				try {
+					HypervisorBackend backend = Hypervisor.getBackend();
+					int res = backend.runProgramInGuest(getVm(), cleanupInterpreter, cleanupScript);
+					healthy = res == 0 && backend.isReachable(getVm(), Integer.parseInt(getPort()));
+				} catch (Throwable t) {
+					log.warn(getVm().getName() + " : error running " + cleanupScript + " : " + t.getMessage());
+				}
+				long elapsed = System.currentTimeMillis() - start;
+				cleanupTimes.record(elapsed);
+				if (healthy) {
+					nextCleanup = counts.get().getStarted() + cleanupEvery;
+					SessionCounts c;
+					do {
+						c = counts.get();
+					} while (!counts.compareAndSet(c, c.with(c.isIdle() ? NodeState.AVAILABLE : NodeState.BUSY)));
+					log.info(getVm().getName() + " cleaned up in " + elapsed + "ms.");
+				} else {
+					log.warn(getVm().getName() + " failed the cleanup after " + elapsed + "ms. Recycling it.");
+					RecycleCoordinator.getInstance().submit(VirtualMachineRemoteProxy.this);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Replaces the VM by a clean spare if the warm pool has one ready, with
+	 * the same capabilities as the used VM : the node keeps the id and the
+	 * capabilities it registered with. The used VM goes back to the warm pool
+	 * to be cleaned.
+	 * 
+	 * @return true if the VM was swapped, and the proxy is available again.
+	 */
+	private boolean swapForSpare() {
+		WarmPool warmPool = WarmPool.getInstance();
+		VirtualMachineWrapper used = getVm();
+		NodeRole role = used.getRole();
+		if (!warmPool.isEnabled(role) || !cleanState.equals(warmPool.getSnapshot())) {
+			return false;
+		}
+		VirtualMachineWrapper spare = warmPool.acquire(role, used.getCapabilities());
+		if (spare == null) {
+			log.debug("no spare ready for " + used.getName() + ". Reverting it.");
+			return false;
+		}
+		log.info(used.getName() + " replaced by spare " + spare.getName());
+		// no session can start while recycling. The spare was just reverted.
+		vm = spare;
+		quarantined = false;
+		remoteURL = null;
+		warmPool.recycle(used);
+		hasRestarted();
+		return true;
+	}
+
+	/**
+	 * stops accepting sessions for good, if the proxy is idle.
+	 * 
+	 * @return true if the proxy was idle and is now retired.
+	 */
+	boolean retire() {
+		SessionCounts c = counts.get();
+		if (c.getState() != NodeState.AVAILABLE || isBusy()) {
+			return false;
+		}
+		return counts.compareAndSet(c, c.with(NodeState.BROKEN));
+	}
+
+	/**
+	 * puts a BROKEN node back : it is reverted, and gets sessions again if the
+	 * revert works. See NodeRepairServlet.
+	 * 
+	 * @return true if the node was BROKEN and is now recycling.
+	 */
+	public boolean repair() {
+		SessionCounts c = counts.get();
+		if (cleanState == null || c.getState() != NodeState.BROKEN) {
+			return false;
+		}
+		if (!counts.compareAndSet(c, c.with(NodeState.RECYCLING))) {
+			return false;
+		}
+		revertFailures = 0;
+		log.info("repairing " + getVm().getName());
+		RecycleCoordinator.getInstance().submit(this);
+		return true;
+	}
+
+	/**
+	 * reverts the node before it has used its whole test budget, if it is
+	 * idle. The revert goes through the RecycleCoordinator like a normal one.
+	 * See PreRevertPlanner.
+	 * 
+	 * @return true if the node was idle and is now recycling.
+	 */
+	boolean preRevert() {
+		SessionCounts c = counts.get();
+		if (cleanState == null || c.getState() != NodeState.AVAILABLE || !c.isIdle() || c.getStarted() == 0) {
+			return false;
+		}
+		if (!counts.compareAndSet(c, c.with(NodeState.RECYCLING))) {
+			return false;
+		}
+		RecycleCoordinator.getInstance().submit(this);
+		return true;
+	}
+
+	/**
+	 * runs a maintenance task on the VM in the background, if the node is
+	 * idle. The node doesn't get sessions until the task is done. See
+	 * SnapshotLifecycleManager.
+	 * 
+	 * @param task
+	 *            returns true if it reverted the VM, and the test counters
+	 *            start again from 0.
+	 * @return the future completing when the node is available again, null if
+	 *         the node wasn't idle.
+	 */
+	Future<?> maintain(final Callable<Boolean> task) {
+		SessionCounts c = counts.get();
+		if (c.getState() != NodeState.AVAILABLE || !c.isIdle()) {
+			return null;
+		}
+		if (!counts.compareAndSet(c, c.with(NodeState.RECYCLING))) {
+			return null;
+		}
+		return RecycleService.getInstance().submit(new Runnable() {
+			public void run() {
+				try {
+					if (task.call()) {
+						remoteURL = null;
+						hasRestarted();
+					} else {
+						setState(NodeState.AVAILABLE);
+					}
+				} catch (Throwable t) {
+					// the VM may be half way. Reverting it like a normal one.
+					log.warn(getVm().getName() + " : maintenance failed, recycling it : " + t.getMessage(), t);
+					RecycleCoordinator.getInstance().submit(VirtualMachineRemoteProxy.this);
+				}
 			}
-			if (maxTestBeforeClean > 0 && totalTestStarted >= maxTestBeforeClean) {
-				return null;
+		});
+	}
+
+	/**
+	 * records a problem of the VM, and quarantines the node if the VM is now
+	 * unhealthy.
+	 * 
+	 * @param event
+	 */
+	private void health(HealthEvent event) {
+		HealthMonitor monitor = HealthMonitor.getInstance();
+		if (monitor.record(getVm(), event) >= monitor.getThreshold()) {
+			quarantine();
+		}
+	}
+
+	/**
+	 * stops giving sessions to the node, and reverts it as soon as it is
+	 * idle. Does nothing if the node is already recycling or out of the grid.
+	 */
+	private void quarantine() {
+		SessionCounts c;
+		do {
+			c = counts.get();
+			NodeState state = c.getState();
+			if (state == NodeState.QUARANTINED || state == NodeState.RECYCLING || state == NodeState.BROKEN) {
+				return;
+			}
+		} while (!counts.compareAndSet(c, c.with(NodeState.QUARANTINED)));
+		quarantined = true;
+		Metrics.getInstance().increment(Metrics.QUARANTINES);
+		log.warn(getVm().getName() + " is unhealthy, health score " + getHealthScore() + ". Quarantined.");
+		if (c.isIdle()) {
+			forceRevert();
+		}
+	}
+
+	/**
+	 * reverts a quarantined node, whatever its test budget.
+	 */
+	private void forceRevert() {
+		if (cleanState == null) {
+			// nothing to revert to.
+			setState(NodeState.BROKEN);
+			log.error(getVm().getName() + " is unhealthy and has no clean snapshot to revert to. The node won't get new sessions.");
+			return;
+		}
+		RecycleCoordinator.getInstance().submit(this);
+	}
+
+	/**
+	 * 
+	 * @return the health score of the VM. See HealthMonitor.
+	 */
+	public double getHealthScore() {
+		return HealthMonitor.getInstance().getScore(getVm());
+	}
+
+	/**
+	 * 
+	 * @return the current state of the node.
+	 */
+	public NodeState getState() {
+		return counts.get().getState();
+	}
+
+	/**
+	 * forces the state, whatever the counters are.
+	 * 
+	 * @param state
+	 */
+	private void setState(NodeState state) {
+		counts.setState(state);
+	}
+
+	/**
+	 * 
+	 * @param started
+	 *            number of tests started, including the one being admitted.
+	 * @return true if the node has to be cleaned up or reverted once that
+	 *         many tests have started.
+	 */
+	private boolean isDue(int started) {
+		int budget = getBudget();
+		if (budget > 0 && started >= budget) {
+			return true;
+		}
+		return cleanupEvery > 0 && started >= nextCleanup;
+	}
+
+	/**
+	 * updates the counters, and starts the cleanup or the revert if that was
+	 * the last test the node had to finish. Only one thread ever sees the
+	 * switch to RECYCLING.
+	 * 
+	 * @param started
+	 *            change of the number of tests started.
+	 * @param finished
+	 *            change of the number of tests finished.
+	 */
+	private void count(int started, int finished) {
+		SessionAccounting.Change change = counts.count(started, finished);
+		SessionCounts n = change.getAfter();
+		if (n.getState() == NodeState.QUARANTINED && n.isIdle() && !change.getBefore().isIdle()) {
+			forceRevert();
+			return;
+		}
+		if (change.entered(NodeState.RECYCLING)) {
+			int budget = getBudget();
+			if (budget >= 1 && n.getFinished() >= budget) {
+				log.info("cleaning up the VM " + getVm().getName());
+				RecycleCoordinator.getInstance().submit(this);
+			} else {
+				log.info("running " + cleanupScript + " on " + getVm().getName());
+				cleanup();
 			}
-			TestSession session = super.getNewSession(requestedCapability);
+		}
+	}
+
+	/**
+	 * doesn't allow a test to start if the limit has been reached = the node
+	 * is due for cleanup or restart, or the VM is unhealthy. Admission is a
+	 * compare and set on the counters, the slot is given back if no session
+	 * could be created.
+	 */
+	@Override
+	public TestSession getNewSession(Map<String, Object> requestedCapability) {
+		if (HealthMonitor.getInstance().isUnhealthy(getVm())) {
+			quarantine();
+			return null;
+		}
+		if (!counts.admit()) {
+			return null;
+		}
+		TestSession session = null;
+		try {
+			session = super.getNewSession(requestedCapability);
 			if (session != null) {
-				totalTestStarted++;
+				PreRevertPlanner.recordArrival(requestedCapability);
 			}
 			return session;
+		} finally {
+			if (session == null) {
+				count(-1, 0);
+			}
 		}
 	}
 
+	/**
+	 * 
+	 * @return the keys of all the requests this node can serve.
+	 */
+	Set<String> getCapabilityKeys() {
+		return capabilityKeys;
+	}
+
+	/**
+	 * the node unregistered or timed out : its requests can't go to it any
+	 * more.
+	 */
+	@Override
+	public void teardown() {
+		super.teardown();
+		CapabilityIndex.getInstance().remove(this);
+	}
+
+	/**
+	 * called when a session timed out. The timeout and a failure to release
+	 * the session count against the health of the VM.
+	 */
 	@Override
 	public void beforeRelease(TestSession session) {
 		try {
 			super.beforeRelease(session);
 		} catch (Throwable e) {
-			log.warn("error releasing the session " + session + " that timed out.TODO : Corruption event");
+			log.warn("error releasing the session " + session + " that timed out on " + getVm().getName() + " : " + e.getMessage());
 			session.terminate();
+			health(HealthEvent.RELEASE_FAILURE);
+			return;
 		}
+		health(HealthEvent.SESSION_TIMEOUT);
 	}
 
 	/**
 	 * release and restore the clean state if maxTestBeforeClean has been
-	 * reached.That's where the tricky bits are.
+	 * reached, or cleans the guest up if cleanupEvery has. The revert and the
+	 * cleanup run in the background, this only moves the proxy to RECYCLING so
+	 * that it doesn't get new sessions and lets the slot be released normally.
 	 */
 	@Override
 	public void afterSession(TestSession session) {
 		session.put("lastCommand", null);
-		totalTestFinished++;
-		log.debug(getVm().getName() + " : after session ,total test finished : " + totalTestFinished);
-		if (totalTestFinished >= maxTestBeforeClean && maxTestBeforeClean >= 1) {
-			// TODO : freynaud : bug here. total used can be >1 if the session
-			// if supposed to be finished but crashed during the release
-			// process.
-			if (totalTestFinished == totalTestStarted) {
-				restarting = true;
-				log.info("releasing");
-				session.getSlot().forceRelease();
-				// clean the guest OS.
-				log.info("cleaning up the VM");
-				revertToCleanState();
-
-				// the resources have been released already, throwing an
-				// exception to prevent the Slot from release again.Design issue
-				// on grid listener side.
-				throw new RuntimeException("Throwing an exception to prevent automatic free of resources. The VM reset should have done that.");
-			}
-		}
+		count(0, 1);
+		log.debug(getVm().getName() + " : after session, " + counts.get());
 	}
 
 	/**
@@ -243,9 +743,12 @@ public class VirtualMachineRemoteProxy extends WebDriverRemoteProxy implements T
 		StringBuffer buff = new StringBuffer();
 		buff.append(super.toString() + "\n");
 		buff.append("VM proxy " + vm.getName() + " , uuid:" + vm.getId() + "\n");
-		buff.append("ran " + totalTestStarted + " tests so far.\n");
+		buff.append("ran " + getTotalTestStarted() + " tests so far, " + getState() + ", health score " + getHealthScore() + ".\n");
 		if (maxTestBeforeClean >= 1) {
-			buff.append("* setup to restore " + cleanState + " every " + maxTestBeforeClean + " tests\n");
+			buff.append("* setup to restore " + cleanState + " every " + getBudget() + " tests\n");
+		}
+		if (cleanupEvery >= 1) {
+			buff.append("* setup to run " + cleanupScript + " every " + cleanupEvery + " tests\n");
 		}
 		return buff.toString();
 	}
@@ -254,15 +757,15 @@ public class VirtualMachineRemoteProxy extends WebDriverRemoteProxy implements T
 		return "/wd/hub";
 	}
 
-	// TODO : freynaud Bug if VM is not started, it freezes everything here
 	/**
-	 * If the url is not defined yet, it's not yet an issue. Trying to find it
-	 * using VMTools.
+	 * If the url is not defined yet, it's not yet an issue. Asking the
+	 * IpRegistry for it. Never blocks : if the IP hasn't been found yet, throws
+	 * and the IP is looked for in the background.
 	 */
 	@Override
 	public URL getRemoteURL() {
 		if (remoteURL == null) {
-			String ip = getVm().getIp();
+			String ip = IpRegistry.getInstance().getIp(getVm(), Integer.parseInt(getPort()));
 			if (ip != null) {
 				try {
 					remoteURL = new URL("http://" + ip + ":" + getPort() + getPath());
@@ -270,9 +773,7 @@ public class VirtualMachineRemoteProxy extends WebDriverRemoteProxy implements T
 					throw new GridException(e.getMessage(), e);
 				}
 			} else {
-				// TODO : start the VM just to get the
-				// IP . Should solve the freeze.
-				throw new RuntimeException("Cannot find IP");
+				throw new GridException("Cannot find IP for " + getVm().getName() + " yet.");
 			}
 		}
 		return remoteURL;
@@ -286,12 +787,56 @@ public class VirtualMachineRemoteProxy extends WebDriverRemoteProxy implements T
 		return "5555";
 	}
 
+	/**
+	 * 
+	 * @return the snapshot the VM reverts to, null if it never reverts.
+	 */
+	public String getCleanState() {
+		return cleanState;
+	}
+
 	public int getTotalTestStarted() {
-		return totalTestStarted;
+		return counts.get().getStarted();
 	}
 
 	public int getMaxTestBeforeClean() {
 		return maxTestBeforeClean;
 	}
 
+	/**
+	 * 
+	 * @return the number of tests this node runs between 2 reverts, -1 if it
+	 *         never reverts.
+	 */
+	public int getBudget() {
+		if (maxTestBeforeClean < 1) {
+			return -1;
+		}
+		return Math.max(1, maxTestBeforeClean + budgetOffset);
+	}
+
+	void setBudgetOffset(int budgetOffset) {
+		this.budgetOffset = budgetOffset;
+	}
+
+	public int getCleanupEvery() {
+		return cleanupEvery;
+	}
+
+	/**
+	 * 
+	 * @return the time taken by the cleanups in the guest, for all the nodes.
+	 */
+	public static LatencyHistogram getCleanupTimes() {
+		return cleanupTimes;
+	}
+
+	/**
+	 * 
+	 * @return the time taken by the full reverts, for all the nodes.
+	 */
+	public static LatencyHistogram getRevertTimes() {
+		return revertTimes;
+	}
+
 }
@@ -0,0 +1,150 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import com.vmware.vim25.VirtualMachineSnapshotTree;
+import com.vmware.vim25.mo.ServerConnection;
+import com.vmware.vim25.mo.VirtualMachineSnapshot;
+
+/**
+ * Flattened snapshot tree of a VM. The snapshots are stored in depth first
+ * order, with the position of the parent of each snapshot, and indexed by
+ * name. Immutable : a new index is built when the snapshots change.
+ * 
+ * @author freynaud
+ * 
+ */
+public final class SnapshotIndex {
+
+	private final List<SnapshotWrapper> snapshots;
+	// parent[i] = position of the parent of snapshot i, -1 for a root.
+	private final int[] parent;
+	// name -> position of the first snapshot with that name.
+	private final Map<String, Integer> byName;
+
+	/**
+	 * 
+	 * @param vm
+	 * @param connection
+	 * @param roots
+	 *            the root snapshots of the VM. Can be null.
+	 */
+	public SnapshotIndex(VirtualMachineWrapper vm, ServerConnection connection, VirtualMachineSnapshotTree[] roots) {
+		List<SnapshotWrapper> all = new ArrayList<SnapshotWrapper>();
+		List<Integer> parents = new ArrayList<Integer>();
+		Map<String, Integer> names = new HashMap<String, Integer>();
+
+		// iterative depth first walk, same order as the tree.
+		LinkedList<Object[]> stack = new LinkedList<Object[]>();
+		pushAll(stack, roots, -1);
+		while (!stack.isEmpty()) {
+			Object[] current = stack.removeFirst();
+			VirtualMachineSnapshotTree node = (VirtualMachineSnapshotTree) current[0];
+			int position = all.size();
+			SnapshotWrapper ss = new SnapshotWrapper(vm, new VirtualMachineSnapshot(connection, node.getSnapshot()));
+			ss.setName(node.getName());
+			ss.setCreateTime(node.getCreateTime());
+			int parentPosition = (Integer) current[1];
+			ss.setDepth(parentPosition == -1 ? 1 : all.get(parentPosition).getDepth() + 1);
+			all.add(ss);
+			parents.add((Integer) current[1]);
+			if (node.getName() != null && !names.containsKey(node.getName())) {
+				names.put(node.getName(), position);
+			}
+			pushAll(stack, node.getChildSnapshotList(), position);
+		}
+
+		snapshots = Collections.unmodifiableList(all);
+		parent = new int[parents.size()];
+		for (int i = 0; i < parent.length; i++) {
+			parent[i] = parents.get(i);
+		}
+		byName = names;
+	}
+
+	private static void pushAll(LinkedList<Object[]> stack, VirtualMachineSnapshotTree[] nodes, int parent) {
+		if (nodes == null) {
+			return;
+		}
+		// in reverse so that the first child is processed first.
+		for (int i = nodes.length - 1; i >= 0; i--) {
+			stack.addFirst(new Object[] { nodes[i], parent });
+		}
+	}
+
+	/**
+	 * 
+	 * @return all the snapshots, parents before children.
+	 */
+	public List<SnapshotWrapper> getSnapshots() {
+		return snapshots;
+	}
+
+	/**
+	 * 
+	 * @param name
+	 * @return the position of the first snapshot with that name, -1 if there
+	 *         is none.
+	 */
+	public int indexOf(String name) {
+		Integer res = byName.get(name);
+		return res == null ? -1 : res;
+	}
+
+	/**
+	 * 
+	 * @param name
+	 * @return the first snapshot with that name, null if there is none.
+	 */
+	public SnapshotWrapper get(String name) {
+		int i = indexOf(name);
+		return i == -1 ? null : snapshots.get(i);
+	}
+
+	/**
+	 * 
+	 * @param position
+	 * @return the position of the parent, -1 for a root snapshot.
+	 */
+	public int getParent(int position) {
+		return parent[position];
+	}
+
+	/**
+	 * 
+	 * @param position
+	 * @return the number of snapshots from the root to that one, 1 for a
+	 *         root.
+	 */
+	public int getDepth(int position) {
+		int depth = 0;
+		for (int i = position; i != -1; i = parent[i]) {
+			depth++;
+		}
+		return depth;
+	}
+
+	public int size() {
+		return snapshots.size();
+	}
+}
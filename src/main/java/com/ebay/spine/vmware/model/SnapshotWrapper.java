@@ -15,22 +15,23 @@ limitations under the License.
  */
 package com.ebay.spine.vmware.model;
 
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Calendar;
 
 import org.apache.log4j.Logger;
 import org.openqa.grid.internal.GridException;
 
+import com.ebay.spine.vmware.services.Metrics;
+import com.ebay.spine.vmware.services.RevertScheduler;
+import com.vmware.vim25.ManagedObjectReference;
 import com.vmware.vim25.mo.Task;
 import com.vmware.vim25.mo.VirtualMachineSnapshot;
 
 /**
  * 
  * Wrapper around a VM snapshot. The only reason this wrapper exist is to
- * manually manage resources and make sure only 1 VM is reverted at a time.
- * Ideally this should be done with some config of the VSphere WS but can't find
- * how to do it.
+ * manually manage resources and limit the number of VMs reverted at the same
+ * time on a datastore or host ( see RevertScheduler ). Ideally this should be
+ * done with some config of the VSphere WS but can't find how to do it.
  * 
  * @author Francois Reynaud
  * 
@@ -41,6 +42,10 @@ public class SnapshotWrapper {
 	private String name;
 	private VirtualMachineWrapper vm;
 	private VirtualMachineSnapshot snapshot;
+	// number of snapshots from the root to this one, 1 for a root.
+	private int depth = 1;
+	// null if unknown.
+	private Calendar createTime = null;
 
 	public SnapshotWrapper(VirtualMachineWrapper vm, VirtualMachineSnapshot snapshot) {
 		this.vm = vm;
@@ -51,95 +56,129 @@ public class SnapshotWrapper {
 		return name;
 	}
 
+	/**
+	 * @return the reference of the snapshot on the VCenter server.
+	 */
+	public ManagedObjectReference getMOR() {
+		return snapshot.getMOR();
+	}
+
 	public void setName(String name) {
 		this.name = name;
 	}
 
-	public void delete() {
-		try {
-			Task t = snapshot.removeSnapshot_Task(false);
-			if (Task.SUCCESS != t.waitForTask()) {
-				throw new RuntimeException("bug");
-			}
-		} catch (Throwable e) {
-			System.err.println(e.getMessage() + " error delete");
-		}
+	/**
+	 * 
+	 * @return the length of the chain of disks the VM runs on once reverted
+	 *         to this snapshot.
+	 */
+	public int getDepth() {
+		return depth;
 	}
 
-	public String toString() {
-		return name;
+	void setDepth(int depth) {
+		this.depth = depth;
+	}
+
+	public Calendar getCreateTime() {
+		return createTime;
+	}
+
+	void setCreateTime(Calendar createTime) {
+		this.createTime = createTime;
 	}
 
 	/**
-	 * Reverting the VM to this snapshot.
-	 * 
-	 * if there was a connection to VMTools, that connection will be broken.
+	 * removes the snapshot. Its disk changes are merged into its children :
+	 * the other snapshots and the current state of the VM stay the same.
 	 * 
 	 * @throws GridException
-	 *             if anything bad happens.
+	 *             if the snapshot couldn't be removed.
 	 */
-
-	private static int reverting = 0;
-	private static Lock lock = new ReentrantLock();
-	private static Condition c = lock.newCondition();
-	// slower to revert more than 1 VM at a time with the current hardware.
-	// Probably due to low I/O
-	private static int MAX_CONCCURENT_REVERT = 1;
-
-	// can we handle another snapshot revert now ?
-	private boolean hasResourcesToRevert() {
-		return reverting < MAX_CONCCURENT_REVERT;
+	public void delete() throws GridException {
+		Metrics metrics = Metrics.getInstance();
+		long start = System.currentTimeMillis();
+		try {
+			Task t = snapshot.removeSnapshot_Task(false);
+			String s = t.waitForTask();
+			if (!Task.SUCCESS.equals(s)) {
+				throw new GridException("Cannot delete the snapshot " + name + " of " + vm.getName() + " -> " + s);
+			}
+			log.info("snapshot " + name + " of " + vm.getName() + " deleted.");
+		} catch (GridException e) {
+			metrics.increment(Metrics.DELETE_SNAPSHOT_FAILURES);
+			throw e;
+		} catch (Throwable e) {
+			metrics.increment(Metrics.DELETE_SNAPSHOT_FAILURES);
+			vm.getEndpoint().getSessionManager().check(e);
+			throw new GridException("Exception deleting the snapshot " + name + " of " + vm.getName() + " : " + e.getMessage(), e);
+		} finally {
+			metrics.record(Metrics.DELETE_SNAPSHOT, start);
+			vm.invalidateSnapshots();
+		}
 	}
 
 	/**
-	 * waits until the underlying VM architecture can handle another snapshot
-	 * revert.
 	 * 
-	 * @throws InterruptedException
+	 * @param newName
+	 * @throws GridException
+	 *             if the snapshot couldn't be renamed.
 	 */
-	private void blockUntilResourceIsFree() throws InterruptedException {
-
+	public void rename(String newName) throws GridException {
 		try {
-			lock.lock();
-			while (!hasResourcesToRevert()) {
-				c.await();
-			}
-			if (hasResourcesToRevert()) {
-				reverting++;
-				return;
-			}
+			snapshot.renameSnapshot(newName, null);
+			name = newName;
+		} catch (Throwable e) {
+			vm.getEndpoint().getSessionManager().check(e);
+			throw new GridException("Cannot rename the snapshot " + name + " of " + vm.getName() + " to " + newName + " : " + e.getMessage(), e);
 		} finally {
-			lock.unlock();
+			vm.invalidateSnapshots();
 		}
-		blockUntilResourceIsFree();
+	}
+
+	public String toString() {
+		return name;
 	}
 
 	/**
-	 * ensure that there is enough resources. If not, wait for the resources and
-	 * revert.
+	 * Reverting the VM to this snapshot, once the datastore and the host of the
+	 * VM can handle another revert.
+	 * 
+	 * if there was a connection to VMTools, that connection will be broken.
 	 * 
 	 * @throws GridException
+	 *             if anything bad happens, or if the thread is interrupted
+	 *             while waiting for its turn.
 	 */
 	public void revert() throws GridException {
+		// each VCenter has its own limits.
+		RevertScheduler scheduler = vm.getEndpoint().getRevertScheduler();
+		Metrics metrics = Metrics.getInstance();
+		RevertScheduler.Permit permit;
+		long queued = System.currentTimeMillis();
 		try {
-			blockUntilResourceIsFree();
+			permit = scheduler.acquire(vm.getDatastore(), vm.getHostId());
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			Thread.currentThread().interrupt();
+			throw new GridException("interrupted while waiting to revert to " + getName() + " on VM " + vm.getName());
+		} finally {
+			metrics.record(Metrics.REVERT_WAIT, queued);
 		}
 
+		long start = System.currentTimeMillis();
+		boolean success = false;
 		try {
 			_revert();
-
+			success = true;
 		} catch (Throwable t) {
+			metrics.increment(Metrics.REVERT_FAILURES);
+			vm.getEndpoint().getSessionManager().check(t);
 			throw new GridException("error reverting snapshot :" + t.getMessage());
 		} finally {
-			try {
-				lock.lock();
-				reverting--;
-				c.signalAll();
-			} finally {
-				lock.unlock();
-			}
+			long elapsed = metrics.record(Metrics.REVERT, start);
+			// deeper chains revert slower. See SnapshotLifecycleManager.
+			metrics.timer(Metrics.revertByDepth(depth)).record(elapsed);
+			scheduler.release(permit, elapsed, success);
 		}
 	}
 
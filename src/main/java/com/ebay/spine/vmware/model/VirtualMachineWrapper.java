@@ -17,17 +17,33 @@ limitations under the License.
 package com.ebay.spine.vmware.model;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 import org.apache.log4j.Logger;
 import org.openqa.grid.internal.GridException;
 
+import com.ebay.spine.vmware.services.IpRegistry;
+import com.ebay.spine.vmware.services.Metrics;
+import com.ebay.spine.vmware.services.NodeRole;
 import com.ebay.spine.vmware.services.VIX;
+import com.ebay.spine.vmware.services.VCenterEndpoint;
+import com.vmware.vim25.GuestInfo;
+import com.vmware.vim25.GuestNicInfo;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.VirtualMachineCloneSpec;
 import com.vmware.vim25.VirtualMachineConfigInfo;
-import com.vmware.vim25.VirtualMachineSnapshotTree;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.VirtualMachineRelocateSpec;
+import com.vmware.vim25.VirtualMachineRuntimeInfo;
+import com.vmware.vim25.VirtualMachineSnapshotInfo;
+import com.vmware.vim25.mo.Folder;
+import com.vmware.vim25.mo.ServerConnection;
 import com.vmware.vim25.mo.Task;
 import com.vmware.vim25.mo.VirtualMachine;
-import com.vmware.vim25.mo.VirtualMachineSnapshot;
 
 /**
  * Wrapper around a VMWare VM object that removes the lazy loading for the non
@@ -41,7 +57,10 @@ public class VirtualMachineWrapper implements Comparable<VirtualMachineWrapper>
 	private static final Logger log = Logger.getLogger(VirtualMachineWrapper.class);
 	// the underlying VMWare object. pretty much everything in it is lazy
 	// loaded.
-	private VirtualMachine vm;
+	// replaced when the VCenter session is renewed.
+	private volatile VirtualMachine vm;
+	// the VCenter server the VM comes from.
+	private volatile VCenterEndpoint endpoint;
 
 	private String id;
 	private String name;
@@ -49,8 +68,24 @@ public class VirtualMachineWrapper implements Comparable<VirtualMachineWrapper>
 	private String configPath;
 	private String ip;
 
+	private VirtualMachinePowerState powerState;
+	// managed object id of the ESX host running the VM.
+	private String hostId;
+
+	// guestId, folder, resourcePool, custom.[name] ... See NodeClassifier.
+	// Replaced as a whole.
+	private volatile Map<String, String> attributes = Collections.emptyMap();
+	// set by the NodeClassifier. No role = not a grid node.
+	private volatile NodeRole role = null;
+	private volatile Map<String, Object> capabilities = Collections.emptyMap();
+	// set by the NodeClassifier. Only spares are used by the WarmPool.
+	private volatile boolean spare = false;
+
 	private String shortStatus = "undefined.";
-	private List<SnapshotWrapper> snapshots = null;
+	private volatile SnapshotIndex snapshots = null;
+	// snapshot tree fetched with the rest of the inventory. Used once to
+	// avoid a round trip when the snapshots are first accessed.
+	private volatile VirtualMachineSnapshotInfo snapshotInfo = null;
 
 	// access to VMWare tools.
 	private VIX VIXService;
@@ -70,54 +105,61 @@ public class VirtualMachineWrapper implements Comparable<VirtualMachineWrapper>
 		this.vm = vm;
 	}
 
+	/**
+	 * Creating a VM object from properties that have already been fetched (
+	 * see InventoryLoader ), without any call to the vSphere API.
+	 * 
+	 * @param vm
+	 * @param id
+	 * @param name
+	 * @param configPath
+	 */
+	public VirtualMachineWrapper(VirtualMachine vm, String id, String name, String configPath) {
+		this.vm = vm;
+		this.id = id;
+		this.name = name;
+		this.configPath = configPath;
+	}
+
 	/**
 	 * Load the snapshots basic details.
 	 * 
 	 * @return
 	 */
-	private void loadSnapshots() {
-		snapshots = new ArrayList<SnapshotWrapper>();
-		List<VirtualMachineSnapshotTree> all = getAllSnapshots(vm);
-		for (VirtualMachineSnapshotTree node : all) {
-			SnapshotWrapper ss = new SnapshotWrapper(this, new VirtualMachineSnapshot(vm.getServerConnection(), node.getSnapshot()));
-			ss.setName(node.getName());
-			snapshots.add(ss);
+	private SnapshotIndex loadSnapshots() {
+		VirtualMachineSnapshotInfo info = snapshotInfo;
+		snapshotInfo = null;
+		if (info == null) {
+			info = vm.getSnapshot();
 		}
+		return new SnapshotIndex(this, vm.getServerConnection(), info == null ? null : info.getRootSnapshotList());
+	}
+
+	public VCenterEndpoint getEndpoint() {
+		return endpoint;
+	}
+
+	public void setEndpoint(VCenterEndpoint endpoint) {
+		this.endpoint = endpoint;
 	}
 
 	/**
-	 * By default,the snapshots are in a tree, not a list. Parsing the tree and
-	 * dumping the snapshots in a list.
 	 * 
-	 * @param vm
-	 * @return
+	 * @return the VCenter session this VM is accessed through.
 	 */
-	private List<VirtualMachineSnapshotTree> getAllSnapshots(VirtualMachine vm) {
-		List<VirtualMachineSnapshotTree> all = new ArrayList<VirtualMachineSnapshotTree>();
-
-		VirtualMachineSnapshotTree[] nodes = vm.getSnapshot().getRootSnapshotList();
-		for (int i = 0; i < nodes.length; i++) {
-			all.add(nodes[i]);
-			addAllDescendant(nodes[i], all);
-		}
-		return all;
+	public ServerConnection getServerConnection() {
+		return vm.getServerConnection();
 	}
 
 	/**
-	 * recursive method to parse the tree and get all the snapshots.
+	 * binds the VM to another VCenter session. The snapshots were bound to the
+	 * old session, they are loaded again.
 	 * 
-	 * @param snapshotNode
-	 * @param all
+	 * @param connection
 	 */
-	private void addAllDescendant(VirtualMachineSnapshotTree snapshotNode, List<VirtualMachineSnapshotTree> all) {
-		VirtualMachineSnapshotTree[] children = snapshotNode.getChildSnapshotList();
-		if (children == null) {
-			return;
-		}
-		for (int i = 0; i < children.length; i++) {
-			all.add(children[i]);
-			addAllDescendant(children[i], all);
-		}
+	public void rebind(ServerConnection connection) {
+		vm = new VirtualMachine(connection, vm.getMOR());
+		invalidateSnapshots();
 	}
 
 	public String getId() {
@@ -144,6 +186,141 @@ public class VirtualMachineWrapper implements Comparable<VirtualMachineWrapper>
 		this.configPath = configPath;
 	}
 
+	/**
+	 * 
+	 * @return the datastore the VM lives on, from the vmx path : [datastore]
+	 *         folder/vm.vmx. Null if the path doesn't follow that format.
+	 */
+	public String getDatastore() {
+		String path = configPath;
+		if (path != null && path.startsWith("[")) {
+			int end = path.indexOf(']');
+			if (end > 0) {
+				return path.substring(1, end);
+			}
+		}
+		return null;
+	}
+
+	public String getHostId() {
+		return hostId;
+	}
+
+	public void setHostId(String hostId) {
+		this.hostId = hostId;
+	}
+
+	/**
+	 * 
+	 * @param key
+	 * @return the value of the vSphere attribute, null if the VM doesn't have
+	 *         it.
+	 */
+	public String getAttribute(String key) {
+		return attributes.get(key);
+	}
+
+	public Map<String, String> getAttributes() {
+		return attributes;
+	}
+
+	public void setAttributes(Map<String, String> attributes) {
+		this.attributes = Collections.unmodifiableMap(new HashMap<String, String>(attributes));
+	}
+
+	/**
+	 * changes one attribute, null to remove it.
+	 * 
+	 * @param key
+	 * @param value
+	 */
+	public synchronized void setAttribute(String key, String value) {
+		Map<String, String> res = new HashMap<String, String>(attributes);
+		if (value == null) {
+			res.remove(key);
+		} else {
+			res.put(key, value);
+		}
+		attributes = Collections.unmodifiableMap(res);
+	}
+
+	/**
+	 * 
+	 * @return the role of the VM in the grid, null if it isn't a node.
+	 */
+	public NodeRole getRole() {
+		return role;
+	}
+
+	public void setRole(NodeRole role) {
+		this.role = role;
+	}
+
+	/**
+	 * 
+	 * @return the capabilities the node gets from its vSphere attributes, on
+	 *         top of the ones it registers with.
+	 */
+	public Map<String, Object> getCapabilities() {
+		return capabilities;
+	}
+
+	public void setCapabilities(Map<String, Object> capabilities) {
+		this.capabilities = capabilities;
+	}
+
+	/**
+	 * 
+	 * @return true if the VM is reserved for the WarmPool, and never used by
+	 *         a node directly.
+	 */
+	public boolean isSpare() {
+		return spare;
+	}
+
+	public void setSpare(boolean spare) {
+		this.spare = spare;
+	}
+
+	public VirtualMachinePowerState getPowerState() {
+		return powerState;
+	}
+
+	public void setPowerState(VirtualMachinePowerState powerState) {
+		this.powerState = powerState;
+	}
+
+	/**
+	 * snapshot tree already fetched from the server. Will be used instead of
+	 * querying the server the next time the snapshots are loaded.
+	 * 
+	 * @param snapshotInfo
+	 */
+	public void setSnapshotInfo(VirtualMachineSnapshotInfo snapshotInfo) {
+		this.snapshotInfo = snapshotInfo;
+	}
+
+	/**
+	 * updates this VM with what was just loaded from VCenter, keeping the
+	 * same object for the proxies already using it. The snapshot tree is
+	 * replaced by the one loaded with the VM.
+	 * 
+	 * @param fresh
+	 *            the same VM, loaded again.
+	 */
+	public void update(VirtualMachineWrapper fresh) {
+		name = fresh.name;
+		configPath = fresh.configPath;
+		ip = fresh.ip;
+		powerState = fresh.powerState;
+		hostId = fresh.hostId;
+		attributes = fresh.attributes;
+		if (fresh.snapshotInfo != null) {
+			snapshotInfo = fresh.snapshotInfo;
+			invalidateSnapshots();
+		}
+	}
+
 	public String getShortStatus() {
 		return shortStatus;
 	}
@@ -162,12 +339,11 @@ public class VirtualMachineWrapper implements Comparable<VirtualMachineWrapper>
 	 * @return the snapshot. Throws a SpineException is no snap
 	 */
 	public SnapshotWrapper getSnapshot(String name) {
-		for (SnapshotWrapper current : getSnapshots()) {
-			if (current.getName().equals(name)) {
-				return current;
-			}
+		SnapshotWrapper res = getSnapshotIndex().get(name);
+		if (res == null) {
+			throw new GridException("Cannot find snapshot " + name + " on VM " + getId());
 		}
-		throw new GridException("Cannot find snapshot " + name + " on VM " + getId());
+		return res;
 	}
 
 	/**
@@ -176,12 +352,7 @@ public class VirtualMachineWrapper implements Comparable<VirtualMachineWrapper>
 	 * @return true if the snapshot exists at least once. False otherwise.
 	 */
 	public boolean snapshotExists(String name) {
-		for (SnapshotWrapper current : getSnapshots()) {
-			if (current.getName().equals(name)) {
-				return true;
-			}
-		}
-		return false;
+		return getSnapshotIndex().indexOf(name) != -1;
 	}
 
 	/**
@@ -190,26 +361,76 @@ public class VirtualMachineWrapper implements Comparable<VirtualMachineWrapper>
 	 * @return
 	 */
 	public List<SnapshotWrapper> getSnapshots() {
-		if (snapshots == null) {
+		return getSnapshotIndex().getSnapshots();
+	}
+
+	/**
+	 * 
+	 * @return the snapshot tree if it's already loaded, null otherwise. Never
+	 *         calls VCenter.
+	 */
+	public SnapshotIndex getLoadedSnapshotIndex() {
+		return snapshots;
+	}
+
+	/**
+	 * get the snapshot tree, flattened and indexed by name. Cached until
+	 * invalidateSnapshots() is called or a snapshot is created.
+	 * 
+	 * @return
+	 */
+	public SnapshotIndex getSnapshotIndex() {
+		SnapshotIndex res = snapshots;
+		if (res == null) {
 			synchronized (this) {
-				if (snapshots == null) {
-					loadSnapshots();
+				res = snapshots;
+				if (res == null) {
+					res = loadSnapshots();
+					snapshots = res;
 				}
 			}
 		}
-		return snapshots;
+		return res;
+	}
+
+	/**
+	 * forces the snapshots to be loaded again next time they are accessed.
+	 */
+	public void invalidateSnapshots() {
+		snapshots = null;
 	}
 
-	public VIX getVIXService() {
+	/**
+	 * @return the reference of the VM on the VCenter server.
+	 */
+	public ManagedObjectReference getMOR() {
+		return vm.getMOR();
+	}
+
+	/**
+	 * 
+	 * @return the VIX service for this VM, created on first access.
+	 */
+	public synchronized VIX getVIXService() {
 		if (VIXService == null) {
 			VIXService = new VIX(this);
 		}
 		return VIXService;
 	}
 
+	/**
+	 * closes the VIX service, if any. It becomes invalid after a revert.
+	 */
+	private synchronized void releaseVIXService() {
+		if (VIXService != null) {
+			VIXService.release();
+		}
+		VIXService = null;
+	}
+
 	/**
 	 * get the IP of the guest using VIX API. Not great, often return the wrong
-	 * IP. Try to use something else if possible.
+	 * IP, and blocks if the VM is down. Use the IpRegistry instead.
 	 * 
 	 * @return
 	 */
@@ -223,6 +444,43 @@ public class VirtualMachineWrapper implements Comparable<VirtualMachineWrapper>
 		return ip;
 	}
 
+	/**
+	 * the IPs of the guest according to the VMWare tools, as reported by
+	 * VSphere. IPv4 first.
+	 * 
+	 * @return the IPs, empty if the tools aren't running.
+	 */
+	public List<String> getGuestIps() {
+		List<String> v4 = new ArrayList<String>();
+		List<String> v6 = new ArrayList<String>();
+		GuestInfo guest = vm.getGuest();
+		if (guest != null) {
+			if (guest.getNet() != null) {
+				for (GuestNicInfo nic : guest.getNet()) {
+					if (nic.getIpAddress() != null) {
+						for (String address : nic.getIpAddress()) {
+							addIp(address, v4, v6);
+						}
+					}
+				}
+			}
+			addIp(guest.getIpAddress(), v4, v6);
+		}
+		v4.addAll(v6);
+		return v4;
+	}
+
+	private static void addIp(String address, List<String> v4, List<String> v6) {
+		if (address == null || "".equals(address.trim()) || v4.contains(address) || v6.contains(address)) {
+			return;
+		}
+		if (address.indexOf(':') == -1) {
+			v4.add(address);
+		} else {
+			v6.add(address);
+		}
+	}
+
 	public void setIp(String ip) {
 		this.ip = ip;
 	}
@@ -233,20 +491,133 @@ public class VirtualMachineWrapper implements Comparable<VirtualMachineWrapper>
 	}
 
 	/**
-	 * Create a snapshot with with the given name. Snapshots the memory.
+	 * 
+	 * @return true if the VM is powered on. Asks the server, doesn't use the
+	 *         cached power state.
+	 */
+	public boolean isPoweredOn() {
+		VirtualMachineRuntimeInfo runtime = vm.getRuntime();
+		powerState = runtime == null ? null : runtime.getPowerState();
+		return powerState == VirtualMachinePowerState.poweredOn;
+	}
+
+	/**
+	 * Powers the VM on, if it's not already on.
+	 */
+	public void powerOn() {
+		if (isPoweredOn()) {
+			return;
+		}
+		try {
+			Task task = vm.powerOnVM_Task(null);
+			String s = task.waitForTask();
+			if (!Task.SUCCESS.equals(s)) {
+				throw new GridException("Error powering on " + name + " -> " + s);
+			}
+			powerState = VirtualMachinePowerState.poweredOn;
+		} catch (GridException e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new GridException("Exception powering on " + name + " : " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Creates a linked clone of this VM, sharing the disks of the given
+	 * snapshot, in the same folder. The clone is powered on.
 	 * 
 	 * @param snapshotName
+	 *            the snapshot the clone starts from.
+	 * @param cloneName
+	 * @return the new VM.
+	 */
+	public VirtualMachineWrapper createLinkedClone(String snapshotName, String cloneName) {
+		SnapshotWrapper snapshot = getSnapshot(snapshotName);
+		try {
+			VirtualMachineRelocateSpec location = new VirtualMachineRelocateSpec();
+			location.setDiskMoveType("createNewChildDiskBacking");
+			VirtualMachineCloneSpec spec = new VirtualMachineCloneSpec();
+			spec.setLocation(location);
+			spec.setSnapshot(snapshot.getMOR());
+			spec.setPowerOn(true);
+			spec.setTemplate(false);
+
+			Task task = vm.cloneVM_Task((Folder) vm.getParent(), cloneName, spec);
+			String s = task.waitForTask();
+			if (!Task.SUCCESS.equals(s)) {
+				throw new GridException("Error cloning " + name + " to " + cloneName + " -> " + s);
+			}
+			ManagedObjectReference mor = (ManagedObjectReference) task.getTaskInfo().getResult();
+			VirtualMachineWrapper clone = new VirtualMachineWrapper(new VirtualMachine(vm.getServerConnection(), mor));
+			clone.setHostId(hostId);
+			clone.setEndpoint(endpoint);
+			clone.setAttributes(attributes);
+			clone.setRole(role);
+			clone.setCapabilities(capabilities);
+			return clone;
+		} catch (GridException e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new GridException("Exception cloning " + name + " to " + cloneName + " : " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Powers the VM off and deletes it from the disk.
 	 */
-	public void createSnapshot(String snapshotName) {
+	public void destroy() {
+		releaseVIXService();
 		try {
-			Task task = vm.createSnapshot_Task(snapshotName, "snapshot by EUQE Spine", true, false);
+			if (isPoweredOn()) {
+				Task off = vm.powerOffVM_Task();
+				off.waitForTask();
+			}
+			Task task = vm.destroy_Task();
 			String s = task.waitForTask();
+			if (!Task.SUCCESS.equals(s)) {
+				throw new GridException("Error destroying " + name + " -> " + s);
+			}
+		} catch (GridException e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new GridException("Exception destroying " + name + " : " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Create a snapshot with with the given name. Snapshots the memory.
+	 * 
+	 * Only the submission of the task is retried : once VCenter accepted it,
+	 * the snapshot may exist even if waiting for the task fails, and a retry
+	 * would create a second snapshot with the same name.
+	 * 
+	 * @param snapshotName
+	 */
+	public void createSnapshot(final String snapshotName) {
+		long start = System.currentTimeMillis();
+		try {
+			Task task = endpoint.getCreateSnapshotPolicy().call(new Callable<Task>() {
+				public Task call() throws Exception {
+					try {
+						return vm.createSnapshot_Task(snapshotName, "snapshot by EUQE Spine", true, false);
+					} catch (Exception e) {
+						endpoint.getSessionManager().check(e);
+						throw e;
+					}
+				}
+			});
+			String s;
+			try {
+				s = task.waitForTask();
+			} finally {
+				// created or not, the snapshots have to be loaded again.
+				snapshots = null;
+			}
 			if (!Task.SUCCESS.equals(s)) {
 				log.error("Error creating the snapshot " + snapshotName + " -> " + s);
 				throw new GridException("Error creating the snapshot " + snapshotName + " -> " + s);
 			}
-			// new snapshot created. Forcing a reload.
-			snapshots = null;
+			Metrics.getInstance().record(Metrics.CREATE_SNAPSHOT, start);
 		} catch (Throwable e) {
 			log.error("Exception creating the snapshot " + snapshotName + " : " + e.getMessage());
 			throw new GridException("Exception creating the snapshot " + snapshotName + " : " + e.getMessage());
@@ -254,7 +625,7 @@ public class VirtualMachineWrapper implements Comparable<VirtualMachineWrapper>
 	}
 
 	/**
-	 * Revert to the first snapshot with the given name. Retries several times
+	 * Revert to the first snapshot with the given name. Retries with a backoff
 	 * before giving up and throwing a GridException.
 	 * 
 	 * @param name
@@ -262,32 +633,23 @@ public class VirtualMachineWrapper implements Comparable<VirtualMachineWrapper>
 	 * 
 	 */
 	public void revertToSnapshot(String name) {
-		// the VIX connection becomes invalid after a snapshot is restored.
-		if (VIXService != null) {
-			VIXService.release();
+		// the VIX connection and the IP become invalid after a snapshot is
+		// restored.
+		releaseVIXService();
+		IpRegistry.getInstance().invalidate(this);
 
-		}
-		VIXService = null;
-
-		SnapshotWrapper s = getSnapshot(name);
-		boolean reverted = false;
-		int tries = 0;
-		int maxTries = 5;
-		while (!reverted && tries <= maxTries) {
-			try {
-				s.revert();
-				reverted = true;
-			} catch (GridException e) {
-				tries++;
-				try {
-					Thread.sleep(5000);
-				} catch (InterruptedException e1) {
-					e1.printStackTrace();
+		getSnapshot(name);
+		final String snapshotName = name;
+		try {
+			endpoint.getRevertPolicy().run(new Runnable() {
+				public void run() {
+					// looked up every time : the snapshots are loaded again
+					// if the session was renewed.
+					getSnapshot(snapshotName).revert();
 				}
-			}
-		}
-		if (!reverted) {
-			throw new GridException("Failed to revert to snapshot " + name + " after " + tries + " tries.");
+			});
+		} catch (GridException e) {
+			throw new GridException("Failed to revert to snapshot " + name + " on VM " + getName() + " : " + e.getMessage(), e);
 		}
 	}
 
@@ -0,0 +1,138 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Access to credentials.properties, where the grid keeps the VCenter login as
+ * well as the tuning of the VMWare related services.
+ * 
+ * @author freynaud
+ * 
+ */
+public class CredentialsProperties {
+
+	private static final Logger log = Logger.getLogger(CredentialsProperties.class);
+
+	private static final String FILE = "credentials.properties";
+
+	public static final String DEFAULT_ENDPOINT = "default";
+
+	private CredentialsProperties() {
+	}
+
+	/**
+	 * 
+	 * @return the content of credentials.properties. Throws a RTE if the file
+	 *         doesn't exist.
+	 */
+	public static Properties load() {
+		Properties properties = new Properties();
+		File f = new File(FILE);
+		if (!f.exists()) {
+			String s = "You need a valid ESX login pass specified in " + FILE;
+			log.error(s);
+			throw new RuntimeException(s);
+		}
+		Reader rdr = null;
+		try {
+			rdr = new FileReader(f);
+			properties.load(rdr);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			if (rdr != null) {
+				try {
+					rdr.close();
+				} catch (IOException e) {
+					log.warn("Error closing " + FILE);
+				}
+			}
+		}
+		return properties;
+	}
+
+	/**
+	 * 
+	 * @param properties
+	 * @return the names listed in endpoints=a,b , or "default" if there is only
+	 *         the one VCenter defined by url, login and pass.
+	 */
+	public static List<String> getEndpointNames(Properties properties) {
+		List<String> res = new ArrayList<String>();
+		String names = properties.getProperty("endpoints");
+		if (names != null) {
+			for (String name : names.split(",")) {
+				if (name.trim().length() > 0) {
+					res.add(name.trim());
+				}
+			}
+		}
+		if (res.isEmpty()) {
+			res.add(DEFAULT_ENDPOINT);
+		}
+		return res;
+	}
+
+	/**
+	 * 
+	 * @param properties
+	 * @param endpoint
+	 * @return the properties, where endpoint.<endpoint>.key overrides key.
+	 *         endpoint.a.url=https://vc-a/sdk for instance.
+	 */
+	public static Properties forEndpoint(Properties properties, String endpoint) {
+		Properties res = new Properties();
+		res.putAll(properties);
+		String prefix = "endpoint." + endpoint + ".";
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith(prefix)) {
+				res.setProperty(key.substring(prefix.length()), properties.getProperty(key));
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * 
+	 * @param properties
+	 * @param key
+	 * @param def
+	 * @return the value for the key, or the default if it's not specified or
+	 *         not a number.
+	 */
+	public static int getInt(Properties properties, String key, int def) {
+		String value = properties.getProperty(key);
+		if (value == null) {
+			return def;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			log.warn(key + "=" + value + " is not a number. Using " + def);
+			return def;
+		}
+	}
+}
@@ -0,0 +1,32 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+/**
+ * A value read when it is asked for, like the size of a pool.
+ * 
+ * @author freynaud
+ * 
+ */
+public abstract class Gauge implements GaugeMBean {
+
+	public abstract long getValue();
+
+	@Override
+	public String toString() {
+		return String.valueOf(getValue());
+	}
+}
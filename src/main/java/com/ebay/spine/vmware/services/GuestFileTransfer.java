@@ -0,0 +1,381 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.log4j.Logger;
+import org.openqa.grid.internal.GridException;
+
+import com.ebay.spine.vmware.model.VirtualMachineWrapper;
+
+/**
+ * Copies whole folders between the host and the guests. A folder is sent as
+ * one compressed archive and extracted in the guest, instead of one VIX call
+ * per file. Transfers to different VMs run in parallel, on
+ * transfer.threads threads ( credentials.properties, default 4 ).
+ * 
+ * @author freynaud
+ * 
+ */
+public class GuestFileTransfer {
+
+	private static final Logger log = Logger.getLogger(GuestFileTransfer.class);
+
+	private static GuestFileTransfer instance = null;
+
+	private final ExecutorService executor;
+
+	/**
+	 * the guest calls a transfer makes.
+	 */
+	interface Guest {
+		void copyToGuest(String hostFile, String guestFile);
+
+		void copyToHost(String guestFile, String hostFile);
+
+		/**
+		 * 
+		 * @param interpreter
+		 * @param command
+		 * @return the exit code of the command.
+		 */
+		int run(String interpreter, String command);
+	}
+
+	/**
+	 * the guest calls made with VIX, under the guest login of the VM.
+	 */
+	private static class VixGuest implements Guest {
+		private final VIX vix;
+
+		VixGuest(VIX vix) {
+			this.vix = vix;
+		}
+
+		public void copyToGuest(String hostFile, String guestFile) {
+			vix.copyFileFromHostToGuest(hostFile, guestFile);
+		}
+
+		public void copyToHost(String guestFile, String hostFile) {
+			vix.copyFileFromGuestToHost(guestFile, hostFile);
+		}
+
+		public int run(String interpreter, String command) {
+			return vix.runProgramInGuest(interpreter, command, false);
+		}
+	}
+
+	private final AtomicLong transfers = new AtomicLong();
+	private final AtomicLong totalBytes = new AtomicLong();
+	private final AtomicLong totalTime = new AtomicLong();
+
+	public static synchronized GuestFileTransfer getInstance() {
+		if (instance == null) {
+			instance = new GuestFileTransfer(CredentialsProperties.getInt(CredentialsProperties.load(), "transfer.threads", 4));
+		}
+		return instance;
+	}
+
+	public GuestFileTransfer(int threads) {
+		executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "guest-transfer-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * copies the content of the local folder to the guest folder of each VM,
+	 * in parallel. The archive is built once for all the VMs.
+	 * 
+	 * @param vms
+	 * @param localFolder
+	 * @param guestFolder
+	 * @return the transfer for each VM. Future.get() throws if that transfer
+	 *         failed.
+	 */
+	public Map<VirtualMachineWrapper, Future<Long>> push(List<VirtualMachineWrapper> vms, File localFolder, final String guestFolder) {
+		final File archive = bundle(localFolder);
+		final AtomicInteger remaining = new AtomicInteger(vms.size());
+		Map<VirtualMachineWrapper, Future<Long>> res = new LinkedHashMap<VirtualMachineWrapper, Future<Long>>();
+		for (final VirtualMachineWrapper vm : vms) {
+			res.put(vm, executor.submit(new Callable<Long>() {
+				public Long call() {
+					try {
+						return pushArchive(vm, archive, guestFolder);
+					} finally {
+						if (remaining.decrementAndGet() == 0) {
+							archive.delete();
+						}
+					}
+				}
+			}));
+		}
+		if (vms.isEmpty()) {
+			archive.delete();
+		}
+		return res;
+	}
+
+	/**
+	 * copies the content of the local folder to the guest folder.
+	 * 
+	 * @param vm
+	 * @param localFolder
+	 * @param guestFolder
+	 * @return the size of the archive sent, in bytes.
+	 */
+	public long push(VirtualMachineWrapper vm, File localFolder, String guestFolder) {
+		File archive = bundle(localFolder);
+		try {
+			return pushArchive(vm, archive, guestFolder);
+		} finally {
+			archive.delete();
+		}
+	}
+
+	/**
+	 * 
+	 * @param vm
+	 * @return the guest of the VM the files are copied to and from.
+	 */
+	Guest guestOf(VirtualMachineWrapper vm) {
+		return new VixGuest(vm.getVIXService());
+	}
+
+	private long pushArchive(VirtualMachineWrapper vm, File archive, String guestFolder) {
+		long start = System.currentTimeMillis();
+		GuestOs os = GuestOs.forRole(vm.getRole());
+		String guestArchive = os.getTempFolder() + archive.getName();
+		Guest guest = guestOf(vm);
+		guest.copyToGuest(archive.getAbsolutePath(), guestArchive);
+		int exit = guest.run(os.getInterpreter(), os.getUnpackCommand(guestArchive, guestFolder));
+		if (exit != 0) {
+			throw new GridException("Error extracting " + guestArchive + " to " + guestFolder + " on " + vm.getName() + " : " + exit);
+		}
+		record(vm, "to", archive.length(), System.currentTimeMillis() - start);
+		return archive.length();
+	}
+
+	/**
+	 * copies the content of the guest folders of each VM in a local folder
+	 * named after the VM, in parallel.
+	 * 
+	 * @param vms
+	 * @param guestFolder
+	 * @param localFolder
+	 * @return the transfer for each VM.
+	 */
+	public Map<VirtualMachineWrapper, Future<Long>> pull(List<VirtualMachineWrapper> vms, final String guestFolder, final File localFolder) {
+		Map<VirtualMachineWrapper, Future<Long>> res = new LinkedHashMap<VirtualMachineWrapper, Future<Long>>();
+		for (final VirtualMachineWrapper vm : vms) {
+			res.put(vm, executor.submit(new Callable<Long>() {
+				public Long call() {
+					return pull(vm, guestFolder, new File(localFolder, vm.getName()));
+				}
+			}));
+		}
+		return res;
+	}
+
+	/**
+	 * copies the content of the guest folder to the local folder.
+	 * 
+	 * @param vm
+	 * @param guestFolder
+	 * @param localFolder
+	 * @return the size of the archive received, in bytes.
+	 */
+	public long pull(VirtualMachineWrapper vm, String guestFolder, File localFolder) {
+		long start = System.currentTimeMillis();
+		GuestOs os = GuestOs.forRole(vm.getRole());
+		File archive = tempArchive();
+		String guestArchive = os.getTempFolder() + archive.getName();
+		Guest guest = guestOf(vm);
+		try {
+			int exit = guest.run(os.getInterpreter(), os.getPackCommand(guestArchive, guestFolder));
+			if (exit != 0) {
+				throw new GridException("Error archiving " + guestFolder + " on " + vm.getName() + " : " + exit);
+			}
+			guest.copyToHost(guestArchive, archive.getAbsolutePath());
+			guest.run(os.getInterpreter(), os.getDeleteCommand(guestArchive));
+			extract(archive, localFolder);
+			long size = archive.length();
+			record(vm, "from", size, System.currentTimeMillis() - start);
+			return size;
+		} finally {
+			archive.delete();
+		}
+	}
+
+	private void record(VirtualMachineWrapper vm, String direction, long bytes, long elapsed) {
+		transfers.incrementAndGet();
+		totalBytes.addAndGet(bytes);
+		totalTime.addAndGet(elapsed);
+		log.debug(bytes + " bytes copied " + direction + " " + vm.getName() + " in " + elapsed + "ms.");
+	}
+
+	private static File tempArchive() {
+		try {
+			return File.createTempFile("spine-transfer-", ".zip");
+		} catch (IOException e) {
+			throw new GridException("Cannot create a temporary archive : " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * 
+	 * @param folder
+	 * @return a zip archive with the content of the folder.
+	 */
+	static File bundle(File folder) {
+		if (!folder.isDirectory()) {
+			throw new GridException(folder + " is not a folder.");
+		}
+		File archive = tempArchive();
+		ZipOutputStream zip = null;
+		try {
+			zip = new ZipOutputStream(new FileOutputStream(archive));
+			add(zip, folder, "");
+		} catch (IOException e) {
+			archive.delete();
+			throw new GridException("Error archiving " + folder + " : " + e.getMessage(), e);
+		} finally {
+			close(zip);
+		}
+		return archive;
+	}
+
+	private static void add(ZipOutputStream zip, File file, String path) throws IOException {
+		File[] children = file.listFiles();
+		if (children == null) {
+			return;
+		}
+		byte[] buffer = new byte[64 * 1024];
+		for (File child : children) {
+			String name = path + child.getName();
+			if (child.isDirectory()) {
+				zip.putNextEntry(new ZipEntry(name + "/"));
+				zip.closeEntry();
+				add(zip, child, name + "/");
+			} else {
+				zip.putNextEntry(new ZipEntry(name));
+				InputStream in = new FileInputStream(child);
+				try {
+					int read;
+					while ((read = in.read(buffer)) != -1) {
+						zip.write(buffer, 0, read);
+					}
+				} finally {
+					close(in);
+				}
+				zip.closeEntry();
+			}
+		}
+	}
+
+	static void extract(File archive, File folder) {
+		ZipInputStream zip = null;
+		try {
+			String root = folder.getCanonicalPath() + File.separator;
+			zip = new ZipInputStream(new FileInputStream(archive));
+			byte[] buffer = new byte[64 * 1024];
+			ZipEntry entry;
+			while ((entry = zip.getNextEntry()) != null) {
+				File target = new File(folder, entry.getName());
+				if (!target.getCanonicalPath().startsWith(root)) {
+					throw new IOException(entry.getName() + " is outside of " + folder);
+				}
+				if (entry.isDirectory()) {
+					target.mkdirs();
+					continue;
+				}
+				target.getParentFile().mkdirs();
+				FileOutputStream out = new FileOutputStream(target);
+				try {
+					int read;
+					while ((read = zip.read(buffer)) != -1) {
+						out.write(buffer, 0, read);
+					}
+				} finally {
+					close(out);
+				}
+			}
+		} catch (IOException e) {
+			throw new GridException("Error extracting " + archive + " to " + folder + " : " + e.getMessage(), e);
+		} finally {
+			close(zip);
+		}
+	}
+
+	private static void close(java.io.Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+				log.warn("Error closing " + c + " : " + e.getMessage());
+			}
+		}
+	}
+
+	public long getTransfers() {
+		return transfers.get();
+	}
+
+	public long getTotalBytes() {
+		return totalBytes.get();
+	}
+
+	/**
+	 * 
+	 * @return the average time per transfer, in ms.
+	 */
+	public long getAverageLatency() {
+		long count = transfers.get();
+		return count == 0 ? 0 : totalTime.get() / count;
+	}
+
+	/**
+	 * 
+	 * @return the average throughput, in bytes per second.
+	 */
+	public long getThroughput() {
+		long time = totalTime.get();
+		return time == 0 ? 0 : totalBytes.get() * 1000 / time;
+	}
+}
@@ -0,0 +1,96 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+/**
+ * How to run scripts and handle archives on the guest OS of a node.
+ * 
+ * @author freynaud
+ * 
+ */
+public enum GuestOs {
+
+	LINUX("/bin/bash", "/tmp/", "rm -f '%1$s'", "mkdir -p '%2$s' && unzip -o -q '%1$s' -d '%2$s' && rm -f '%1$s'",
+			"cd '%2$s' && rm -f '%1$s' && zip -r -q '%1$s' ."),
+
+	// CopyHere returns before the copy is done : waiting for the files to be
+	// there before deleting the archive, for 5 minutes at most.
+	WINDOWS("cmd.exe", "c:\\windows\\temp\\", "del /f /q \"%1$s\"",
+			"powershell -NoProfile -Command \"New-Item -ItemType Directory -Force -Path '%2$s' | Out-Null; $s = New-Object -ComObject Shell.Application; $i = $s.NameSpace('%1$s').Items(); $s.NameSpace('%2$s').CopyHere($i, 0x14); $n = 0; foreach ($x in $i) { while (-not (Test-Path -LiteralPath (Join-Path '%2$s' (Split-Path $x.Path -Leaf))) -and $n -lt 1500) { Start-Sleep -m 200; $n++ } }; if ($n -ge 1500) { exit 1 }; Remove-Item '%1$s'\"",
+			"powershell -NoProfile -Command \"Set-Content '%1$s' ('PK' + [char]5 + [char]6 + ([string][char]0 * 18)); $s = New-Object -ComObject Shell.Application; $z = $s.NameSpace('%1$s'); $i = $s.NameSpace('%2$s').Items(); $z.CopyHere($i, 0x14); while ($z.Items().Count -lt $i.Count) { Start-Sleep -m 200 }\"");
+
+	private final String interpreter;
+	private final String tempFolder;
+	private final String delete;
+	private final String unpack;
+	private final String pack;
+
+	private GuestOs(String interpreter, String tempFolder, String delete, String unpack, String pack) {
+		this.interpreter = interpreter;
+		this.tempFolder = tempFolder;
+		this.delete = delete;
+		this.unpack = unpack;
+		this.pack = pack;
+	}
+
+	public String getInterpreter() {
+		return interpreter;
+	}
+
+	public String getTempFolder() {
+		return tempFolder;
+	}
+
+	/**
+	 * 
+	 * @param file
+	 * @return the command deleting the file.
+	 */
+	public String getDeleteCommand(String file) {
+		return String.format(delete, file);
+	}
+
+	/**
+	 * 
+	 * @param archive
+	 * @param folder
+	 * @return the command extracting the zip archive in the folder, and
+	 *         deleting the archive.
+	 */
+	public String getUnpackCommand(String archive, String folder) {
+		return String.format(unpack, archive, folder);
+	}
+
+	/**
+	 * 
+	 * @param archive
+	 * @param folder
+	 * @return the command creating the zip archive with the content of the
+	 *         folder.
+	 */
+	public String getPackCommand(String archive, String folder) {
+		return String.format(pack, archive, folder);
+	}
+
+	/**
+	 * 
+	 * @param role
+	 * @return the OS of the nodes with that role.
+	 */
+	public static GuestOs forRole(NodeRole role) {
+		return role == NodeRole.WINDOWS ? WINDOWS : LINUX;
+	}
+}
@@ -0,0 +1,57 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+/**
+ * Something a VM did wrong. Each kind weighs on the health score of the VM (
+ * see HealthMonitor ).
+ * 
+ * @author freynaud
+ * 
+ */
+public enum HealthEvent {
+
+	// the session couldn't be released properly.
+	RELEASE_FAILURE(2),
+	// the session timed out on the node.
+	SESSION_TIMEOUT(1),
+	// a VIX operation in the guest failed.
+	VIX_ERROR(0.5),
+	// the VM couldn't be reverted.
+	REVERT_FAILURE(3);
+
+	private final double weight;
+
+	private HealthEvent(double weight) {
+		this.weight = weight;
+	}
+
+	/**
+	 * 
+	 * @return the weight used when health.weight.[event] isn't specified.
+	 */
+	public double getDefaultWeight() {
+		return weight;
+	}
+
+	/**
+	 * 
+	 * @return the name used in the config and the metrics.
+	 */
+	public String getKey() {
+		return name().toLowerCase();
+	}
+}
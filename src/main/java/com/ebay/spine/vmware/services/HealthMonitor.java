@@ -0,0 +1,244 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.ebay.spine.vmware.model.VirtualMachineWrapper;
+
+/**
+ * Health score of each VM, from the problems it had recently. Each problem
+ * adds its weight to the score, and the score halves every health.halfLife
+ * ms, so a VM that stops failing gets healthy again on its own. A VM whose
+ * score reaches health.threshold is unhealthy : its node is quarantined ( see
+ * VirtualMachineRemoteProxy ).
+ * 
+ * Configured in credentials.properties :
+ * 
+ * health.threshold : default 5.
+ * 
+ * health.halfLife : default 1800000 ( 30 min ).
+ * 
+ * health.weight.[event] : weight of each kind of problem ( see HealthEvent ).
+ * 
+ * The scores are in JMX under com.ebay.spine:type=Health, and in the JSON of
+ * the MetricsServlet.
+ * 
+ * @author freynaud
+ * 
+ */
+public class HealthMonitor implements HealthMonitorMBean {
+
+	private static final Logger log = Logger.getLogger(HealthMonitor.class);
+
+	private static HealthMonitor instance = null;
+
+	private final Clock clock;
+	private final double threshold;
+	private final long halfLife;
+	private final double[] weights = new double[HealthEvent.values().length];
+	// by VM id.
+	private final ConcurrentMap<String, Score> scores = new ConcurrentHashMap<String, Score>();
+
+	public static synchronized HealthMonitor getInstance() {
+		if (instance == null) {
+			instance = new HealthMonitor(Clock.SYSTEM, CredentialsProperties.load());
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName("com.ebay.spine:type=Health"));
+			} catch (JMException e) {
+				log.warn("Cannot register the health scores in JMX : " + e.getMessage());
+			}
+		}
+		return instance;
+	}
+
+	public HealthMonitor(Clock clock, Properties properties) {
+		this.clock = clock;
+		threshold = Double.parseDouble(properties.getProperty("health.threshold", "5"));
+		halfLife = Math.max(1, CredentialsProperties.getInt(properties, "health.halfLife", 1800000));
+		for (HealthEvent event : HealthEvent.values()) {
+			String weight = properties.getProperty("health.weight." + event.getKey());
+			weights[event.ordinal()] = weight == null ? event.getDefaultWeight() : Double.parseDouble(weight);
+		}
+	}
+
+	/**
+	 * the VM had a problem.
+	 * 
+	 * @param vm
+	 * @param event
+	 * @return the score of the VM, with that problem.
+	 */
+	public double record(VirtualMachineWrapper vm, HealthEvent event) {
+		Score score = scores.get(vm.getId());
+		if (score == null) {
+			Score created = new Score(vm.getName());
+			score = scores.putIfAbsent(vm.getId(), created);
+			if (score == null) {
+				score = created;
+			}
+		}
+		Metrics.getInstance().increment("health." + event.getKey());
+		double res = score.add(event, clock.now());
+		log.debug(vm.getName() + " : " + event + ", health score " + res);
+		return res;
+	}
+
+	/**
+	 * 
+	 * @param vm
+	 * @return the current score of the VM, 0 if it never had a problem.
+	 */
+	public double getScore(VirtualMachineWrapper vm) {
+		Score score = scores.get(vm.getId());
+		return score == null ? 0 : score.get(clock.now());
+	}
+
+	/**
+	 * cheap enough to be called for every new session : the score is only
+	 * computed again when its last value was above the threshold.
+	 * 
+	 * @param vm
+	 * @return true if the score of the VM is above the threshold.
+	 */
+	public boolean isUnhealthy(VirtualMachineWrapper vm) {
+		Score score = scores.get(vm.getId());
+		if (score == null || score.last < threshold) {
+			return false;
+		}
+		return score.get(clock.now()) >= threshold;
+	}
+
+	/**
+	 * forgets the problems of the VM, once it is known to work again.
+	 * 
+	 * @param vm
+	 */
+	public void reset(VirtualMachineWrapper vm) {
+		scores.remove(vm.getId());
+	}
+
+	public double getThreshold() {
+		return threshold;
+	}
+
+	public Map<String, Double> getScores() {
+		Map<String, Double> res = new TreeMap<String, Double>();
+		long now = clock.now();
+		for (Score score : scores.values()) {
+			res.put(score.name, score.get(now));
+		}
+		return res;
+	}
+
+	public int getUnhealthyCount() {
+		int res = 0;
+		long now = clock.now();
+		for (Score score : scores.values()) {
+			if (score.get(now) >= threshold) {
+				res++;
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * 
+	 * @return the score of each VM that had a problem, and what weighs on it.
+	 * @throws JSONException
+	 */
+	public JSONObject toJSON() throws JSONException {
+		JSONObject res = new JSONObject();
+		res.put("threshold", threshold);
+		JSONObject vms = new JSONObject();
+		long now = clock.now();
+		for (Score score : scores.values()) {
+			vms.put(score.name, score.toJSON(now));
+		}
+		res.put("vms", vms);
+		return res;
+	}
+
+	/**
+	 * decaying count of each kind of problem of a VM.
+	 */
+	private class Score {
+		private final String name;
+		private final double[] counts = new double[weights.length];
+		private long time;
+		// score at the last change, never below the current one.
+		private volatile double last = 0;
+
+		Score(String name) {
+			this.name = name;
+			this.time = clock.now();
+		}
+
+		synchronized double add(HealthEvent event, long now) {
+			decay(now);
+			counts[event.ordinal()]++;
+			last = score();
+			return last;
+		}
+
+		synchronized double get(long now) {
+			decay(now);
+			last = score();
+			return last;
+		}
+
+		synchronized JSONObject toJSON(long now) throws JSONException {
+			decay(now);
+			JSONObject res = new JSONObject();
+			res.put("score", score());
+			for (HealthEvent event : HealthEvent.values()) {
+				res.put(event.getKey(), counts[event.ordinal()]);
+			}
+			return res;
+		}
+
+		private void decay(long now) {
+			long dt = now - time;
+			if (dt > 0) {
+				double factor = Math.pow(0.5, (double) dt / halfLife);
+				for (int i = 0; i < counts.length; i++) {
+					counts[i] *= factor;
+				}
+				time = now;
+			}
+		}
+
+		private double score() {
+			double res = 0;
+			for (int i = 0; i < counts.length; i++) {
+				res += weights[i] * counts[i];
+			}
+			return res;
+		}
+	}
+}
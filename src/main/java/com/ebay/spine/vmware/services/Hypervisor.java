@@ -0,0 +1,42 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+/**
+ * Holds the backend the grid uses. VSphere unless another one is set before
+ * the first proxy registers.
+ * 
+ * @author freynaud
+ * 
+ */
+public class Hypervisor {
+
+	private static HypervisorBackend backend = null;
+
+	private Hypervisor() {
+	}
+
+	public static synchronized HypervisorBackend getBackend() {
+		if (backend == null) {
+			backend = new VSphereBackend(VirtualMachinePool.getInstance());
+		}
+		return backend;
+	}
+
+	public static synchronized void setBackend(HypervisorBackend backend) {
+		Hypervisor.backend = backend;
+	}
+}
@@ -0,0 +1,103 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import java.util.List;
+
+import com.ebay.spine.vmware.model.SnapshotIndex;
+import com.ebay.spine.vmware.model.VirtualMachineWrapper;
+
+/**
+ * What the grid needs from the hypervisor : the inventory, the snapshots, the
+ * power state and running things in the guest. The proxies, the warm pool
+ * and the recycling only go through this, so that they can run against a
+ * simulator ( see sim.SimulatedBackend ) as well as VSphere.
+ * 
+ * Every method can throw a GridException when the hypervisor fails.
+ * 
+ * @author freynaud
+ * 
+ */
+public interface HypervisorBackend {
+
+	/**
+	 * 
+	 * @param id
+	 * @return the VM with that id. Throws a RTE if there is none.
+	 */
+	VirtualMachineWrapper getVMById(String id);
+
+	/**
+	 * 
+	 * @param role
+	 * @return the VMs usable as grid nodes for the role.
+	 */
+	List<VirtualMachineWrapper> getNodeVMs(NodeRole role);
+
+	boolean snapshotExists(VirtualMachineWrapper vm, String snapshot);
+
+	/**
+	 * blocks until the VM is reverted.
+	 */
+	void revertToSnapshot(VirtualMachineWrapper vm, String snapshot);
+
+	void createSnapshot(VirtualMachineWrapper vm, String snapshot);
+
+	/**
+	 * 
+	 * @return the snapshot tree of the VM.
+	 */
+	SnapshotIndex getSnapshots(VirtualMachineWrapper vm);
+
+	/**
+	 * removes the first snapshot with that name. Its disk changes are merged
+	 * into its children.
+	 */
+	void deleteSnapshot(VirtualMachineWrapper vm, String snapshot);
+
+	/**
+	 * renames the first snapshot with that name.
+	 */
+	void renameSnapshot(VirtualMachineWrapper vm, String snapshot, String newName);
+
+	void powerOn(VirtualMachineWrapper vm);
+
+	boolean isPoweredOn(VirtualMachineWrapper vm);
+
+	/**
+	 * 
+	 * @return the exit code of the command.
+	 */
+	int runProgramInGuest(VirtualMachineWrapper vm, String interpreter, String command);
+
+	/**
+	 * 
+	 * @return true if the guest OS is up and the tools answer.
+	 */
+	boolean isGuestReady(VirtualMachineWrapper vm);
+
+	/**
+	 * 
+	 * @return the IPs of the guest, IPv4 first. Not checked. See IpRegistry.
+	 */
+	List<String> getGuestIps(VirtualMachineWrapper vm);
+
+	/**
+	 * 
+	 * @return true if something answers on that port of the guest.
+	 */
+	boolean isReachable(VirtualMachineWrapper vm, int port);
+}
@@ -0,0 +1,427 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.ebay.spine.vmware.model.SnapshotIndex;
+import com.ebay.spine.vmware.model.SnapshotWrapper;
+import com.ebay.spine.vmware.model.VirtualMachineWrapper;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.VirtualMachineSnapshotInfo;
+import com.vmware.vim25.VirtualMachineSnapshotTree;
+import com.vmware.vim25.mo.ServerConnection;
+import com.vmware.vim25.mo.VirtualMachine;
+
+/**
+ * The last known inventory, on disk, so that a restarted hub can register its
+ * nodes without waiting for VCenter. Only a hint : the pool checks it against
+ * VCenter in the background after a warm start.
+ * 
+ * The file is a log of records appended when a VM changes : the whole VM, or
+ * its removal. The last record of a VM wins. The log is rewritten with one
+ * record per VM when it gets too long. A record cut by a crash ends the log.
+ * 
+ * @author freynaud
+ * 
+ */
+public class InventoryCache {
+
+	private static final Logger log = Logger.getLogger(InventoryCache.class);
+
+	private static final int MAGIC = 0x5350494e;
+	private static final int VERSION = 1;
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+
+	private final File file;
+	private DataOutputStream out = null;
+	// last record written per endpoint and VM id, to only append changes.
+	private final Map<String, Map<String, byte[]>> written = new HashMap<String, Map<String, byte[]>>();
+	private int records = 0;
+
+	public InventoryCache(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * 
+	 * @return the VMs in the cache by endpoint name, empty if there is no
+	 *         valid cache.
+	 */
+	public synchronized Map<String, List<Entry>> read() {
+		written.clear();
+		records = 0;
+		if (!file.exists()) {
+			return new HashMap<String, List<Entry>>();
+		}
+		Map<String, Map<String, byte[]>> res = new HashMap<String, Map<String, byte[]>>();
+		boolean incomplete = false;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				log.warn(file + " isn't an inventory cache this version can read. Ignoring it.");
+				return new HashMap<String, List<Entry>>();
+			}
+			while (true) {
+				byte op;
+				try {
+					op = in.readByte();
+				} catch (EOFException e) {
+					break;
+				}
+				String endpoint = in.readUTF();
+				String id = in.readUTF();
+				Map<String, byte[]> vms = res.get(endpoint);
+				if (vms == null) {
+					vms = new LinkedHashMap<String, byte[]>();
+					res.put(endpoint, vms);
+				}
+				if (op == PUT) {
+					byte[] data = new byte[in.readInt()];
+					in.readFully(data);
+					vms.put(id, data);
+				} else {
+					vms.remove(id);
+				}
+				records++;
+			}
+		} catch (EOFException e) {
+			log.warn("The last record of " + file + " is incomplete. Ignoring it.");
+			incomplete = true;
+		} catch (IOException e) {
+			log.warn("Cannot read the inventory cache " + file + " : " + e.getMessage());
+			return new HashMap<String, List<Entry>>();
+		} finally {
+			close(in);
+		}
+
+		Map<String, List<Entry>> entries = new HashMap<String, List<Entry>>();
+		for (Map.Entry<String, Map<String, byte[]>> e : res.entrySet()) {
+			List<Entry> list = new ArrayList<Entry>();
+			for (Map.Entry<String, byte[]> vm : e.getValue().entrySet()) {
+				try {
+					list.add(Entry.decode(e.getKey(), vm.getKey(), vm.getValue()));
+				} catch (IOException ex) {
+					log.warn("Invalid cache entry for " + vm.getKey() + ". Ignoring it.");
+				}
+			}
+			entries.put(e.getKey(), list);
+		}
+		written.putAll(res);
+		if (incomplete) {
+			// nothing can be appended after a cut record.
+			try {
+				compact();
+			} catch (IOException e) {
+				log.warn("Cannot rewrite the inventory cache " + file + " : " + e.getMessage());
+				file.delete();
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * records the current VMs of an endpoint. Only the VMs that changed since
+	 * the last update are appended.
+	 * 
+	 * @param endpoint
+	 * @param vms
+	 */
+	public synchronized void update(String endpoint, Collection<VirtualMachineWrapper> vms) {
+		Map<String, byte[]> previous = written.get(endpoint);
+		if (previous == null) {
+			previous = new LinkedHashMap<String, byte[]>();
+			written.put(endpoint, previous);
+		}
+		try {
+			Set<String> ids = new HashSet<String>();
+			for (VirtualMachineWrapper vm : vms) {
+				ids.add(vm.getId());
+				byte[] data = Entry.encode(vm);
+				if (!Arrays.equals(data, previous.get(vm.getId()))) {
+					append(PUT, endpoint, vm.getId(), data);
+					previous.put(vm.getId(), data);
+				}
+			}
+			for (String id : new ArrayList<String>(previous.keySet())) {
+				if (!ids.contains(id)) {
+					append(REMOVE, endpoint, id, null);
+					previous.remove(id);
+				}
+			}
+			out.flush();
+			if (records > 2 * size() + 100) {
+				compact();
+			}
+		} catch (IOException e) {
+			log.warn("Cannot update the inventory cache " + file + " : " + e.getMessage());
+			close(out);
+			out = null;
+		}
+	}
+
+	private int size() {
+		int res = 0;
+		for (Map<String, byte[]> vms : written.values()) {
+			res += vms.size();
+		}
+		return res;
+	}
+
+	private void append(byte op, String endpoint, String id, byte[] data) throws IOException {
+		if (out == null) {
+			boolean created = !file.exists() || file.length() == 0;
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+			if (created) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+			}
+		}
+		writeRecord(out, op, endpoint, id, data);
+		records++;
+	}
+
+	private static void writeRecord(DataOutputStream out, byte op, String endpoint, String id, byte[] data) throws IOException {
+		out.writeByte(op);
+		out.writeUTF(endpoint);
+		out.writeUTF(id);
+		if (op == PUT) {
+			out.writeInt(data.length);
+			out.write(data);
+		}
+	}
+
+	/**
+	 * rewrites the log with one record per VM. The new log replaces the old
+	 * one only once it's complete.
+	 */
+	public synchronized void compact() throws IOException {
+		close(out);
+		out = null;
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream compacted = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			compacted.writeInt(MAGIC);
+			compacted.writeInt(VERSION);
+			for (Map.Entry<String, Map<String, byte[]>> e : written.entrySet()) {
+				for (Map.Entry<String, byte[]> vm : e.getValue().entrySet()) {
+					writeRecord(compacted, PUT, e.getKey(), vm.getKey(), vm.getValue());
+				}
+			}
+		} finally {
+			compacted.close();
+		}
+		if (!tmp.renameTo(file)) {
+			// renameTo doesn't replace an existing file everywhere.
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Cannot replace " + file + " by " + tmp);
+			}
+		}
+		records = size();
+	}
+
+	public synchronized void close() {
+		close(out);
+		out = null;
+	}
+
+	private static void close(Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+				log.debug("error closing the inventory cache", e);
+			}
+		}
+	}
+
+	/**
+	 * what the cache knows about a VM.
+	 */
+	public static class Entry {
+		private final String endpoint;
+		private final String id;
+		private String mor;
+		private String name;
+		private String configPath;
+		private String ip;
+		private String hostId;
+		private final Map<String, String> attributes = new HashMap<String, String>();
+		// flattened snapshot tree, null if the snapshots weren't loaded.
+		private String[] snapshotNames = null;
+		private String[] snapshotMors = null;
+		private int[] snapshotParents = null;
+
+		private Entry(String endpoint, String id) {
+			this.endpoint = endpoint;
+			this.id = id;
+		}
+
+		static byte[] encode(VirtualMachineWrapper vm) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeUTF(vm.getMOR().get_value());
+			out.writeUTF(vm.getName());
+			out.writeUTF(vm.getConfigPath());
+			writeNullable(out, vm.getIp());
+			writeNullable(out, vm.getHostId());
+			Map<String, String> attributes = vm.getAttributes();
+			out.writeInt(attributes.size());
+			for (Map.Entry<String, String> e : attributes.entrySet()) {
+				out.writeUTF(e.getKey());
+				out.writeUTF(e.getValue());
+			}
+			SnapshotIndex snapshots = vm.getLoadedSnapshotIndex();
+			if (snapshots == null) {
+				out.writeInt(-1);
+			} else {
+				out.writeInt(snapshots.size());
+				for (int i = 0; i < snapshots.size(); i++) {
+					SnapshotWrapper snapshot = snapshots.getSnapshots().get(i);
+					writeNullable(out, snapshot.getName());
+					out.writeUTF(snapshot.getMOR().get_value());
+					out.writeInt(snapshots.getParent(i));
+				}
+			}
+			out.flush();
+			return bytes.toByteArray();
+		}
+
+		static Entry decode(String endpoint, String id, byte[] data) throws IOException {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+			Entry res = new Entry(endpoint, id);
+			res.mor = in.readUTF();
+			res.name = in.readUTF();
+			res.configPath = in.readUTF();
+			res.ip = readNullable(in);
+			res.hostId = readNullable(in);
+			int attributes = in.readInt();
+			for (int i = 0; i < attributes; i++) {
+				res.attributes.put(in.readUTF(), in.readUTF());
+			}
+			int snapshots = in.readInt();
+			if (snapshots >= 0) {
+				res.snapshotNames = new String[snapshots];
+				res.snapshotMors = new String[snapshots];
+				res.snapshotParents = new int[snapshots];
+				for (int i = 0; i < snapshots; i++) {
+					res.snapshotNames[i] = readNullable(in);
+					res.snapshotMors[i] = in.readUTF();
+					res.snapshotParents[i] = in.readInt();
+				}
+			}
+			return res;
+		}
+
+		private static void writeNullable(DataOutputStream out, String s) throws IOException {
+			out.writeBoolean(s != null);
+			if (s != null) {
+				out.writeUTF(s);
+			}
+		}
+
+		private static String readNullable(DataInputStream in) throws IOException {
+			return in.readBoolean() ? in.readUTF() : null;
+		}
+
+		/**
+		 * 
+		 * @param connection
+		 *            the VCenter session the VM will use.
+		 * @return the VM as it was when it was cached. Its snapshot tree is
+		 *         known without calling VCenter if it was cached.
+		 */
+		public VirtualMachineWrapper toWrapper(ServerConnection connection) {
+			VirtualMachineWrapper res = new VirtualMachineWrapper(new VirtualMachine(connection, toMOR("VirtualMachine", mor)), id, name,
+					configPath);
+			res.setIp(ip);
+			res.setHostId(hostId);
+			res.setAttributes(attributes);
+			if (snapshotNames != null) {
+				res.setSnapshotInfo(toSnapshotInfo());
+			}
+			return res;
+		}
+
+		/**
+		 * rebuilds the tree from the flattened one. Parents always come
+		 * before their children.
+		 */
+		private VirtualMachineSnapshotInfo toSnapshotInfo() {
+			int n = snapshotNames.length;
+			VirtualMachineSnapshotTree[] nodes = new VirtualMachineSnapshotTree[n];
+			List<List<VirtualMachineSnapshotTree>> children = new ArrayList<List<VirtualMachineSnapshotTree>>(n);
+			List<VirtualMachineSnapshotTree> roots = new ArrayList<VirtualMachineSnapshotTree>();
+			for (int i = 0; i < n; i++) {
+				nodes[i] = new VirtualMachineSnapshotTree();
+				nodes[i].setName(snapshotNames[i]);
+				nodes[i].setSnapshot(toMOR("VirtualMachineSnapshot", snapshotMors[i]));
+				children.add(new ArrayList<VirtualMachineSnapshotTree>());
+				if (snapshotParents[i] == -1) {
+					roots.add(nodes[i]);
+				} else {
+					children.get(snapshotParents[i]).add(nodes[i]);
+				}
+			}
+			for (int i = 0; i < n; i++) {
+				nodes[i].setChildSnapshotList(children.get(i).toArray(new VirtualMachineSnapshotTree[0]));
+			}
+			VirtualMachineSnapshotInfo res = new VirtualMachineSnapshotInfo();
+			res.setRootSnapshotList(roots.toArray(new VirtualMachineSnapshotTree[0]));
+			return res;
+		}
+
+		private static ManagedObjectReference toMOR(String type, String value) {
+			ManagedObjectReference res = new ManagedObjectReference();
+			res.setType(type);
+			res.set_value(value);
+			return res;
+		}
+
+		public String getEndpoint() {
+			return endpoint;
+		}
+
+		public String getId() {
+			return id;
+		}
+	}
+}
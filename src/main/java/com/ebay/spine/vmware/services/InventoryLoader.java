@@ -0,0 +1,393 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.ebay.spine.vmware.model.VirtualMachineWrapper;
+import com.vmware.vim25.CustomFieldDef;
+import com.vmware.vim25.CustomFieldStringValue;
+import com.vmware.vim25.CustomFieldValue;
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.VirtualMachineSnapshotInfo;
+import com.vmware.vim25.mo.CustomFieldsManager;
+import com.vmware.vim25.mo.ServerConnection;
+import com.vmware.vim25.mo.VirtualMachine;
+import com.vmware.vim25.mo.util.PropertyCollectorUtil;
+
+/**
+ * Loads the VM inventory with a single PropertyCollector call instead of
+ * lazy loading the config of each VM one SOAP request at a time.
+ * 
+ * The names of the folders and resource pools come with the same call, so
+ * that the VMs can be classified by folder and resource pool ( see
+ * NodeClassifier ). The names of the custom attributes take one more call.
+ * 
+ * @author freynaud
+ * 
+ */
+public class InventoryLoader {
+
+	private static final Logger log = Logger.getLogger(InventoryLoader.class);
+
+	static final String NAME = "config.name";
+	static final String UUID = "config.uuid";
+	static final String VMX = "config.files.vmPathName";
+	static final String SNAPSHOT = "snapshot";
+	static final String IP = "guest.ipAddress";
+	static final String POWER = "runtime.powerState";
+	static final String HOST = "runtime.host";
+	static final String GUEST_ID = "config.guestId";
+	static final String FOLDER = "parent";
+	static final String RESOURCE_POOL = "resourcePool";
+	static final String CUSTOM = "customValue";
+
+	static final String[] PROPERTIES = { NAME, UUID, VMX, SNAPSHOT, IP, POWER, HOST, GUEST_ID, FOLDER, RESOURCE_POOL, CUSTOM };
+
+	static final String VM_TYPE = "VirtualMachine";
+	// the containers whose name is loaded with the VMs.
+	static final String[] CONTAINER_TYPES = { "Folder", "ResourcePool" };
+
+	/**
+	 * the calls the loader makes to VCenter.
+	 */
+	interface Remote {
+		/**
+		 * 
+		 * @return the custom attributes defined, null if the server has no
+		 *         custom attributes ( standalone ESX. )
+		 * @throws RemoteException
+		 */
+		CustomFieldDef[] getCustomFields() throws RemoteException;
+
+		ManagedObjectReference getRootFolder();
+
+		ObjectContent[] retrieveProperties(PropertyFilterSpec spec) throws RemoteException;
+
+		/**
+		 * 
+		 * @return the connection the next VM will use.
+		 */
+		ServerConnection nextConnection();
+	}
+
+	/**
+	 * the calls made with the sessions of the endpoint.
+	 */
+	private static class SessionRemote implements Remote {
+		private final VCenterSessionManager sessions;
+
+		SessionRemote(VCenterSessionManager sessions) {
+			this.sessions = sessions;
+		}
+
+		public CustomFieldDef[] getCustomFields() throws RemoteException {
+			CustomFieldsManager manager = sessions.getServiceInstance().getCustomFieldsManager();
+			if (manager == null) {
+				return null;
+			}
+			CustomFieldDef[] fields = manager.getField();
+			return fields == null ? new CustomFieldDef[0] : fields;
+		}
+
+		public ManagedObjectReference getRootFolder() {
+			return sessions.getServiceInstance().getRootFolder().getMOR();
+		}
+
+		public ObjectContent[] retrieveProperties(PropertyFilterSpec spec) throws RemoteException {
+			return sessions.getServiceInstance().getPropertyCollector().retrieveProperties(new PropertyFilterSpec[] { spec });
+		}
+
+		public ServerConnection nextConnection() {
+			// the VMs are spread over the sessions.
+			return sessions.next().getServerConnection();
+		}
+	}
+
+	private final VCenterEndpoint endpoint;
+	private final Remote remote;
+
+	// name of the folders and resource pools, by type:id.
+	private final Map<String, String> containerNames = new ConcurrentHashMap<String, String>();
+	// name of the custom attributes, by key.
+	private volatile Map<Integer, String> customFields = new HashMap<Integer, String>();
+
+	private int lastRemoteCalls = 0;
+	private long lastElapsed = 0;
+
+	public InventoryLoader(VCenterEndpoint endpoint) {
+		this(endpoint, new SessionRemote(endpoint.getSessionManager()));
+	}
+
+	InventoryLoader(VCenterEndpoint endpoint, Remote remote) {
+		this.endpoint = endpoint;
+		this.remote = remote;
+	}
+
+	/**
+	 * The filter used to get all the VMs under the root folder with the
+	 * properties the grid needs.
+	 * 
+	 * @return
+	 */
+	PropertyFilterSpec createFilterSpec() {
+		PropertySpec[] propertySpecs = new PropertySpec[CONTAINER_TYPES.length + 1];
+		propertySpecs[0] = new PropertySpec();
+		propertySpecs[0].setType(VM_TYPE);
+		propertySpecs[0].setAll(Boolean.FALSE);
+		propertySpecs[0].setPathSet(PROPERTIES);
+		for (int i = 0; i < CONTAINER_TYPES.length; i++) {
+			propertySpecs[i + 1] = new PropertySpec();
+			propertySpecs[i + 1].setType(CONTAINER_TYPES[i]);
+			propertySpecs[i + 1].setAll(Boolean.FALSE);
+			propertySpecs[i + 1].setPathSet(new String[] { "name" });
+		}
+
+		ObjectSpec objectSpec = new ObjectSpec();
+		objectSpec.setObj(remote.getRootFolder());
+		objectSpec.setSkip(Boolean.TRUE);
+		objectSpec.setSelectSet(PropertyCollectorUtil.buildFullTraversal());
+
+		PropertyFilterSpec spec = new PropertyFilterSpec();
+		spec.setPropSet(propertySpecs);
+		spec.setObjectSet(new ObjectSpec[] { objectSpec });
+		return spec;
+	}
+
+	/**
+	 * get all the VMs on the server, with their name, id, vmx path, snapshot
+	 * tree, ip, power state and attributes already loaded.
+	 * 
+	 * @return
+	 */
+	public List<VirtualMachineWrapper> load() {
+		long start = System.currentTimeMillis();
+		int calls = 0;
+		List<VirtualMachineWrapper> res = new ArrayList<VirtualMachineWrapper>();
+		ObjectContent[] contents;
+		try {
+			calls += loadCustomFields();
+			calls++;
+			contents = remote.retrieveProperties(createFilterSpec());
+		} catch (Throwable e) {
+			throw new RuntimeException("Error loading the VM inventory", e);
+		}
+		if (contents != null) {
+			// the containers first, the VMs refer to them.
+			for (ObjectContent content : contents) {
+				if (!VM_TYPE.equals(content.getObj().getType())) {
+					updateName(content.getObj(), toMap(content.getPropSet()).get("name"));
+				}
+			}
+			for (ObjectContent content : contents) {
+				if (!VM_TYPE.equals(content.getObj().getType())) {
+					continue;
+				}
+				VirtualMachineWrapper vm = toWrapper(content);
+				if (vm != null) {
+					res.add(vm);
+				}
+			}
+		}
+		lastRemoteCalls = calls;
+		lastElapsed = System.currentTimeMillis() - start;
+		log.info("Loaded " + res.size() + " VMs from " + endpoint + " in " + lastElapsed + "ms using " + lastRemoteCalls + " remote call(s).");
+		return res;
+	}
+
+	/**
+	 * 
+	 * @param content
+	 * @return the wrapper for that VM, null if the mandatory properties are
+	 *         missing ( VM being cloned for instance. )
+	 */
+	VirtualMachineWrapper toWrapper(ObjectContent content) {
+		return toWrapper(content.getObj(), toMap(content.getPropSet()));
+	}
+
+	/**
+	 * 
+	 * @param mor
+	 *            the VM
+	 * @param props
+	 *            the values of the properties fetched, by property path.
+	 * @return the wrapper for that VM, null if the mandatory properties are
+	 *         missing.
+	 */
+	VirtualMachineWrapper toWrapper(ManagedObjectReference mor, Map<String, Object> props) {
+		String name = (String) props.get(NAME);
+		String uuid = (String) props.get(UUID);
+		String vmx = (String) props.get(VMX);
+		if (name == null || uuid == null || vmx == null) {
+			log.debug("VM " + mor.get_value() + " has no config yet. Skipping it.");
+			return null;
+		}
+		VirtualMachine vm = new VirtualMachine(remote.nextConnection(), mor);
+		VirtualMachineWrapper res = new VirtualMachineWrapper(vm, uuid, name, vmx);
+		res.setEndpoint(endpoint);
+		res.setSnapshotInfo((VirtualMachineSnapshotInfo) props.get(SNAPSHOT));
+		res.setIp((String) props.get(IP));
+		res.setPowerState((VirtualMachinePowerState) props.get(POWER));
+		res.setHostId(hostIdOf((ManagedObjectReference) props.get(HOST)));
+		Map<String, String> attributes = new HashMap<String, String>();
+		for (String property : new String[] { GUEST_ID, FOLDER, RESOURCE_POOL, CUSTOM }) {
+			addAttribute(attributes, property, props.get(property));
+		}
+		res.setAttributes(attributes);
+		return res;
+	}
+
+	/**
+	 * the custom attributes of a VM only have a key. Getting the names.
+	 * 
+	 * @return the number of remote calls made.
+	 * @throws RemoteException
+	 */
+	private int loadCustomFields() throws RemoteException {
+		CustomFieldDef[] fields = remote.getCustomFields();
+		if (fields == null) {
+			// no custom attributes on a standalone ESX.
+			return 0;
+		}
+		Map<Integer, String> res = new HashMap<Integer, String>();
+		for (CustomFieldDef field : fields) {
+			res.put(field.getKey(), field.getName());
+		}
+		customFields = res;
+		return 1;
+	}
+
+	/**
+	 * a folder or resource pool was created or renamed.
+	 * 
+	 * @param container
+	 * @param name
+	 *            null if it was deleted.
+	 */
+	void updateName(ManagedObjectReference container, Object name) {
+		String key = container.getType() + ":" + container.get_value();
+		if (name == null) {
+			containerNames.remove(key);
+		} else {
+			containerNames.put(key, (String) name);
+		}
+	}
+
+	/**
+	 * applies the change of a VM property to its attributes.
+	 * 
+	 * @param vm
+	 * @param property
+	 * @param val
+	 * @return false if the property isn't one of the attributes.
+	 */
+	boolean updateAttribute(VirtualMachineWrapper vm, String property, Object val) {
+		if (!GUEST_ID.equals(property) && !FOLDER.equals(property) && !RESOURCE_POOL.equals(property) && !CUSTOM.equals(property)) {
+			return false;
+		}
+		Map<String, String> attributes = new HashMap<String, String>(vm.getAttributes());
+		if (CUSTOM.equals(property)) {
+			for (String key : vm.getAttributes().keySet()) {
+				if (key.startsWith("custom.")) {
+					attributes.remove(key);
+				}
+			}
+		} else {
+			attributes.remove(attributeOf(property));
+		}
+		addAttribute(attributes, property, val);
+		vm.setAttributes(attributes);
+		return true;
+	}
+
+	private static String attributeOf(String property) {
+		if (GUEST_ID.equals(property)) {
+			return "guestId";
+		} else if (FOLDER.equals(property)) {
+			return "folder";
+		}
+		return "resourcePool";
+	}
+
+	private void addAttribute(Map<String, String> attributes, String property, Object val) {
+		if (val == null) {
+			return;
+		}
+		if (CUSTOM.equals(property)) {
+			Object values = PropertyCollectorUtil.convertProperty(val);
+			if (values instanceof CustomFieldValue[]) {
+				for (CustomFieldValue value : (CustomFieldValue[]) values) {
+					String field = customFields.get(value.getKey());
+					if (field != null && value instanceof CustomFieldStringValue) {
+						attributes.put("custom." + field, ((CustomFieldStringValue) value).getValue());
+					}
+				}
+			}
+		} else if (GUEST_ID.equals(property)) {
+			attributes.put("guestId", (String) val);
+		} else {
+			// the containers are known by their name, by their id if the name
+			// isn't loaded.
+			ManagedObjectReference container = (ManagedObjectReference) val;
+			String name = containerNames.get(container.getType() + ":" + container.get_value());
+			attributes.put(attributeOf(property), name == null ? container.get_value() : name);
+		}
+	}
+
+	static String hostIdOf(ManagedObjectReference host) {
+		return host == null ? null : host.get_value();
+	}
+
+	static Map<String, Object> toMap(DynamicProperty[] properties) {
+		Map<String, Object> res = new HashMap<String, Object>();
+		if (properties != null) {
+			for (DynamicProperty p : properties) {
+				res.put(p.getName(), p.getVal());
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * 
+	 * @return the number of calls to VCenter the last load took.
+	 */
+	public int getLastRemoteCalls() {
+		return lastRemoteCalls;
+	}
+
+	/**
+	 * 
+	 * @return how long the last load took, in ms.
+	 */
+	public long getLastElapsed() {
+		return lastElapsed;
+	}
+
+}
@@ -0,0 +1,305 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.ebay.spine.vmware.model.VirtualMachineWrapper;
+import com.vmware.vim25.InvalidCollectorVersion;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.VirtualMachineSnapshotInfo;
+
+/**
+ * Keeps the pool in sync with VCenter by applying the changes reported by the
+ * property collector as they arrive : new VMs, deleted VMs, renames, snapshot
+ * tree, ip, power state and host changes. Replaces a full reload of the inventory.
+ * 
+ * Runs in its own thread. All the state is owned by that thread, the pool only
+ * sees the immutable indexes that are published after each batch of changes.
+ * 
+ * When the server can't give the changes since the last version anymore (
+ * InvalidCollectorVersion ), the full state is asked again and the VMs it
+ * doesn't have are removed.
+ * 
+ * @author freynaud
+ * 
+ */
+public class InventoryTracker implements Runnable {
+
+	private static final Logger log = Logger.getLogger(InventoryTracker.class);
+
+	// wait after an error before asking for updates again.
+	private static final long ERROR_DELAY = 5000;
+
+	/**
+	 * where the inventory goes.
+	 */
+	interface Publisher {
+		/**
+		 * 
+		 * @param id
+		 * @return the VM with that id the grid already has, null if there is
+		 *         none.
+		 */
+		VirtualMachineWrapper getKnown(String id);
+
+		/**
+		 * replaces the inventory.
+		 * 
+		 * @param vms
+		 *            all the VMs of the server.
+		 */
+		void publish(Collection<VirtualMachineWrapper> vms);
+	}
+
+	private final String name;
+	private final Publisher publisher;
+	private final InventoryUpdateSource source;
+	private final InventoryLoader loader;
+	// all the VMs reported by the server, including the one filtered out of
+	// the pool, keyed by managed object id.
+	private final Map<String, VirtualMachineWrapper> vms = new HashMap<String, VirtualMachineWrapper>();
+	private String version = "";
+	private volatile boolean running = true;
+	private Thread thread;
+
+	public InventoryTracker(final VirtualMachinePool pool, final VCenterEndpoint endpoint, InventoryUpdateSource source, InventoryLoader loader) {
+		this(endpoint.getName(), endpoint.getInventory(), new Publisher() {
+			public VirtualMachineWrapper getKnown(String id) {
+				return pool.getIndex().getById(id);
+			}
+
+			public void publish(Collection<VirtualMachineWrapper> vms) {
+				pool.publish(endpoint, vms);
+			}
+		}, source, loader);
+	}
+
+	/**
+	 * 
+	 * @param name
+	 *            of the server.
+	 * @param inventory
+	 *            the VMs the grid already has for the server.
+	 * @param publisher
+	 * @param source
+	 * @param loader
+	 */
+	InventoryTracker(String name, Collection<VirtualMachineWrapper> inventory, Publisher publisher, InventoryUpdateSource source, InventoryLoader loader) {
+		this.name = name;
+		this.publisher = publisher;
+		this.source = source;
+		this.loader = loader;
+		// when the tracking starts, the server reports all the existing VMs as
+		// new. Reusing the wrappers the pool already has so the proxies keep
+		// pointing to the right objects.
+		for (VirtualMachineWrapper vm : inventory) {
+			ManagedObjectReference mor = vm.getMOR();
+			if (mor != null) {
+				vms.put(mor.get_value(), vm);
+			}
+		}
+	}
+
+	/**
+	 * starts tracking in a daemon thread.
+	 */
+	public synchronized void start() {
+		if (thread == null) {
+			thread = new Thread(this, "inventory-tracker-" + name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	public synchronized void stop() {
+		running = false;
+		source.close();
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	public void run() {
+		while (running && !Thread.currentThread().isInterrupted()) {
+			try {
+				UpdateSet updates = source.waitForUpdates(version);
+				if (updates != null) {
+					apply(updates);
+				}
+			} catch (InvalidCollectorVersion e) {
+				log.warn("Inventory version " + version + " is not valid anymore. Getting the full state again.");
+				version = "";
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (Throwable t) {
+				if (!running) {
+					break;
+				}
+				log.error("Error getting the inventory updates : " + t.getMessage() + ". Retrying in " + ERROR_DELAY + "ms.");
+				try {
+					Thread.sleep(ERROR_DELAY);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		log.info("Inventory tracking stopped.");
+	}
+
+	/**
+	 * apply a batch of changes and publish the new inventory if the list of
+	 * VMs, their names or their attributes changed.
+	 * 
+	 * @param updates
+	 */
+	void apply(UpdateSet updates) {
+		boolean changed = false;
+		// the full state : the VMs that are not in it are gone.
+		Set<String> missing = "".equals(version) ? new HashSet<String>(vms.keySet()) : null;
+		PropertyFilterUpdate[] filters = updates.getFilterSet();
+		if (filters != null) {
+			for (PropertyFilterUpdate filter : filters) {
+				ObjectUpdate[] objects = filter.getObjectSet();
+				if (objects == null) {
+					continue;
+				}
+				for (ObjectUpdate update : objects) {
+					if (missing != null) {
+						missing.remove(update.getObj().get_value());
+					}
+					changed |= apply(update);
+				}
+			}
+		}
+		if (missing != null) {
+			for (String key : missing) {
+				VirtualMachineWrapper vm = vms.remove(key);
+				log.info("VM " + vm.getName() + " not on the server anymore. Removed from the inventory.");
+				changed = true;
+			}
+		}
+		version = updates.getVersion();
+		if (changed) {
+			publisher.publish(vms.values());
+		}
+	}
+
+	/**
+	 * 
+	 * @param update
+	 * @return true if the VM was added, removed, renamed or its attributes
+	 *         changed.
+	 */
+	private boolean apply(ObjectUpdate update) {
+		ManagedObjectReference mor = update.getObj();
+		if (!InventoryLoader.VM_TYPE.equals(mor.getType())) {
+			// a folder or resource pool. The VMs in it are updated when they
+			// move.
+			Map<String, Object> props = toMap(update.getChangeSet());
+			loader.updateName(mor, update.getKind() == ObjectUpdateKind.leave ? null : props.get("name"));
+			return false;
+		}
+		String key = mor.get_value();
+		VirtualMachineWrapper vm = vms.get(key);
+
+		if (update.getKind() == ObjectUpdateKind.leave) {
+			if (vm != null) {
+				vms.remove(key);
+				log.info("VM " + vm.getName() + " removed from the inventory.");
+				return true;
+			}
+			return false;
+		}
+
+		if (vm == null) {
+			vm = loader.toWrapper(mor, toMap(update.getChangeSet()));
+			if (vm == null) {
+				// not fully created yet. Will come back as a modify.
+				return false;
+			}
+			// created by the grid, already known by the pool.
+			VirtualMachineWrapper known = publisher.getKnown(vm.getId());
+			if (known != null) {
+				vm = known;
+			}
+			log.info("VM " + vm.getName() + " added to the inventory.");
+			vms.put(key, vm);
+			return true;
+		}
+
+		boolean changed = false;
+		PropertyChange[] changes = update.getChangeSet();
+		if (changes == null) {
+			return false;
+		}
+		for (PropertyChange change : changes) {
+			Object val = change.getOp() == PropertyChangeOp.remove ? null : change.getVal();
+			String name = change.getName();
+			if (InventoryLoader.NAME.equals(name)) {
+				if (val != null && !val.equals(vm.getName())) {
+					log.info("VM " + vm.getName() + " renamed to " + val);
+					vm.setName((String) val);
+					changed = true;
+				}
+			} else if (InventoryLoader.SNAPSHOT.equals(name)) {
+				vm.setSnapshotInfo((VirtualMachineSnapshotInfo) val);
+				vm.invalidateSnapshots();
+			} else if (InventoryLoader.IP.equals(name)) {
+				vm.setIp((String) val);
+			} else if (InventoryLoader.POWER.equals(name)) {
+				if (val != vm.getPowerState()) {
+					IpRegistry.getInstance().invalidate(vm);
+				}
+				vm.setPowerState((VirtualMachinePowerState) val);
+			} else if (InventoryLoader.HOST.equals(name)) {
+				vm.setHostId(InventoryLoader.hostIdOf((ManagedObjectReference) val));
+			} else if (InventoryLoader.VMX.equals(name)) {
+				if (val != null) {
+					vm.setConfigPath((String) val);
+				}
+			} else if (loader.updateAttribute(vm, name, val)) {
+				// the VM may not have the same role anymore.
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private static Map<String, Object> toMap(PropertyChange[] changes) {
+		Map<String, Object> res = new HashMap<String, Object>();
+		if (changes != null) {
+			for (PropertyChange change : changes) {
+				res.put(change.getName(), change.getVal());
+			}
+		}
+		return res;
+	}
+}
@@ -0,0 +1,45 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import com.vmware.vim25.UpdateSet;
+
+/**
+ * Stream of inventory changes, in the format of the vSphere property
+ * collector. Allows the tracking logic to run against something else than a
+ * real VCenter.
+ * 
+ * @author freynaud
+ * 
+ */
+public interface InventoryUpdateSource {
+
+	/**
+	 * blocks until something changed since the given version.
+	 * 
+	 * @param version
+	 *            version returned by the previous call. Empty string to get
+	 *            the full state.
+	 * @return the changes, with the new version.
+	 * @throws Exception
+	 */
+	UpdateSet waitForUpdates(String version) throws Exception;
+
+	/**
+	 * releases the resources. A thread blocked in waitForUpdates should return.
+	 */
+	void close();
+}
@@ -0,0 +1,174 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.ebay.spine.vmware.model.VirtualMachineWrapper;
+
+/**
+ * IPs of the guests, found in the background using the guest info from the
+ * HypervisorBackend ( guest.net, guest.ipAddress on VSphere ) and checked by
+ * opening a connection to the node port. Reading an IP never blocks : if it's not known yet, null
+ * is returned and the discovery starts.
+ * 
+ * The IP of a VM is forgotten when the VM is reverted or its power state
+ * changes.
+ * 
+ * @author freynaud
+ * 
+ */
+public class IpRegistry {
+
+	private static final Logger log = Logger.getLogger(IpRegistry.class);
+
+	private static final int PROBE_TIMEOUT = 2000;
+
+	private static IpRegistry instance = null;
+
+	// vm id -> validated ip
+	private final ConcurrentHashMap<String, String> ips = new ConcurrentHashMap<String, String>();
+	// vm ids being resolved.
+	private final Set<String> resolving = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final ExecutorService executor;
+	private final LatencyHistogram latency = Metrics.getInstance().timer(Metrics.IP_LOOKUP);
+
+	public static synchronized IpRegistry getInstance() {
+		if (instance == null) {
+			instance = new IpRegistry(4);
+		}
+		return instance;
+	}
+
+	public IpRegistry(int threads) {
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ip-discovery-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * 
+	 * @param vm
+	 * @param port
+	 *            the port the node listens to.
+	 * @return the IP of the guest, null if it's not known yet. Starts looking
+	 *         for it in that case.
+	 */
+	public String getIp(final VirtualMachineWrapper vm, final int port) {
+		String ip = ips.get(vm.getId());
+		if (ip == null && resolving.add(vm.getId())) {
+			executor.submit(new Runnable() {
+				public void run() {
+					try {
+						resolve(vm, port);
+					} finally {
+						resolving.remove(vm.getId());
+					}
+				}
+			});
+		}
+		return ip;
+	}
+
+	/**
+	 * finds the IP of the guest now. Blocks, don't call it from a hub thread.
+	 * 
+	 * @param vm
+	 * @param port
+	 * @return the IP, null if none of the IPs of the guest answer on the port.
+	 */
+	public String resolve(VirtualMachineWrapper vm, int port) {
+		long start = System.currentTimeMillis();
+		String res = null;
+		try {
+			for (String candidate : Hypervisor.getBackend().getGuestIps(vm)) {
+				if (probe(candidate, port)) {
+					res = candidate;
+					break;
+				}
+			}
+		} catch (Throwable t) {
+			log.warn("Error getting the IP of " + vm.getName() + " : " + t.getMessage());
+		}
+		latency.record(System.currentTimeMillis() - start);
+		if (res != null) {
+			ips.put(vm.getId(), res);
+			vm.setIp(res);
+			log.debug(vm.getName() + " has IP " + res);
+		} else {
+			log.debug("no IP answering on port " + port + " for " + vm.getName());
+		}
+		return res;
+	}
+
+	private static boolean probe(String ip, int port) {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(ip, port), PROBE_TIMEOUT);
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing to do.
+			}
+		}
+	}
+
+	/**
+	 * forgets the IP of the VM. It will be looked for again next time.
+	 * 
+	 * @param vm
+	 */
+	public void invalidate(VirtualMachineWrapper vm) {
+		ips.remove(vm.getId());
+	}
+
+	/**
+	 * 
+	 * @return the time it takes to find IPs.
+	 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	/**
+	 * 
+	 * @return the number of VMs with a known IP.
+	 */
+	public int size() {
+		return ips.size();
+	}
+}
@@ -0,0 +1,117 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of durations, in ms. Buckets grow exponentially ( 1ms, 2ms,
+ * 4ms ... ) so the percentiles are approximate, within a factor of 2, which
+ * is plenty to compare a few seconds to a few minutes. Lock free.
+ * 
+ * @author freynaud
+ * 
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+	// 2^31 ms is almost a month.
+	private static final int BUCKETS = 32;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * 
+	 * @param ms
+	 *            duration to record.
+	 */
+	public void record(long ms) {
+		long value = Math.max(0, ms);
+		buckets.incrementAndGet(bucket(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	private static int bucket(long value) {
+		// bucket i holds the values up to 2^i
+		int res = value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+		return Math.min(BUCKETS - 1, res);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * 
+	 * @return the average duration, in ms.
+	 */
+	public long getMean() {
+		long c = count.get();
+		return c == 0 ? 0 : sum.get() / c;
+	}
+
+	/**
+	 * 
+	 * @param percentile
+	 *            between 0 and 100.
+	 * @return the upper bound of the bucket containing that percentile, in ms.
+	 */
+	public long getPercentile(double percentile) {
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				return Math.min(1L << i, max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public long getMedian() {
+		return getPercentile(50);
+	}
+
+	public long getPercentile95() {
+		return getPercentile(95);
+	}
+
+	public long getPercentile99() {
+		return getPercentile(99);
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount() + " mean=" + getMean() + "ms p50=" + getPercentile(50) + "ms p95=" + getPercentile(95) + "ms p99="
+				+ getPercentile(99) + "ms max=" + getMax() + "ms";
+	}
+}
@@ -0,0 +1,210 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Durations and counts of the operations on the VMs, for the whole hub. Each
+ * timer, counter and gauge is registered in JMX under com.ebay.spine:type=Timer,
+ * type=Counter or type=Gauge, and the whole set is available as JSON ( see
+ * MetricsServlet ).
+ * 
+ * @author freynaud
+ * 
+ */
+public class Metrics {
+
+	private static final Logger log = Logger.getLogger(Metrics.class);
+
+	public static final String REVERT = "snapshot.revert";
+	public static final String REVERT_WAIT = "snapshot.revert.wait";
+	public static final String REVERT_FAILURES = "snapshot.revert.failures";
+	public static final String CREATE_SNAPSHOT = "snapshot.create";
+	public static final String DELETE_SNAPSHOT = "snapshot.delete";
+	public static final String DELETE_SNAPSHOT_FAILURES = "snapshot.delete.failures";
+	// followed by the depth of the snapshot. See revertByDepth().
+	public static final String REVERT_BY_DEPTH = "snapshot.revert.depth.";
+	// the deeper snapshots share one timer.
+	public static final int REVERT_MAX_DEPTH = 8;
+	public static final String VIX_LOGIN = "vix.login";
+	public static final String VIX_SAVED_LOGINS = "vix.login.saved";
+	public static final String VIX_POOL_HITS = "vix.pool.hits";
+	public static final String VIX_POOL_MISSES = "vix.pool.misses";
+	public static final String VIX_POOL_CONNECT = "vix.pool.connect";
+	public static final String VIX_RUN_PROGRAM = "vix.runProgram";
+	public static final String VIX_RUN_PROGRAM_FAILURES = "vix.runProgram.failures";
+	public static final String INVENTORY_LOAD = "inventory.load";
+	public static final String INVENTORY_WARM_START = "inventory.warmStart";
+	public static final String INVENTORY_VERIFY = "inventory.verify";
+	public static final String IP_LOOKUP = "ip.lookup";
+	public static final String RECYCLE_CLEANUP = "recycle.cleanup";
+	public static final String RECYCLE_REVERT = "recycle.revert";
+	public static final String PRE_REVERTS = "recycle.preRevert";
+	public static final String QUARANTINES = "health.quarantine";
+	public static final String SNAPSHOTS_PRUNED = "snapshot.pruned";
+	public static final String BASE_REFRESH = "snapshot.baseRefresh";
+	public static final String WARMPOOL_HITS = "warmpool.hits";
+	public static final String WARMPOOL_MISSES = "warmpool.misses";
+	public static final String WARMPOOL_TIME_TO_READY = "warmpool.timeToReady";
+	// followed by the role.
+	public static final String WARMPOOL_READY = "warmpool.ready.";
+
+	private static Metrics instance = null;
+
+	private final ConcurrentMap<String, LatencyHistogram> timers = new ConcurrentHashMap<String, LatencyHistogram>();
+	private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+	private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+	public static synchronized Metrics getInstance() {
+		if (instance == null) {
+			instance = new Metrics();
+		}
+		return instance;
+	}
+
+	/**
+	 * 
+	 * @param name
+	 * @return the timer with that name, created the first time.
+	 */
+	public LatencyHistogram timer(String name) {
+		LatencyHistogram res = timers.get(name);
+		if (res == null) {
+			LatencyHistogram created = new LatencyHistogram();
+			res = timers.putIfAbsent(name, created);
+			if (res == null) {
+				res = created;
+				register("Timer", name, created);
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * 
+	 * @param name
+	 * @return the counter with that name, created the first time.
+	 */
+	public Counter counter(String name) {
+		Counter res = counters.get(name);
+		if (res == null) {
+			Counter created = new Counter();
+			res = counters.putIfAbsent(name, created);
+			if (res == null) {
+				res = created;
+				register("Counter", name, created);
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * adds a gauge, unless there is already one with that name.
+	 * 
+	 * @param name
+	 * @param gauge
+	 */
+	public void gauge(String name, Gauge gauge) {
+		if (gauges.putIfAbsent(name, gauge) == null) {
+			register("Gauge", name, gauge);
+		}
+	}
+
+	/**
+	 * records the time since start in the timer.
+	 * 
+	 * @param name
+	 * @param start
+	 *            System.currentTimeMillis() when the operation started.
+	 * @return the duration recorded, in ms.
+	 */
+	public long record(String name, long start) {
+		long elapsed = System.currentTimeMillis() - start;
+		timer(name).record(elapsed);
+		return elapsed;
+	}
+
+	public void increment(String name) {
+		counter(name).increment();
+	}
+
+	/**
+	 * 
+	 * @param depth
+	 * @return the name of the revert timer for that snapshot depth. The depths
+	 *         from REVERT_MAX_DEPTH are in the same timer, so a VM with a very
+	 *         long chain doesn't register a new MBean per snapshot.
+	 */
+	public static String revertByDepth(int depth) {
+		return REVERT_BY_DEPTH + (depth < REVERT_MAX_DEPTH ? "" + depth : REVERT_MAX_DEPTH + "+");
+	}
+
+	private void register(String type, String name, Object mbean) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean(mbean, new ObjectName("com.ebay.spine:type=" + type + ",name=" + name));
+		} catch (JMException e) {
+			log.warn("Cannot register " + name + " in JMX : " + e.getMessage());
+		}
+	}
+
+	/**
+	 * 
+	 * @return all the timers, counters and gauges, sorted by name. Durations
+	 *         in ms.
+	 * @throws JSONException
+	 */
+	public JSONObject toJSON() throws JSONException {
+		JSONObject res = new JSONObject();
+		JSONObject t = new JSONObject();
+		for (Map.Entry<String, LatencyHistogram> e : new TreeMap<String, LatencyHistogram>(timers).entrySet()) {
+			LatencyHistogram h = e.getValue();
+			JSONObject o = new JSONObject();
+			o.put("count", h.getCount());
+			o.put("mean", h.getMean());
+			o.put("p50", h.getMedian());
+			o.put("p95", h.getPercentile95());
+			o.put("p99", h.getPercentile99());
+			o.put("max", h.getMax());
+			t.put(e.getKey(), o);
+		}
+		res.put("timers", t);
+		JSONObject c = new JSONObject();
+		for (Map.Entry<String, Counter> e : new TreeMap<String, Counter>(counters).entrySet()) {
+			c.put(e.getKey(), e.getValue().getValue());
+		}
+		res.put("counters", c);
+		JSONObject g = new JSONObject();
+		for (Map.Entry<String, Gauge> e : new TreeMap<String, Gauge>(gauges).entrySet()) {
+			g.put(e.getKey(), e.getValue().getValue());
+		}
+		res.put("gauges", g);
+		return res;
+	}
+}
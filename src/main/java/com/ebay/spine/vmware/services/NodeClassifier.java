@@ -0,0 +1,216 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+import com.ebay.spine.vmware.model.VirtualMachineWrapper;
+
+/**
+ * Decides what the grid does with a VM from its vSphere attributes : ignore
+ * it, or use it as a node of a given role, with some capabilities.
+ * 
+ * Rules are tried in order, the first one matching wins. A VM no rule matches
+ * is known by the pool but isn't a node ( a template for instance ).
+ * 
+ * Configured in credentials.properties :
+ * 
+ * classifier.rules=linux,windows,... : the rules, in order. Without it, the
+ * VMs are classified by name : spine-linux* and spine-win* are nodes, and the
+ * names containing repo or dderwael are ignored.
+ * 
+ * classifier.rule.[rule].match : attribute:pattern pairs separated by ;, that
+ * all have to match. Patterns use * and ?. The attributes are name, path (
+ * vmx ), datastore, host, guestId, folder, resourcePool and
+ * custom.[custom attribute name].
+ * 
+ * classifier.rule.[rule].exclude=true : the matching VMs are ignored.
+ * 
+ * classifier.rule.[rule].role : LINUX or WINDOWS.
+ * 
+ * classifier.rule.[rule].capabilities : key=value pairs separated by , added
+ * to the capabilities the nodes register with.
+ * 
+ * classifier.rule.[rule].spare=true : the matching VMs are spares of the
+ * WarmPool, not nodes. The default rules have no spares.
+ * 
+ * @author freynaud
+ * 
+ */
+public class NodeClassifier {
+
+	private static final Logger log = Logger.getLogger(NodeClassifier.class);
+
+	private final List<Rule> rules;
+
+	public NodeClassifier(Properties properties) {
+		String names = properties.getProperty("classifier.rules");
+		if (names == null) {
+			rules = defaultRules();
+			return;
+		}
+		List<Rule> res = new ArrayList<Rule>();
+		for (String name : names.split(",")) {
+			name = name.trim();
+			if (name.length() > 0) {
+				res.add(parse(name, properties));
+			}
+		}
+		rules = Collections.unmodifiableList(res);
+	}
+
+	/**
+	 * the naming convention used before the rules could be configured.
+	 */
+	private static List<Rule> defaultRules() {
+		List<Rule> res = new ArrayList<Rule>();
+		res.add(new Rule("repo", "name:*repo*", true, null, null, false));
+		res.add(new Rule("dderwael", "name:*dderwael*", true, null, null, false));
+		for (NodeRole role : NodeRole.values()) {
+			res.add(new Rule(role.name().toLowerCase(), "name:" + role.getPrefix() + "*", false, role, null, false));
+		}
+		return Collections.unmodifiableList(res);
+	}
+
+	private static Rule parse(String name, Properties properties) {
+		String prefix = "classifier.rule." + name + ".";
+		String match = properties.getProperty(prefix + "match");
+		if (match == null) {
+			throw new RuntimeException(prefix + "match not specified.");
+		}
+		boolean exclude = Boolean.parseBoolean(properties.getProperty(prefix + "exclude"));
+		String role = properties.getProperty(prefix + "role");
+		boolean spare = Boolean.parseBoolean(properties.getProperty(prefix + "spare"));
+		return new Rule(name, match, exclude, role == null ? null : NodeRole.valueOf(role.trim().toUpperCase()), properties.getProperty(prefix
+				+ "capabilities"), spare);
+	}
+
+	/**
+	 * sets the role and capabilities of the VM.
+	 * 
+	 * @param vm
+	 * @return false if the VM should never be seen by the grid.
+	 */
+	public boolean classify(VirtualMachineWrapper vm) {
+		for (Rule rule : rules) {
+			if (rule.matches(vm)) {
+				if (rule.exclude) {
+					log.debug("VM " + vm.getName() + " " + vm.getId() + " filtered out by rule " + rule.name);
+					return false;
+				}
+				vm.setRole(rule.role);
+				vm.setCapabilities(rule.capabilities);
+				vm.setSpare(rule.spare);
+				return true;
+			}
+		}
+		vm.setRole(null);
+		vm.setCapabilities(Collections.<String, Object> emptyMap());
+		vm.setSpare(false);
+		return true;
+	}
+
+	/**
+	 * 
+	 * @param vm
+	 * @param attribute
+	 * @return the value of the attribute for that VM, null if it doesn't have
+	 *         one.
+	 */
+	static String valueOf(VirtualMachineWrapper vm, String attribute) {
+		if ("name".equals(attribute)) {
+			return vm.getName();
+		} else if ("path".equals(attribute)) {
+			return vm.getConfigPath();
+		} else if ("datastore".equals(attribute)) {
+			return vm.getDatastore();
+		} else if ("host".equals(attribute)) {
+			return vm.getHostId();
+		}
+		return vm.getAttribute(attribute);
+	}
+
+	private static class Rule {
+		private final String name;
+		private final Map<String, Pattern> conditions = new HashMap<String, Pattern>();
+		private final boolean exclude;
+		private final NodeRole role;
+		private final Map<String, Object> capabilities;
+		private final boolean spare;
+
+		Rule(String name, String match, boolean exclude, NodeRole role, String capabilities, boolean spare) {
+			this.name = name;
+			this.exclude = exclude;
+			this.role = role;
+			this.spare = spare;
+			for (String condition : match.split(";")) {
+				int colon = condition.indexOf(':');
+				if (colon <= 0) {
+					throw new RuntimeException("invalid condition " + condition + " for the rule " + name + ". Expected attribute:pattern");
+				}
+				conditions.put(condition.substring(0, colon).trim(), toPattern(condition.substring(colon + 1).trim()));
+			}
+			Map<String, Object> caps = new HashMap<String, Object>();
+			if (capabilities != null) {
+				for (String pair : capabilities.split(",")) {
+					int equals = pair.indexOf('=');
+					if (equals > 0) {
+						caps.put(pair.substring(0, equals).trim(), pair.substring(equals + 1).trim());
+					}
+				}
+			}
+			this.capabilities = Collections.unmodifiableMap(caps);
+		}
+
+		boolean matches(VirtualMachineWrapper vm) {
+			for (Map.Entry<String, Pattern> condition : conditions.entrySet()) {
+				String value = valueOf(vm, condition.getKey());
+				if (value == null || !condition.getValue().matcher(value).matches()) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static Pattern toPattern(String glob) {
+			StringBuilder regex = new StringBuilder();
+			StringBuilder literal = new StringBuilder();
+			for (char c : glob.toCharArray()) {
+				if (c == '*' || c == '?') {
+					if (literal.length() > 0) {
+						regex.append(Pattern.quote(literal.toString()));
+						literal.setLength(0);
+					}
+					regex.append(c == '*' ? ".*" : ".");
+				} else {
+					literal.append(c);
+				}
+			}
+			if (literal.length() > 0) {
+				regex.append(Pattern.quote(literal.toString()));
+			}
+			return Pattern.compile(regex.toString(), Pattern.DOTALL);
+		}
+	}
+}
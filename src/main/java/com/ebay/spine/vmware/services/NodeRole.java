@@ -0,0 +1,38 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+/**
+ * Role of a VM in the grid, decided by the NodeClassifier. Without rules, the
+ * convention is that the nodes names start with spine-linux or spine-win.
+ * 
+ * @author freynaud
+ * 
+ */
+public enum NodeRole {
+
+	LINUX("spine-linux"), WINDOWS("spine-win");
+
+	private final String prefix;
+
+	private NodeRole(String prefix) {
+		this.prefix = prefix;
+	}
+
+	public String getPrefix() {
+		return prefix;
+	}
+}
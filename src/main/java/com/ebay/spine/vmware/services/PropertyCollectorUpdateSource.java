@@ -0,0 +1,85 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import org.apache.log4j.Logger;
+
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.PropertyFilter;
+import com.vmware.vim25.mo.ServiceInstance;
+
+/**
+ * Inventory changes coming from the VCenter property collector, using the
+ * same properties as the InventoryLoader.
+ * 
+ * @author freynaud
+ * 
+ */
+public class PropertyCollectorUpdateSource implements InventoryUpdateSource {
+
+	private static final Logger log = Logger.getLogger(PropertyCollectorUpdateSource.class);
+
+	private final VCenterEndpoint endpoint;
+	private final VCenterSessionManager sessions;
+	// the session the filter was created on.
+	private ServiceInstance si;
+	private PropertyCollector pc;
+	private PropertyFilter filter;
+
+	public PropertyCollectorUpdateSource(VCenterEndpoint endpoint) {
+		this.endpoint = endpoint;
+		this.sessions = endpoint.getSessionManager();
+	}
+
+	/**
+	 * the filter is created again when the session has been renewed. The
+	 * version of the old filter is then rejected, and the tracker gets the
+	 * full state again.
+	 */
+	public UpdateSet waitForUpdates(String version) throws Exception {
+		PropertyCollector current;
+		synchronized (this) {
+			if (si != sessions.getServiceInstance()) {
+				filter = null;
+			}
+			if (filter == null) {
+				si = sessions.getServiceInstance();
+				pc = si.getPropertyCollector();
+				filter = pc.createFilter(new InventoryLoader(endpoint).createFilterSpec(), false);
+			}
+			current = pc;
+		}
+		try {
+			return current.waitForUpdates(version);
+		} catch (Exception e) {
+			sessions.check(e);
+			throw e;
+		}
+	}
+
+	public synchronized void close() {
+		if (filter != null) {
+			try {
+				pc.cancelWaitForUpdates();
+				filter.destroyPropertyFilter();
+			} catch (Throwable t) {
+				log.warn("Error releasing the property filter " + t.getMessage());
+			}
+			filter = null;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the slow VM operations ( snapshot reverts mostly ) on dedicated
+ * threads, so that the threads of the hub dispatching the sessions are never
+ * blocked by a VM being cleaned.
+ * 
+ * The number of threads is set with recycle.threads in
+ * credentials.properties, default 4. The actual number of concurrent reverts
+ * is still limited by the RevertScheduler.
+ * 
+ * @author freynaud
+ * 
+ */
+public class RecycleService {
+
+	private static final Logger log = Logger.getLogger(RecycleService.class);
+
+	private static RecycleService instance = null;
+
+	private final ExecutorService executor;
+
+	public static synchronized RecycleService getInstance() {
+		if (instance == null) {
+			int threads = CredentialsProperties.getInt(CredentialsProperties.load(), "recycle.threads", 4);
+			instance = new RecycleService(threads);
+		}
+		return instance;
+	}
+
+	public RecycleService(int threads) {
+		executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "vm-recycle-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		log.debug("Recycling VMs with " + threads + " threads.");
+	}
+
+	/**
+	 * 
+	 * @param task
+	 * @return the future completing once the task is done.
+	 */
+	public Future<?> submit(Runnable task) {
+		return executor.submit(task);
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,66 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+/**
+ * Limits the number of retries to a fraction of the successful calls, so that
+ * when something is really down, the callers stop hammering it with retries.
+ * Every success earns a fraction of a retry, every retry spends one, up to
+ * max retries saved.
+ * 
+ * @author freynaud
+ * 
+ */
+public class RetryBudget {
+
+	private final double ratio;
+	private final double max;
+	private double tokens;
+
+	/**
+	 * 
+	 * @param ratio
+	 *            retries allowed per successful call.
+	 * @param max
+	 *            max number of retries that can be saved. Also the number
+	 *            available at the start.
+	 */
+	public RetryBudget(double ratio, double max) {
+		this.ratio = ratio;
+		this.max = max;
+		this.tokens = max;
+	}
+
+	synchronized void success() {
+		tokens = Math.min(max, tokens + ratio);
+	}
+
+	/**
+	 * 
+	 * @return true if a retry is allowed. Spends it.
+	 */
+	synchronized boolean tryRetry() {
+		if (tokens >= 1) {
+			tokens--;
+			return true;
+		}
+		return false;
+	}
+
+	public synchronized double getAvailable() {
+		return tokens;
+	}
+}
@@ -0,0 +1,81 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import com.vmware.vim25.InvalidLogin;
+
+/**
+ * The retry policies used for the VM operations. Each kind of operation has
+ * its own retry budget, per endpoint ( see VCenterEndpoint ) : a VCenter or a
+ * host that is down doesn't stop the retries on the other ones.
+ * 
+ * @author freynaud
+ * 
+ */
+public class RetryPolicies {
+
+	private RetryPolicies() {
+	}
+
+	/**
+	 * login in the guest. Fails for a while after a revert, until the tools
+	 * are up. http://communities.vmware.com/message/1159836
+	 * 
+	 * @return a new policy, with its own budget.
+	 */
+	public static RetryPolicy newGuestLoginPolicy() {
+		return new RetryPolicy("guest login", 250, 4000, 2, 0.5, 10, 30000, VixErrors.CLASSIFIER, new RetryBudget(0.5, 50));
+	}
+
+	/**
+	 * opening a VM on a VIX host connection.
+	 * 
+	 * @return a new policy, with its own budget.
+	 */
+	public static RetryPolicy newOpenVmPolicy() {
+		return new RetryPolicy("open vm", 500, 8000, 2, 0.5, 4, 30000, VixErrors.CLASSIFIER, new RetryBudget(0.5, 20));
+	}
+
+	/**
+	 * reverting a snapshot. Failures are mostly due to the host being busy.
+	 * 
+	 * @return a new policy, with its own budget.
+	 */
+	public static RetryPolicy newRevertPolicy() {
+		return new RetryPolicy("snapshot revert", 2000, 30000, 2, 0.5, 6, 10 * 60 * 1000, RetryPolicy.ALWAYS, new RetryBudget(0.2, 10));
+	}
+
+	/**
+	 * login on VCenter, to replace an expired session. Wrong credentials won't
+	 * get better.
+	 */
+	public static final RetryPolicy VCENTER_LOGIN = new RetryPolicy("vcenter login", 1000, 60000, 2, 0.5, 10, 10 * 60 * 1000,
+			new RetryPolicy.Classifier() {
+				public boolean isRetryable(Throwable t) {
+					return !(t instanceof InvalidLogin);
+				}
+			}, null);
+
+	/**
+	 * submitting the creation of a snapshot. Waiting for it isn't retried, see
+	 * VirtualMachineWrapper.createSnapshot().
+	 * 
+	 * @return a new policy, with its own budget.
+	 */
+	public static RetryPolicy newCreateSnapshotPolicy() {
+		return new RetryPolicy("snapshot creation", 2000, 30000, 2, 0.5, 3, 5 * 60 * 1000, RetryPolicy.ALWAYS, new RetryBudget(0.2, 5));
+	}
+}
@@ -0,0 +1,184 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import org.apache.log4j.Logger;
+import org.openqa.grid.internal.GridException;
+
+/**
+ * Retries an operation with an exponential backoff and some jitter, until it
+ * works, the max number of attempts or the deadline is reached, the error is
+ * not worth retrying, or the retry budget shared by all the operations of the
+ * same kind is exhausted.
+ * 
+ * @author freynaud
+ * 
+ */
+public class RetryPolicy {
+
+	private static final Logger log = Logger.getLogger(RetryPolicy.class);
+
+	private static final Random random = new Random();
+
+	/**
+	 * decides if an error is transient.
+	 */
+	public interface Classifier {
+		boolean isRetryable(Throwable t);
+	}
+
+	/**
+	 * everything is worth retrying.
+	 */
+	public static final Classifier ALWAYS = new Classifier() {
+		public boolean isRetryable(Throwable t) {
+			return true;
+		}
+	};
+
+	private final String name;
+	private final long initialDelay;
+	private final long maxDelay;
+	private final double multiplier;
+	private final double jitter;
+	private final int maxAttempts;
+	private final long deadline;
+	private final Classifier classifier;
+	private final RetryBudget budget;
+
+	/**
+	 * 
+	 * @param name
+	 *            for the logs.
+	 * @param initialDelay
+	 *            ms to wait after the first failure.
+	 * @param maxDelay
+	 *            max ms to wait between 2 attempts.
+	 * @param multiplier
+	 *            the delay is multiplied by that after each failure.
+	 * @param jitter
+	 *            between 0 and 1. Each delay is randomly shortened by up to
+	 *            that fraction so that callers failing together don't retry
+	 *            together.
+	 * @param maxAttempts
+	 *            including the first one.
+	 * @param deadline
+	 *            ms after which no new attempt is made.
+	 * @param classifier
+	 * @param budget
+	 *            shared by all the calls using this policy. Can be null.
+	 */
+	public RetryPolicy(String name, long initialDelay, long maxDelay, double multiplier, double jitter, int maxAttempts, long deadline,
+			Classifier classifier, RetryBudget budget) {
+		this.name = name;
+		this.initialDelay = initialDelay;
+		this.maxDelay = maxDelay;
+		this.multiplier = multiplier;
+		this.jitter = jitter;
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.deadline = deadline;
+		this.classifier = classifier;
+		this.budget = budget;
+	}
+
+	/**
+	 * runs the task, retrying as specified by the policy.
+	 * 
+	 * @param task
+	 * @return the result of the first successful attempt.
+	 * @throws GridException
+	 *             wrapping the last error if all the attempts failed, or if
+	 *             the thread is interrupted while waiting.
+	 */
+	public <T> T call(Callable<T> task) throws GridException {
+		long start = System.currentTimeMillis();
+		long delay = initialDelay;
+		int attempt = 0;
+		while (true) {
+			attempt++;
+			Throwable error;
+			try {
+				T res = task.call();
+				if (budget != null) {
+					budget.success();
+				}
+				return res;
+			} catch (Throwable t) {
+				error = t;
+			}
+			long elapsed = System.currentTimeMillis() - start;
+			String reason = null;
+			if (Thread.currentThread().isInterrupted()) {
+				reason = "interrupted";
+			} else if (!classifier.isRetryable(error)) {
+				reason = "not retryable";
+			} else if (attempt >= maxAttempts) {
+				reason = attempt + " attempts";
+			} else if (elapsed + delay > deadline) {
+				reason = "deadline of " + deadline + "ms reached";
+			} else if (budget != null && !budget.tryRetry()) {
+				reason = "retry budget exhausted";
+			}
+			if (reason != null) {
+				if (error instanceof GridException) {
+					throw (GridException) error;
+				}
+				throw new GridException(name + " failed (" + reason + ") : " + error.getMessage(), error);
+			}
+			long wait = withJitter(delay);
+			log.debug(name + " failed (attempt " + attempt + ") : " + error.getMessage() + ". Retrying in " + wait + "ms.");
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new GridException(name + " interrupted while waiting to retry.", error);
+			}
+			delay = Math.min(maxDelay, (long) (delay * multiplier));
+		}
+	}
+
+	/**
+	 * runs the task, retrying as specified by the policy.
+	 * 
+	 * @param task
+	 */
+	public void run(final Runnable task) throws GridException {
+		call(new Callable<Object>() {
+			public Object call() {
+				task.run();
+				return null;
+			}
+		});
+	}
+
+	private long withJitter(long delay) {
+		if (jitter <= 0) {
+			return delay;
+		}
+		double factor;
+		synchronized (random) {
+			factor = 1 - jitter * random.nextDouble();
+		}
+		return (long) (delay * factor);
+	}
+
+	public String getName() {
+		return name;
+	}
+}
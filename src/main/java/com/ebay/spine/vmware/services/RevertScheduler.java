@@ -0,0 +1,258 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Decides when a snapshot revert can start. Reverting is I/O bound, so the
+ * number of concurrent reverts is limited per datastore and per ESX host
+ * rather than globally. Reverts waiting for the same datastore or host are
+ * started in the order they were requested.
+ * 
+ * The limits are read from credentials.properties :
+ * 
+ * revert.maxPerDatastore (default 1)
+ * 
+ * revert.maxPerHost (default 2)
+ * 
+ * revert.adaptive=true enables the tuning of the limits based on the observed
+ * revert time : the limit of a datastore or host grows by 1 every time as
+ * many reverts as the current limit finished under revert.targetLatency ms (
+ * default 60000 ), and is halved when a revert is slower or fails.
+ * revert.adaptive.maxPerDatastore and revert.adaptive.maxPerHost (default 4)
+ * are the upper bounds.
+ * 
+ * Each VCenter endpoint has its own scheduler. The limits can be set for one
+ * endpoint only with endpoint.<name>.revert.maxPerHost etc.
+ * 
+ * A VM whose datastore or host is not known is only limited by the other one.
+ * 
+ * @author freynaud
+ * 
+ */
+public class RevertScheduler {
+
+	private static final Logger log = Logger.getLogger(RevertScheduler.class);
+
+	private static final String UNKNOWN = "unknown";
+
+	private final ReentrantLock lock = new ReentrantLock();
+	// waiting reverts, oldest first.
+	private final LinkedList<Permit> queue = new LinkedList<Permit>();
+	private final Map<String, Limit> datastores = new HashMap<String, Limit>();
+	private final Map<String, Limit> hosts = new HashMap<String, Limit>();
+
+	private final int maxPerDatastore;
+	private final int maxPerHost;
+	private final boolean adaptive;
+	private final long targetLatency;
+	private final int adaptiveMaxPerDatastore;
+	private final int adaptiveMaxPerHost;
+
+	public RevertScheduler(Properties properties) {
+		maxPerDatastore = CredentialsProperties.getInt(properties, "revert.maxPerDatastore", 1);
+		maxPerHost = CredentialsProperties.getInt(properties, "revert.maxPerHost", 2);
+		adaptive = Boolean.parseBoolean(properties.getProperty("revert.adaptive", "false"));
+		targetLatency = CredentialsProperties.getInt(properties, "revert.targetLatency", 60000);
+		adaptiveMaxPerDatastore = Math.max(maxPerDatastore, CredentialsProperties.getInt(properties, "revert.adaptive.maxPerDatastore", 4));
+		adaptiveMaxPerHost = Math.max(maxPerHost, CredentialsProperties.getInt(properties, "revert.adaptive.maxPerHost", 4));
+		log.info("Reverts limited to " + maxPerDatastore + " per datastore and " + maxPerHost + " per host" + (adaptive ? ", adaptive." : "."));
+	}
+
+	/**
+	 * waits until the datastore and the host of the VM can handle another
+	 * snapshot revert.
+	 * 
+	 * @param datastore
+	 * @param host
+	 * @return the permit to give back once the revert is done.
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting. Nothing has to
+	 *             be released in that case.
+	 */
+	public Permit acquire(String datastore, String host) throws InterruptedException {
+		lock.lock();
+		try {
+			Permit permit = new Permit(getLimit(datastores, datastore, maxPerDatastore), getLimit(hosts, host, maxPerHost), lock.newCondition());
+			queue.add(permit);
+			dispatch();
+			try {
+				while (!permit.granted) {
+					permit.turn.await();
+				}
+			} catch (InterruptedException e) {
+				if (permit.granted) {
+					// got the resources while being interrupted. Giving them
+					// back to the next in line.
+					permit.datastore.running--;
+					permit.host.running--;
+				} else {
+					queue.remove(permit);
+				}
+				dispatch();
+				throw e;
+			}
+			return permit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * gives back the resources taken for a revert.
+	 * 
+	 * @param permit
+	 * @param elapsed
+	 *            how long the revert took, in ms.
+	 * @param success
+	 */
+	public void release(Permit permit, long elapsed, boolean success) {
+		lock.lock();
+		try {
+			permit.datastore.running--;
+			permit.host.running--;
+			if (adaptive) {
+				boolean fast = success && elapsed <= targetLatency;
+				permit.datastore.adjust(fast, adaptiveMaxPerDatastore);
+				permit.host.adjust(fast, adaptiveMaxPerHost);
+			}
+			dispatch();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * starts all the waiting reverts that can start, oldest first. A revert
+	 * doesn't overtake an older one waiting for the same datastore or host,
+	 * but can overtake one waiting for another datastore on the same host,
+	 * and the other way around.
+	 */
+	private void dispatch() {
+		Set<Limit> blocked = new HashSet<Limit>();
+		for (Iterator<Permit> it = queue.iterator(); it.hasNext();) {
+			Permit permit = it.next();
+			boolean datastore = !blocked.contains(permit.datastore) && permit.datastore.hasRoom();
+			boolean host = !blocked.contains(permit.host) && permit.host.hasRoom();
+			if (datastore && host) {
+				permit.datastore.running++;
+				permit.host.running++;
+				permit.granted = true;
+				it.remove();
+				permit.turn.signal();
+			} else {
+				// only the limit that is full is reserved for this revert.
+				if (!datastore) {
+					blocked.add(permit.datastore);
+				}
+				if (!host) {
+					blocked.add(permit.host);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @return the limit shared by the reverts on the same key. An unknown key
+	 *         gets a limit of its own, so that unrelated VMs don't wait for
+	 *         each other.
+	 */
+	private Limit getLimit(Map<String, Limit> limits, String key, int initial) {
+		if (key == null) {
+			return new Limit(UNKNOWN, initial);
+		}
+		Limit limit = limits.get(key);
+		if (limit == null) {
+			limit = new Limit(key, initial);
+			limits.put(key, limit);
+		}
+		return limit;
+	}
+
+	/**
+	 * 
+	 * @return the number of reverts waiting for resources.
+	 */
+	public int getQueueLength() {
+		lock.lock();
+		try {
+			return queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * concurrency limit for a datastore or a host.
+	 */
+	private static class Limit {
+		private final String name;
+		private double limit;
+		private int running = 0;
+
+		Limit(String name, int limit) {
+			this.name = name;
+			this.limit = Math.max(1, limit);
+		}
+
+		boolean hasRoom() {
+			return running < (int) limit;
+		}
+
+		/**
+		 * additive increase, multiplicative decrease.
+		 */
+		void adjust(boolean fast, int max) {
+			int before = (int) limit;
+			if (fast) {
+				limit = Math.min(max, limit + 1 / limit);
+			} else {
+				limit = Math.max(1, limit / 2);
+			}
+			if ((int) limit != before) {
+				log.info("concurrent revert limit for " + name + " now " + (int) limit);
+			}
+		}
+	}
+
+	/**
+	 * right to run one revert.
+	 */
+	public static class Permit {
+		private final Limit datastore;
+		private final Limit host;
+		private final Condition turn;
+		private boolean granted = false;
+
+		private Permit(Limit datastore, Limit host, Condition turn) {
+			this.datastore = datastore;
+			this.host = host;
+			this.turn = turn;
+		}
+	}
+}
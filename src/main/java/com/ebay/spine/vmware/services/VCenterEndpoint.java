@@ -0,0 +1,145 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import com.ebay.spine.vmware.model.VirtualMachineWrapper;
+
+/**
+ * One VCenter ( or ESX ) server the grid uses VMs from. Each endpoint has its
+ * own sessions, its own part of the inventory, its own revert limits and its
+ * own retry budgets ( see RetryPolicies ).
+ * 
+ * Configured in credentials.properties with url, login and pass for a single
+ * server, or for several ones :
+ * 
+ * endpoints=a,b
+ * 
+ * endpoint.a.url=... endpoint.a.login=... endpoint.a.pass=...
+ * 
+ * Any other key can be overridden for an endpoint the same way.
+ * 
+ * @author freynaud
+ * 
+ */
+public class VCenterEndpoint {
+
+	private final String name;
+	private final URL url;
+	private final String userId;
+	private final String pass;
+	private final VCenterSessionManager sessions;
+	private final RevertScheduler revertScheduler;
+	private final RetryPolicy revertPolicy = RetryPolicies.newRevertPolicy();
+	private final RetryPolicy createSnapshotPolicy = RetryPolicies.newCreateSnapshotPolicy();
+	private final RetryPolicy guestLoginPolicy = RetryPolicies.newGuestLoginPolicy();
+	private final RetryPolicy openVmPolicy = RetryPolicies.newOpenVmPolicy();
+	// the grid VMs of this endpoint, replaced as a whole.
+	private volatile List<VirtualMachineWrapper> inventory = Collections.emptyList();
+
+	/**
+	 * connects to the endpoint.
+	 * 
+	 * @param name
+	 * @param properties
+	 *            the properties for that endpoint, see
+	 *            CredentialsProperties.forEndpoint()
+	 */
+	public VCenterEndpoint(String name, Properties properties) {
+		this.name = name;
+		String u = properties.getProperty("url");
+		if (u == null) {
+			throw new RuntimeException("No url specified for the endpoint " + name);
+		}
+		try {
+			url = new URL(u);
+		} catch (MalformedURLException e) {
+			throw new RuntimeException("The url " + u + " of the endpoint " + name + " is wrong.", e);
+		}
+		userId = properties.getProperty("login");
+		pass = properties.getProperty("pass");
+		int size = CredentialsProperties.getInt(properties, "vcenter.sessions", 2);
+		long keepAlive = CredentialsProperties.getInt(properties, "vcenter.keepalive", 60000);
+		sessions = new VCenterSessionManager(url, userId, pass, size, keepAlive);
+		revertScheduler = new RevertScheduler(properties);
+	}
+
+	/**
+	 * 
+	 * @return all the VMs of the endpoint, from VCenter.
+	 */
+	public List<VirtualMachineWrapper> load() {
+		return new InventoryLoader(this).load();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public URL getUrl() {
+		return url;
+	}
+
+	public String getUserId() {
+		return userId;
+	}
+
+	public String getPass() {
+		return pass;
+	}
+
+	public VCenterSessionManager getSessionManager() {
+		return sessions;
+	}
+
+	public RevertScheduler getRevertScheduler() {
+		return revertScheduler;
+	}
+
+	public RetryPolicy getRevertPolicy() {
+		return revertPolicy;
+	}
+
+	public RetryPolicy getCreateSnapshotPolicy() {
+		return createSnapshotPolicy;
+	}
+
+	public RetryPolicy getGuestLoginPolicy() {
+		return guestLoginPolicy;
+	}
+
+	public RetryPolicy getOpenVmPolicy() {
+		return openVmPolicy;
+	}
+
+	List<VirtualMachineWrapper> getInventory() {
+		return inventory;
+	}
+
+	void setInventory(List<VirtualMachineWrapper> inventory) {
+		this.inventory = Collections.unmodifiableList(inventory);
+	}
+
+	@Override
+	public String toString() {
+		return name + " (" + url + ")";
+	}
+}
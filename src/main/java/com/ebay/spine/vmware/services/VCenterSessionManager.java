@@ -0,0 +1,219 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.log4j.Logger;
+
+import com.vmware.vim25.NotAuthenticated;
+import com.vmware.vim25.mo.ServerConnection;
+import com.vmware.vim25.mo.ServiceInstance;
+
+/**
+ * Keeps a small pool of sessions to VCenter alive. Each session is its own
+ * HTTP connection, and the VMs are spread over them so that calls for
+ * different VMs are not serialized on one connection.
+ * 
+ * Every session is checked on a schedule. A session that doesn't answer
+ * anymore ( expired, NotAuthenticated, connection lost ) is replaced by a new
+ * login, retried with a backoff, and the listener re-binds the managed objects
+ * that were using it.
+ * 
+ * @author freynaud
+ * 
+ */
+public class VCenterSessionManager {
+
+	private static final Logger log = Logger.getLogger(VCenterSessionManager.class);
+
+	public static final String RELOGIN = "vcenter.relogin";
+
+	/**
+	 * told when a session is replaced.
+	 */
+	public interface Listener {
+		void sessionRenewed(ServerConnection expired, ServerConnection renewed);
+	}
+
+	private final URL url;
+	private final String userId;
+	private final String pass;
+	private final long keepAlive;
+	private final AtomicReferenceArray<ServiceInstance> sessions;
+	private final AtomicInteger next = new AtomicInteger();
+	private final ScheduledExecutorService scheduler;
+	private volatile Listener listener = null;
+
+	/**
+	 * opens the sessions.
+	 * 
+	 * @param url
+	 * @param userId
+	 * @param pass
+	 * @param size
+	 *            number of sessions.
+	 * @param keepAlive
+	 *            ms between 2 checks of the sessions.
+	 */
+	public VCenterSessionManager(URL url, String userId, String pass, int size, long keepAlive) {
+		this.url = url;
+		this.userId = userId;
+		this.pass = pass;
+		this.keepAlive = keepAlive;
+		sessions = new AtomicReferenceArray<ServiceInstance>(Math.max(1, size));
+		for (int i = 0; i < sessions.length(); i++) {
+			try {
+				sessions.set(i, login());
+			} catch (Exception e) {
+				throw new RuntimeException("error connecting to the ESX server" + e.getMessage(), e);
+			}
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "vcenter-keepalive");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		log.info("Opened " + sessions.length() + " session(s) to " + url);
+	}
+
+	/**
+	 * starts checking the sessions every keepAlive ms.
+	 */
+	public void start() {
+		scheduler.scheduleWithFixedDelay(new KeepAlive(), keepAlive, keepAlive, TimeUnit.MILLISECONDS);
+	}
+
+	public void shutdown() {
+		scheduler.shutdownNow();
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * 
+	 * @return the main session, for the inventory.
+	 */
+	public ServiceInstance getServiceInstance() {
+		return sessions.get(0);
+	}
+
+	/**
+	 * 
+	 * @return one of the sessions, in turn.
+	 */
+	public ServiceInstance next() {
+		int i = (next.getAndIncrement() & Integer.MAX_VALUE) % sessions.length();
+		return sessions.get(i);
+	}
+
+	public int size() {
+		return sessions.length();
+	}
+
+	/**
+	 * checks the sessions right away if the error shows a session has
+	 * expired, rather than waiting for the next keepalive.
+	 * 
+	 * @param error
+	 *            the error of a call to VCenter.
+	 */
+	public void check(Throwable error) {
+		if (isNotAuthenticated(error)) {
+			log.warn("VCenter session expired : " + error.getMessage() + ". Checking the sessions now.");
+			scheduler.execute(new KeepAlive());
+		}
+	}
+
+	/**
+	 * 
+	 * @param error
+	 * @return true if the error, or one of its causes, is a NotAuthenticated
+	 *         fault.
+	 */
+	public static boolean isNotAuthenticated(Throwable error) {
+		for (Throwable t = error; t != null; t = t.getCause()) {
+			if (t instanceof NotAuthenticated) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private class KeepAlive implements Runnable {
+		public void run() {
+			// an exception would stop the schedule.
+			for (int i = 0; i < sessions.length(); i++) {
+				try {
+					checkSession(i);
+				} catch (Throwable t) {
+					log.error("Cannot renew the VCenter session " + i + " : " + t.getMessage(), t);
+				}
+			}
+		}
+	}
+
+	private void checkSession(int i) {
+		ServiceInstance si = sessions.get(i);
+		try {
+			si.currentTime();
+		} catch (Throwable t) {
+			log.warn("VCenter session " + i + " doesn't answer : " + t.getMessage() + ". Login again.");
+			renew(i, si);
+		}
+	}
+
+	/**
+	 * replaces the session. Only runs on the keepalive thread.
+	 * 
+	 * @param i
+	 * @param expired
+	 */
+	private void renew(int i, ServiceInstance expired) {
+		ServiceInstance renewed = RetryPolicies.VCENTER_LOGIN.call(new Callable<ServiceInstance>() {
+			public ServiceInstance call() throws Exception {
+				return login();
+			}
+		});
+		sessions.set(i, renewed);
+		Metrics.getInstance().increment(RELOGIN);
+		try {
+			expired.getServerConnection().logout();
+		} catch (Throwable t) {
+			log.debug("Error closing the expired session : " + t.getMessage());
+		}
+		Listener l = listener;
+		if (l != null) {
+			l.sessionRenewed(expired.getServerConnection(), renewed.getServerConnection());
+		}
+		log.info("VCenter session " + i + " renewed.");
+	}
+
+	private ServiceInstance login() throws Exception {
+		return new ServiceInstance(url, userId, pass, true);
+	}
+}
@@ -19,9 +19,10 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
 
 import org.apache.log4j.Logger;
 import org.openqa.grid.internal.GridException;
@@ -29,7 +30,6 @@ import org.openqa.grid.internal.GridException;
 import com.ebay.spine.vmware.model.VirtualMachineWrapper;
 import com.vmware.vix.VixConstants;
 import com.vmware.vix.VixException;
-import com.vmware.vix.VixVSphereHandle;
 import com.vmware.vix.VixVmHandle;
 
 /**
@@ -43,13 +43,12 @@ public class VIX {
 
 	private static final Logger log = Logger.getLogger(VIX.class);
 
-	private static String userId;
-	private static String pass;
-	private static String url;
 	private static String vixPath;
-	private VixVSphereHandle hostHandle;
+	private VixConnectionPool.HostConnection hostHandle;
 	private VirtualMachineWrapper vm;
 	private VixVmHandle vixVm;
+	// guest session opened on vixVm.
+	private boolean loggedIn = false;
 
 	static {
 		Properties properties = new Properties();
@@ -57,15 +56,12 @@ public class VIX {
 		try {
 			File f = new File("credentials.properties");
 			if (!f.exists()) {
-				String s = "You need a valid ESX login pass specified in credentials.properties";
+				String s = "You need the vixPath specified in credentials.properties";
 				log.error(s);
 				throw new RuntimeException(s);
 			}
 			Reader rdr = new FileReader(f);
 			properties.load(rdr);
-			userId = properties.getProperty("login");
-			pass = properties.getProperty("pass");
-			url = properties.getProperty("url");
 			vixPath = properties.getProperty("vixPath");
 		} catch (IOException e) {
 			throw new RuntimeException(e);
@@ -85,50 +81,100 @@ public class VIX {
 		throw new RuntimeException("Cannot find the necessary VIX related files. ( tried " + vixPath + ")");
 	}
 
+	/**
+	 * get a connection from the pool. The connection goes to the VCenter the
+	 * VM comes from, and is shared with the other VMs on the same ESX host.
+	 */
 	private void connect() {
+		VCenterEndpoint endpoint = vm.getEndpoint();
+		String server = endpoint.getUrl().getHost();
+		// the host id is only unique within its VCenter.
+		String esxHost = vm.getHostId() == null ? server : server + "/" + vm.getHostId();
 		try {
-			hostHandle = new VixVSphereHandle(new URL(url).getHost(), userId, pass);
+			hostHandle = VixConnectionPool.getInstance().lease(server, esxHost, endpoint.getUserId(), endpoint.getPass());
 		} catch (VixException e) {
 			log.error("Cannot initialize VIX service.", e);
-		} catch (MalformedURLException e) {
-			log.error("Cannot initialize VIX service.The URL specified for the entry point " + url + " is wrong.", e);
-			throw new RuntimeException(e);
 		}
 	}
 
 	/**
-	 * Creates the VIX instance associated to the VM. retry once if the
-	 * connection fails.
+	 * Creates the VIX instance associated to the VM. Retries on the same
+	 * connection, then reconnects once if the VM still cannot be opened.
 	 * 
 	 * @param vm
 	 */
 	public VIX(VirtualMachineWrapper vm) {
 		this.vm = vm;
+		connect();
 		try {
-			connect();
-			vixVm = hostHandle.openVm(vm.getConfigPath());
-		} catch (VixException e) {
+			openVm();
+		} catch (GridException e) {
 			log.warn(e.getMessage());
-			connect();
+			reconnect();
 			try {
-				vixVm = hostHandle.openVm(vm.getConfigPath());
-			} catch (VixException v) {
+				openVm();
+			} catch (GridException v) {
+				releaseConnection();
 				throw new GridException("Cannot initiate the VIX connection to vm " + vm.getName(), v);
 			}
 		}
 	}
 
-	public void release() {
+	private void openVm() {
+		if (hostHandle == null) {
+			throw new GridException("No VIX connection to open " + vm.getName());
+		}
+		loggedIn = false;
+		vixVm = vm.getEndpoint().getOpenVmPolicy().call(new Callable<VixVmHandle>() {
+			public VixVmHandle call() throws VixException {
+				return hostHandle.openVm(vm.getConfigPath());
+			}
+		});
+	}
+
+	public synchronized void release() {
+		releaseVm();
+		releaseConnection();
+	}
+
+	/**
+	 * closes the VM handle. Does nothing if it is already closed.
+	 */
+	private void releaseVm() {
+		loggedIn = false;
 		if (vixVm != null) {
+			VixVmHandle handle = vixVm;
+			vixVm = null;
 			try {
-				vixVm.release();
-				hostHandle.disconnect();
+				handle.release();
 			} catch (Throwable t) {
 				log.error("Error releasing the resource", t);
 			}
 		}
 	}
 
+	/**
+	 * gives the host connection back to the pool.
+	 */
+	private void releaseConnection() {
+		if (hostHandle != null) {
+			VixConnectionPool.getInstance().release(hostHandle);
+			hostHandle = null;
+		}
+	}
+
+	/**
+	 * the host connection doesn't work. Giving it back to the pool and
+	 * getting a new one.
+	 */
+	private void reconnect() {
+		if (hostHandle != null) {
+			VixConnectionPool.getInstance().invalidate(hostHandle);
+		}
+		releaseConnection();
+		connect();
+	}
+
 	/**
 	 * 
 	 * @param interpreter
@@ -138,67 +184,142 @@ public class VIX {
 	 * @param returnImmediately
 	 * @return exit code of the command.
 	 */
-	public int runProgramInGuest(String interpreter, String command, boolean returnImmediately) {
-
-		int res = -1;
+	public int runProgramInGuest(final String interpreter, final String command, final boolean returnImmediately) {
+		Metrics metrics = Metrics.getInstance();
+		long start = System.currentTimeMillis();
+		int res;
 		try {
-			login();
-			res = vixVm.runScriptInGuest(interpreter, command, returnImmediately);
-		} catch (VixException e) {
-			throw new GridException(e.getMessage(), e);
+			res = runInGuest(new GuestOperation<Integer>() {
+				public Integer run(VixVmHandle guest) throws VixException {
+					return guest.runScriptInGuest(interpreter, command, returnImmediately);
+				}
+			});
+		} catch (GridException e) {
+			metrics.increment(Metrics.VIX_RUN_PROGRAM_FAILURES);
+			throw e;
+		} finally {
+			metrics.record(Metrics.VIX_RUN_PROGRAM, start);
 		}
-
 		if (res != 0) {
+			metrics.increment(Metrics.VIX_RUN_PROGRAM_FAILURES);
 			log.warn("error trying to launch " + command + " using " + interpreter);
 		}
 		return res;
 	}
 
-	public void createFolderInGuest(String folder) {
-		try {
-			login();
-			if (!vixVm.directoryExistsInGuest(folder)) {
-				vixVm.createDirectoryInGuest(folder);
+	public void createFolderInGuest(final String folder) {
+		runInGuest(new GuestOperation<Object>() {
+			public Object run(VixVmHandle guest) throws VixException {
+				if (!guest.directoryExistsInGuest(folder)) {
+					guest.createDirectoryInGuest(folder);
+				}
+				return null;
 			}
+		});
+	}
+
+	/**
+	 * an operation that needs to be logged in the guest.
+	 * 
+	 * @param <T>
+	 */
+	public interface GuestOperation<T> {
+		T run(VixVmHandle guest) throws VixException;
+	}
+
+	/**
+	 * runs the operation in the guest, login in first if needed.
+	 * 
+	 * @param operation
+	 * @return the result of the operation.
+	 */
+	public synchronized <T> T runInGuest(GuestOperation<T> operation) {
+		login();
+		try {
+			return operation.run(vixVm);
 		} catch (VixException e) {
+			// the guest session may be the problem. Login again next time.
+			loggedIn = false;
+			HealthMonitor.getInstance().record(vm, HealthEvent.VIX_ERROR);
 			throw new GridException(e.getMessage(), e);
 		}
+	}
 
+	/**
+	 * runs all the operations in the guest under the same login.
+	 * 
+	 * @param operations
+	 * @return the results of the operations, in the same order.
+	 */
+	public synchronized List<Object> runInGuest(List<? extends GuestOperation<?>> operations) {
+		List<Object> res = new ArrayList<Object>();
+		for (GuestOperation<?> operation : operations) {
+			res.add(runInGuest(operation));
+		}
+		return res;
 	}
 
 	/**
 	 * for some reason login crashes with the error : user has to be logged in
-	 * to login in .. Retrying until it works.
-	 * http://communities.vmware.com/message/1159836
+	 * to login in .. Retrying with a backoff until it works, reconnecting once
+	 * if it still doesn't. http://communities.vmware.com/message/1159836
 	 * 
+	 * Does nothing if already logged in. The guest session stays valid until
+	 * the VM is reverted ( this VIX instance is released then ) or an operation
+	 * fails.
 	 */
 	private void login() {
-		boolean loggedIn = false;
-		int error = 0;
-		while (!loggedIn && error < 10) {
-			try {
-				vixVm.loginInGuest("euqe", "1234", VixConstants.VIX_LOGIN_IN_GUEST_REQUIRE_INTERACTIVE_ENVIRONMENT);
-				loggedIn = true;
-			} catch (VixException e) {
-				error++;
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e1) {
-				}
-			}
+		if (loggedIn) {
+			Metrics.getInstance().increment(Metrics.VIX_SAVED_LOGINS);
+			return;
 		}
-		if (!loggedIn) {
-			log.debug("Error loggin in.Releasing again and reconnecting");
-			vixVm.release();
+		long start = System.currentTimeMillis();
+		try {
+			if (vixVm == null) {
+				// an earlier reconnect failed.
+				throw new GridException("VM " + vm.getName() + " not opened.");
+			}
+			vm.getEndpoint().getGuestLoginPolicy().call(new LoginInGuest());
+		} catch (GridException e) {
+			if (Thread.currentThread().isInterrupted()) {
+				throw e;
+			}
+			log.debug("Error loggin in.Releasing again and reconnecting : " + e.getMessage());
+			releaseVm();
+			reconnect();
 			try {
-				log.debug("reconnecting to VIX");
-				connect();
-				vixVm = hostHandle.openVm(vm.getConfigPath());
-				login();
-			} catch (VixException e) {
-				e.printStackTrace();
+				openVm();
+				vm.getEndpoint().getGuestLoginPolicy().call(new LoginInGuest());
+			} catch (GridException v) {
+				HealthMonitor.getInstance().record(vm, HealthEvent.VIX_ERROR);
+				throw v;
 			}
 		}
+		Metrics.getInstance().record(Metrics.VIX_LOGIN, start);
+		loggedIn = true;
+	}
+
+	private class LoginInGuest implements Callable<Object> {
+		public Object call() throws VixException {
+			vixVm.loginInGuest("euqe", "1234", VixConstants.VIX_LOGIN_IN_GUEST_REQUIRE_INTERACTIVE_ENVIRONMENT);
+			return null;
+		}
+	}
+
+	/**
+	 * 
+	 * @return the number of guest logins done.
+	 */
+	public static long getLogins() {
+		return Metrics.getInstance().timer(Metrics.VIX_LOGIN).getCount();
+	}
+
+	/**
+	 * 
+	 * @return the number of guest logins avoided by reusing a guest session.
+	 */
+	public static long getSavedLogins() {
+		return Metrics.getInstance().counter(Metrics.VIX_SAVED_LOGINS).getValue();
 	}
 
 	/**
@@ -213,13 +334,22 @@ public class VIX {
 		}
 	}
 
-	public void copyFileFromHostToGuest(String srcFile, String destFile) throws VixException {
-		vixVm.copyFileFromHostToGuest(srcFile, destFile);
+	public synchronized void copyFileFromHostToGuest(final String srcFile, final String destFile) {
+		runInGuest(new GuestOperation<Object>() {
+			public Object run(VixVmHandle guest) throws VixException {
+				guest.copyFileFromHostToGuest(srcFile, destFile);
+				return null;
+			}
+		});
 	}
 
-	public void copyFileFromGuestToHost(String src, String dest) throws VixException {
-		vixVm.copyFileFromGuestToHost(src, dest);
-
+	public synchronized void copyFileFromGuestToHost(final String src, final String dest) {
+		runInGuest(new GuestOperation<Object>() {
+			public Object run(VixVmHandle guest) throws VixException {
+				guest.copyFileFromGuestToHost(src, dest);
+				return null;
+			}
+		});
 	}
 
 }
@@ -0,0 +1,100 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import java.util.List;
+
+import com.ebay.spine.vmware.model.SnapshotIndex;
+import com.ebay.spine.vmware.model.VirtualMachineWrapper;
+
+/**
+ * The VMs of the VirtualMachinePool, managed with VSphere WS and VIX.
+ * 
+ * @author freynaud
+ * 
+ */
+public class VSphereBackend implements HypervisorBackend {
+
+	private final VirtualMachinePool pool;
+
+	public VSphereBackend(VirtualMachinePool pool) {
+		this.pool = pool;
+	}
+
+	public VirtualMachineWrapper getVMById(String id) {
+		return pool.getVMById(id);
+	}
+
+	public List<VirtualMachineWrapper> getNodeVMs(NodeRole role) {
+		return pool.getNodeVMs(role);
+	}
+
+	public boolean snapshotExists(VirtualMachineWrapper vm, String snapshot) {
+		return vm.snapshotExists(snapshot);
+	}
+
+	public void revertToSnapshot(VirtualMachineWrapper vm, String snapshot) {
+		vm.revertToSnapshot(snapshot);
+	}
+
+	public void createSnapshot(VirtualMachineWrapper vm, String snapshot) {
+		vm.createSnapshot(snapshot);
+	}
+
+	public SnapshotIndex getSnapshots(VirtualMachineWrapper vm) {
+		return vm.getSnapshotIndex();
+	}
+
+	public void deleteSnapshot(VirtualMachineWrapper vm, String snapshot) {
+		vm.getSnapshot(snapshot).delete();
+	}
+
+	public void renameSnapshot(VirtualMachineWrapper vm, String snapshot, String newName) {
+		vm.getSnapshot(snapshot).rename(newName);
+	}
+
+	public void powerOn(VirtualMachineWrapper vm) {
+		vm.powerOn();
+	}
+
+	public boolean isPoweredOn(VirtualMachineWrapper vm) {
+		return vm.isPoweredOn();
+	}
+
+	public int runProgramInGuest(VirtualMachineWrapper vm, String interpreter, String command) {
+		return vm.getVIXService().runProgramInGuest(interpreter, command, false);
+	}
+
+	public boolean isGuestReady(VirtualMachineWrapper vm) {
+		try {
+			String ip = vm.getVIXService().getGuestIP();
+			return ip != null && !"".equals(ip.trim());
+		} catch (Throwable t) {
+			return false;
+		}
+	}
+
+	public List<String> getGuestIps(VirtualMachineWrapper vm) {
+		return vm.getGuestIps();
+	}
+
+	/**
+	 * also refreshes the IP known for the VM.
+	 */
+	public boolean isReachable(VirtualMachineWrapper vm, int port) {
+		return IpRegistry.getInstance().resolve(vm, port) != null;
+	}
+}
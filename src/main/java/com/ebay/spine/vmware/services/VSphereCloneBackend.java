@@ -0,0 +1,35 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import com.ebay.spine.vmware.model.VirtualMachineWrapper;
+
+/**
+ * Linked clones on the VCenter the pool is connected to.
+ * 
+ * @author freynaud
+ * 
+ */
+public class VSphereCloneBackend implements CloneBackend {
+
+	public VirtualMachineWrapper createLinkedClone(VirtualMachineWrapper template, String snapshot, String cloneName) {
+		return template.createLinkedClone(snapshot, cloneName);
+	}
+
+	public void destroy(VirtualMachineWrapper vm) {
+		vm.destroy();
+	}
+}
@@ -0,0 +1,119 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ebay.spine.vmware.model.VirtualMachineWrapper;
+
+/**
+ * Immutable view of the VMs known by the pool, indexed by uuid, name and node
+ * role. A new index is built every time the inventory changes and published as
+ * a whole, so readers never have to lock.
+ * 
+ * @author freynaud
+ * 
+ */
+public final class VirtualMachineIndex {
+
+	private final List<VirtualMachineWrapper> all;
+	private final Map<String, VirtualMachineWrapper> byId;
+	private final Map<String, VirtualMachineWrapper> byName;
+	private final Map<NodeRole, List<VirtualMachineWrapper>> byRole;
+	private final List<VirtualMachineWrapper> nodes;
+
+	public static final VirtualMachineIndex EMPTY = new VirtualMachineIndex(Collections.<VirtualMachineWrapper> emptyList());
+
+	public VirtualMachineIndex(Collection<VirtualMachineWrapper> vms) {
+		List<VirtualMachineWrapper> allVms = new ArrayList<VirtualMachineWrapper>(vms.size());
+		Map<String, VirtualMachineWrapper> ids = new HashMap<String, VirtualMachineWrapper>(vms.size() * 2);
+		Map<String, VirtualMachineWrapper> names = new HashMap<String, VirtualMachineWrapper>(vms.size() * 2);
+		Map<NodeRole, List<VirtualMachineWrapper>> roles = new EnumMap<NodeRole, List<VirtualMachineWrapper>>(NodeRole.class);
+		List<VirtualMachineWrapper> nodeVms = new ArrayList<VirtualMachineWrapper>();
+
+		for (VirtualMachineWrapper vm : vms) {
+			allVms.add(vm);
+			ids.put(vm.getId(), vm);
+			// several VMs can have the same name. First one wins, same as the
+			// scan used to do.
+			if (vm.getName() != null && !names.containsKey(vm.getName())) {
+				names.put(vm.getName(), vm);
+			}
+			NodeRole role = vm.getRole();
+			if (role != null) {
+				List<VirtualMachineWrapper> forRole = roles.get(role);
+				if (forRole == null) {
+					forRole = new ArrayList<VirtualMachineWrapper>();
+					roles.put(role, forRole);
+				}
+				forRole.add(vm);
+				nodeVms.add(vm);
+			}
+		}
+		for (NodeRole role : NodeRole.values()) {
+			List<VirtualMachineWrapper> forRole = roles.get(role);
+			roles.put(role, forRole == null ? Collections.<VirtualMachineWrapper> emptyList() : Collections.unmodifiableList(forRole));
+		}
+
+		this.all = Collections.unmodifiableList(allVms);
+		this.byId = Collections.unmodifiableMap(ids);
+		this.byName = Collections.unmodifiableMap(names);
+		this.byRole = Collections.unmodifiableMap(roles);
+		this.nodes = Collections.unmodifiableList(nodeVms);
+	}
+
+	/**
+	 * @param uuid
+	 * @return the VM with that uuid, null if it doesn't exist.
+	 */
+	public VirtualMachineWrapper getById(String uuid) {
+		return uuid == null ? null : byId.get(uuid);
+	}
+
+	/**
+	 * @param name
+	 *            case sensitive.
+	 * @return the first VM with that name, null if it doesn't exist.
+	 */
+	public VirtualMachineWrapper getByName(String name) {
+		return name == null ? null : byName.get(name);
+	}
+
+	public List<VirtualMachineWrapper> getByRole(NodeRole role) {
+		return byRole.get(role);
+	}
+
+	/**
+	 * @return all the VMs that have a node role.
+	 */
+	public List<VirtualMachineWrapper> getNodes() {
+		return nodes;
+	}
+
+	public List<VirtualMachineWrapper> getAll() {
+		return all;
+	}
+
+	public int size() {
+		return all.size();
+	}
+}
@@ -0,0 +1,50 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import com.ebay.spine.vmware.model.VirtualMachineWrapper;
+
+/**
+ * The VMs known to the grid, that the grid adds its own VMs to ( clones for
+ * instance ). Implemented by VirtualMachinePool.
+ * 
+ * @author freynaud
+ * 
+ */
+public interface VirtualMachineInventory {
+
+	/**
+	 * 
+	 * @param name
+	 *            case sensitive.
+	 * @return the first VM with that name, null if there is none.
+	 */
+	VirtualMachineWrapper getVMByName(String name);
+
+	/**
+	 * adds a VM created by the grid itself.
+	 * 
+	 * @param vm
+	 */
+	void add(VirtualMachineWrapper vm);
+
+	/**
+	 * removes a VM deleted by the grid itself.
+	 * 
+	 * @param vm
+	 */
+	void remove(VirtualMachineWrapper vm);
+}
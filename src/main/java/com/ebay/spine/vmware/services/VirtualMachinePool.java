@@ -19,43 +19,57 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
-import java.net.URL;
-import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 
 import com.ebay.spine.vmware.model.VirtualMachineWrapper;
-import com.vmware.vim25.RuntimeFault;
-import com.vmware.vim25.mo.Folder;
-import com.vmware.vim25.mo.InventoryNavigator;
-import com.vmware.vim25.mo.ManagedEntity;
-import com.vmware.vim25.mo.ServiceInstance;
-import com.vmware.vim25.mo.VirtualMachine;
+import com.vmware.vim25.mo.ServerConnection;
 
 /**
- * Keeping the state of the underlying VCenter server using VSphere WS. Assume
+ * Keeping the state of the underlying VCenter servers using VSphere WS. Assume
  * this is the only process accessing the VMs = there is no locks on the VMs,
  * and it will not prevent someone from powering off a VM while a snapshot runs
  * on it.
  * 
- * The 
+ * The VMs can come from several VCenter servers ( see VCenterEndpoint ). Each
+ * one is loaded and tracked on its own, the pool shows them all together.
+ * 
+ * inventory.cache=file in credentials.properties : the inventory is saved in
+ * that file ( see InventoryCache ). At startup, the pool is built from it
+ * right away and checked against VCenter in the background.
  * 
  */
-public class VirtualMachinePool {
+public class VirtualMachinePool implements VirtualMachineInventory {
 
 	private static final Logger log = Logger.getLogger(VirtualMachinePool.class);
 
-	// credential to access VCenter
-	private static String userId;
-	private static String pass;
-	private static String url;
-	private static ServiceInstance si = null;
+	// the VCenter servers the VMs come from.
+	private static List<VCenterEndpoint> endpoints = null;
 	private static VirtualMachinePool instance = null;
-	// VMs do not change = restart the grid to pickup newly added VMs
+	private static Properties properties;
+	// VMs do not change = restart the grid to pickup newly added VMs, unless
+	// the changes are tracked.
 	private static boolean cacheVms = true;
+	// inventory.tracking=true in credentials.properties : keeps the cached VMs
+	// in sync with VCenter in the background.
+	private static boolean trackChanges = false;
+	// decides which VMs are nodes, with which role.
+	private static NodeClassifier classifier;
+	// null if the inventory isn't saved on disk.
+	private static InventoryCache cache = null;
+	private final List<InventoryTracker> trackers = new ArrayList<InventoryTracker>();
 
 	public static synchronized VirtualMachinePool getInstance() {
 		if (instance == null) {
@@ -66,6 +80,40 @@ public class VirtualMachinePool {
 
 	private VirtualMachinePool() {
 		createConnection();
+		for (final VCenterEndpoint endpoint : endpoints) {
+			endpoint.getSessionManager().setListener(new VCenterSessionManager.Listener() {
+				public void sessionRenewed(ServerConnection expired, ServerConnection renewed) {
+					rebind(endpoint, expired, renewed);
+				}
+			});
+			endpoint.getSessionManager().start();
+		}
+	}
+
+	/**
+	 * 
+	 * @return the VCenter servers the VMs come from.
+	 */
+	public List<VCenterEndpoint> getEndpoints() {
+		return endpoints;
+	}
+
+	/**
+	 * moves the VMs that were using an expired session to the new one.
+	 * 
+	 * @param endpoint
+	 * @param expired
+	 * @param renewed
+	 */
+	private void rebind(VCenterEndpoint endpoint, ServerConnection expired, ServerConnection renewed) {
+		int count = 0;
+		for (VirtualMachineWrapper vm : endpoint.getInventory()) {
+			if (vm.getServerConnection() == expired) {
+				vm.rebind(renewed);
+				count++;
+			}
+		}
+		log.info(count + " VMs of " + endpoint.getName() + " moved to the renewed VCenter session.");
 	}
 
 	
@@ -77,15 +125,26 @@ public class VirtualMachinePool {
 	 * @return the VM with the given id. Throws a RTE if the uuid doesn't exist.
 	 */
 	public VirtualMachineWrapper getVMById(String uuid) {
-		for (VirtualMachineWrapper vm : getAllVM()) {
-			if (vm.getId().equals(uuid)) {
-				return vm;
-			}
+		VirtualMachineWrapper vm = getIndex().getById(uuid);
+		if (vm == null) {
+			throw new RuntimeException("Cannot find the VM with id " + uuid);
 		}
-		throw new RuntimeException("Cannot find the VM with id " + uuid);
+		return vm;
 	}
 
-	List<VirtualMachineWrapper> vmsCache = null;
+	/**
+	 * Return the first VM with the given name.
+	 * 
+	 * @param name
+	 *            case sensitive.
+	 * @return the VM, null if there is no VM with that name.
+	 */
+	public VirtualMachineWrapper getVMByName(String name) {
+		return getIndex().getByName(name);
+	}
+
+	// published as a whole, readers never lock.
+	private volatile VirtualMachineIndex index = null;
 
 	/**
 	 * gets all the VM that will be usable as grid nodes.
@@ -93,38 +152,293 @@ public class VirtualMachinePool {
 	 * @return
 	 */
 	public List<VirtualMachineWrapper> getAllNodeVMs() {
-		List<VirtualMachineWrapper> res = new ArrayList<VirtualMachineWrapper>();
-		List<VirtualMachineWrapper> all = getAllVM();
-		// convention = nodes name starts with spine-linux or spine-win
-		for (VirtualMachineWrapper vm : all) {
-			if (vm.getName() != null && (vm.getName().startsWith("spine-linux") || vm.getName().startsWith("spine-win"))) {
-				res.add(vm);
-			}
-		}
-		return res;
+		return getIndex().getNodes();
+	}
 
+	/**
+	 * gets all the VM that will be usable as grid nodes for the given role.
+	 * 
+	 * @param role
+	 * @return
+	 */
+	public List<VirtualMachineWrapper> getNodeVMs(NodeRole role) {
+		return getIndex().getByRole(role);
 	}
 
 	public List<VirtualMachineWrapper> getAllVM() {
+		return getIndex().getAll();
+	}
+
+	/**
+	 * 
+	 * @return the current view of the inventory. Loads it the first time, or
+	 *         every time if the VMs aren't cached.
+	 */
+	public VirtualMachineIndex getIndex() {
 		if (cacheVms) {
-			if (vmsCache == null) {
+			VirtualMachineIndex current = index;
+			if (current == null) {
 				synchronized (this) {
-					if (vmsCache == null) {
-						vmsCache = loadAllVms();
+					current = index;
+					if (current == null) {
+						List<VirtualMachineWrapper> cached = warmStart();
+						if (cached != null) {
+							current = new VirtualMachineIndex(cached);
+							index = current;
+							verifyInBackground();
+						} else {
+							current = new VirtualMachineIndex(loadAllVms());
+							index = current;
+							warmUpSnapshots(current.getNodes());
+							for (VCenterEndpoint endpoint : endpoints) {
+								updateCache(endpoint);
+							}
+							if (trackChanges) {
+								startTracking();
+							}
+						}
 					}
 				}
 			}
-			return vmsCache;
+			return current;
 		} else {
-			return loadAllVms();
+			VirtualMachineIndex current = new VirtualMachineIndex(loadAllVms());
+			index = current;
+			return current;
+		}
+	}
+
+	/**
+	 * loads the snapshots of the VMs in parallel, rather than one VM at a time
+	 * as the proxies register. Uses snapshots.warmup.threads threads, default
+	 * 8.
+	 * 
+	 * @param vms
+	 */
+	private void warmUpSnapshots(List<VirtualMachineWrapper> vms) {
+		if (vms.isEmpty()) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		int threads = Math.min(vms.size(), Math.max(1, CredentialsProperties.getInt(properties, "snapshots.warmup.threads", 8)));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> loads = new ArrayList<Future<?>>();
+			for (final VirtualMachineWrapper vm : vms) {
+				loads.add(executor.submit(new Runnable() {
+					public void run() {
+						vm.getSnapshotIndex();
+					}
+				}));
+			}
+			for (Future<?> load : loads) {
+				try {
+					load.get();
+				} catch (ExecutionException e) {
+					// will be loaded again when needed.
+					log.warn("Error loading the snapshots : " + e.getCause().getMessage());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdownNow();
+		}
+		log.info("Loaded the snapshots of " + vms.size() + " VMs in " + (System.currentTimeMillis() - start) + "ms.");
+	}
+
+	/**
+	 * builds the inventory from the cache, without calling VCenter.
+	 * 
+	 * @return the cached VMs, null if there is no cache or if it doesn't
+	 *         cover all the endpoints.
+	 */
+	private List<VirtualMachineWrapper> warmStart() {
+		if (cache == null) {
+			return null;
+		}
+		long start = System.currentTimeMillis();
+		Map<String, List<InventoryCache.Entry>> entries = cache.read();
+		for (VCenterEndpoint endpoint : endpoints) {
+			if (!entries.containsKey(endpoint.getName())) {
+				log.info("No cached inventory for " + endpoint + ". Loading everything from VCenter.");
+				return null;
+			}
+		}
+		for (VCenterEndpoint endpoint : endpoints) {
+			List<VirtualMachineWrapper> vms = new ArrayList<VirtualMachineWrapper>();
+			for (InventoryCache.Entry entry : entries.get(endpoint.getName())) {
+				VirtualMachineWrapper vm = entry.toWrapper(endpoint.getSessionManager().next().getServerConnection());
+				vm.setEndpoint(endpoint);
+				vms.add(vm);
+			}
+			endpoint.setInventory(classify(vms));
+		}
+		long elapsed = Metrics.getInstance().record(Metrics.INVENTORY_WARM_START, start);
+		List<VirtualMachineWrapper> res = merge();
+		log.info("Loaded " + res.size() + " VMs from the cache in " + elapsed + "ms.");
+		return res;
+	}
+
+	/**
+	 * loads the inventory from VCenter in the background and updates the VMs
+	 * built from the cache. The VMs keep the same objects, the proxies may
+	 * already use them. Starts the tracking once done.
+	 */
+	private void verifyInBackground() {
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				long start = System.currentTimeMillis();
+				for (VCenterEndpoint endpoint : endpoints) {
+					try {
+						verify(endpoint);
+					} catch (Throwable e) {
+						log.error("Cannot check the cached inventory of " + endpoint + " : " + e.getMessage(), e);
+					}
+				}
+				Metrics.getInstance().record(Metrics.INVENTORY_VERIFY, start);
+				if (trackChanges) {
+					startTracking();
+				}
+			}
+		}, "inventory-verifier");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private void verify(VCenterEndpoint endpoint) {
+		Map<String, VirtualMachineWrapper> cached = new HashMap<String, VirtualMachineWrapper>();
+		for (VirtualMachineWrapper vm : endpoint.getInventory()) {
+			cached.put(vm.getId(), vm);
+		}
+		List<VirtualMachineWrapper> res = new ArrayList<VirtualMachineWrapper>();
+		int added = 0;
+		for (VirtualMachineWrapper fresh : endpoint.load()) {
+			VirtualMachineWrapper known = cached.remove(fresh.getId());
+			if (known != null) {
+				known.update(fresh);
+				res.add(known);
+			} else {
+				res.add(fresh);
+				added++;
+			}
+		}
+		publish(endpoint, res);
+		log.info("Cached inventory of " + endpoint + " checked : " + added + " VMs added, " + cached.size() + " removed.");
+	}
+
+	/**
+	 * saves the current VMs of the endpoint in the cache, if there is one.
+	 * 
+	 * @param endpoint
+	 */
+	private static void updateCache(VCenterEndpoint endpoint) {
+		if (cache != null) {
+			cache.update(endpoint.getName(), endpoint.getInventory());
+		}
+	}
+
+	/**
+	 * Starts applying the changes made on VCenter to the cached VMs, so that
+	 * new, deleted or renamed VMs are picked up without reloading everything.
+	 * One tracker per endpoint.
+	 */
+	private void startTracking() {
+		for (VCenterEndpoint endpoint : endpoints) {
+			InventoryTracker tracker = new InventoryTracker(this, endpoint, new PropertyCollectorUpdateSource(endpoint), new InventoryLoader(
+					endpoint));
+			tracker.start();
+			trackers.add(tracker);
+		}
+		log.info("Tracking the inventory changes.");
+	}
+
+	/**
+	 * replace the current view of the inventory of an endpoint.
+	 * 
+	 * @param endpoint
+	 * @param vms
+	 *            all the VMs on the endpoint. They are classified again, the
+	 *            ones that are not for the grid are filtered out.
+	 */
+	synchronized void publish(VCenterEndpoint endpoint, Collection<VirtualMachineWrapper> vms) {
+		endpoint.setInventory(classify(vms));
+		index = new VirtualMachineIndex(merge());
+		updateCache(endpoint);
+	}
+
+	/**
+	 * adds a VM created by the grid itself ( a clone for instance ).
+	 * 
+	 * @param vm
+	 */
+	public synchronized void add(VirtualMachineWrapper vm) {
+		// the inventory has to be loaded first.
+		getIndex();
+		VCenterEndpoint endpoint = endpointOf(vm);
+		List<VirtualMachineWrapper> res = new ArrayList<VirtualMachineWrapper>(endpoint.getInventory());
+		res.add(vm);
+		endpoint.setInventory(res);
+		index = new VirtualMachineIndex(merge());
+		updateCache(endpoint);
+	}
+
+	/**
+	 * removes a VM deleted by the grid itself.
+	 * 
+	 * @param vm
+	 */
+	public synchronized void remove(VirtualMachineWrapper vm) {
+		// the inventory has to be loaded first.
+		getIndex();
+		VCenterEndpoint endpoint = endpointOf(vm);
+		List<VirtualMachineWrapper> res = new ArrayList<VirtualMachineWrapper>(endpoint.getInventory());
+		res.remove(vm);
+		endpoint.setInventory(res);
+		index = new VirtualMachineIndex(merge());
+		updateCache(endpoint);
+	}
+
+	private static VCenterEndpoint endpointOf(VirtualMachineWrapper vm) {
+		return vm.getEndpoint() != null ? vm.getEndpoint() : endpoints.get(0);
+	}
+
+	/**
+	 * 
+	 * @return the VMs of all the endpoints, in the order of the endpoints.
+	 */
+	private static List<VirtualMachineWrapper> merge() {
+		List<VirtualMachineWrapper> res = new ArrayList<VirtualMachineWrapper>();
+		for (VCenterEndpoint endpoint : endpoints) {
+			res.addAll(endpoint.getInventory());
 		}
+		return res;
 	}
 
 	/**
-	 * create the connection to VCenter and keeps it open.
+	 * 
+	 * @param vms
+	 * @return the VMs that can be seen by the grid, with their role and
+	 *         capabilities set.
+	 */
+	private static List<VirtualMachineWrapper> classify(Collection<VirtualMachineWrapper> vms) {
+		List<VirtualMachineWrapper> res = new ArrayList<VirtualMachineWrapper>();
+		for (VirtualMachineWrapper vm : vms) {
+			if (classifier.classify(vm)) {
+				res.add(vm);
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * create the sessions to the VCenter endpoints. They are kept open by the
+	 * session manager of each endpoint. vcenter.sessions in
+	 * credentials.properties : number of sessions, default 2.
+	 * vcenter.keepalive : ms between 2 checks of the sessions, default 60000.
 	 */
 	private static void createConnection() {
-		Properties properties = new Properties();
+		properties = new Properties();
 
 		try {
 			File f = new File("credentials.properties");
@@ -135,71 +449,69 @@ public class VirtualMachinePool {
 			}
 			Reader rdr = new FileReader(f);
 			properties.load(rdr);
-			userId = properties.getProperty("login");
-			pass = properties.getProperty("pass");
-			url = properties.getProperty("url");
+			trackChanges = Boolean.parseBoolean(properties.getProperty("inventory.tracking", "false"));
+			classifier = new NodeClassifier(properties);
+			String cacheFile = properties.getProperty("inventory.cache");
+			if (cacheFile != null) {
+				cache = new InventoryCache(new File(cacheFile));
+			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
-		try {
-			si = new ServiceInstance(new URL(url), userId, pass, true);
-			// horrible way to avoid timeout.
-			new Thread(new Runnable() {
-				public void run() {
-					try {
-						while (true) {
-							Thread.sleep(60 * 1000);
-							si.currentTime();
-						}
-					} catch (RuntimeFault e) {
-						e.printStackTrace();
-					} catch (RemoteException e) {
-						e.printStackTrace();
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
-				}
-			}).start();
-
-		} catch (Throwable e) {
-			throw new RuntimeException("error connecting to the ESX server" + e.getMessage(), e);
+		List<VCenterEndpoint> res = new ArrayList<VCenterEndpoint>();
+		for (String name : CredentialsProperties.getEndpointNames(properties)) {
+			try {
+				res.add(new VCenterEndpoint(name, CredentialsProperties.forEndpoint(properties, name)));
+			} catch (Throwable e) {
+				throw new RuntimeException("error connecting to the ESX server " + name + " : " + e.getMessage(), e);
+			}
 		}
+		endpoints = Collections.unmodifiableList(res);
 	}
 
 	/**
-	 * uses VSphere WS to get the VM list.
+	 * uses VSphere WS to get the VM list, in one call to the property
+	 * collector per endpoint. The endpoints are loaded in parallel. An endpoint
+	 * that cannot be loaded is skipped, unless none of them can.
 	 * 
-	 * @return all the VMs on the server. Filtering = starts with "spine-win"
+	 * @return all the VMs on the servers, minus the ones that are not for the
+	 *         grid.
 	 */
-	private ArrayList<VirtualMachineWrapper> loadAllVms() {
-		ArrayList<VirtualMachineWrapper> res = new ArrayList<VirtualMachineWrapper>();
-		Folder rootFolder = si.getRootFolder();
+	private List<VirtualMachineWrapper> loadAllVms() {
 		long start = System.currentTimeMillis();
-		ManagedEntity[] mes;
+		ExecutorService executor = Executors.newFixedThreadPool(endpoints.size());
+		RuntimeException error = null;
+		int loaded = 0;
 		try {
-			mes = new InventoryNavigator(rootFolder).searchManagedEntities("VirtualMachine");
-		} catch (Throwable e) {
-			throw new RuntimeException("Error", e);
-		}
-		if (mes != null && mes.length != 0) {
-			for (int i = 0; i < mes.length; i++) {
-				VirtualMachine vm = (VirtualMachine) mes[i];
-
-				try {
-					String name = vm.getConfig().getName();
-					if (!(name.contains("repo") || name.contains("dderwael"))) {
-						res.add(new VirtualMachineWrapper(vm));
-					} else {
-						log.debug("VM " + vm.getConfig().getName() + " " + vm.getConfig().getUuid() + " filtered out.");
+			List<Future<List<VirtualMachineWrapper>>> loads = new ArrayList<Future<List<VirtualMachineWrapper>>>();
+			for (final VCenterEndpoint endpoint : endpoints) {
+				loads.add(executor.submit(new Callable<List<VirtualMachineWrapper>>() {
+					public List<VirtualMachineWrapper> call() {
+						return endpoint.load();
 					}
-				} catch (Throwable t) {
-					// TODO : freynaud case if the VM is being cloned.
+				}));
+			}
+			for (int i = 0; i < endpoints.size(); i++) {
+				VCenterEndpoint endpoint = endpoints.get(i);
+				try {
+					endpoint.setInventory(classify(loads.get(i).get()));
+					loaded++;
+				} catch (ExecutionException e) {
+					log.error("Cannot load the VMs of " + endpoint + " : " + e.getCause().getMessage(), e.getCause());
+					error = new RuntimeException("Error loading the VM inventory of " + endpoint, e.getCause());
 				}
-
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted while loading the VM inventory", e);
+		} finally {
+			executor.shutdownNow();
 		}
-		log.info("Loading VMs :" + (System.currentTimeMillis() - start) / 1000 + "sec.");
-		return res;
+		if (loaded == 0 && error != null) {
+			throw error;
+		}
+		Metrics.getInstance().record(Metrics.INVENTORY_LOAD, start);
+		return merge();
 	}
 
 }
@@ -0,0 +1,321 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+import org.openqa.grid.internal.GridException;
+
+import com.vmware.vix.VixException;
+import com.vmware.vix.VixVSphereHandle;
+import com.vmware.vix.VixVmHandle;
+
+/**
+ * Host connections for VIX, shared by all the VMs on the same ESX host instead
+ * of one login per VM. A connection can have several VMs opened on it.
+ * 
+ * The connections go to the server the VMs are managed from ( the VCenter of
+ * their endpoint, see VIX ), which is the only one the hub has credentials
+ * for. They are pooled and capped per ESX host, where the guest operations
+ * run.
+ * 
+ * Configured in credentials.properties :
+ * 
+ * vix.pool.maxPerHost : max number of connections for an ESX host, default 4.
+ * When they are all open and unusable, lease() waits for one to be released.
+ * 
+ * vix.pool.vmsPerConnection : number of VMs opened on a connection before
+ * opening a new one, default 16.
+ * 
+ * vix.pool.idleTimeout : ms after which a connection no VM uses is closed,
+ * default 300000.
+ * 
+ * vix.pool.maxAge : ms after which a connection isn't given to new VMs
+ * anymore, before the host session expires, default 1800000. -1 for no
+ * limit.
+ * 
+ * vix.pool.leaseTimeout : max ms lease() waits for a connection, default
+ * 60000.
+ * 
+ * A connection is checked before it is leased : it has to be valid, younger
+ * than maxAge, and the last VM opened on it must not have failed with a
+ * retryable error that isn't the VM's own ( see VixErrors ). The connections that don't pass are
+ * closed once the VMs using them release them.
+ * 
+ * The hits, misses and connection times are in the vix.pool.* metrics.
+ * 
+ * @author freynaud
+ * 
+ */
+public class VixConnectionPool {
+
+	private static final Logger log = Logger.getLogger(VixConnectionPool.class);
+
+	private static VixConnectionPool instance = null;
+
+	private final String userId;
+	private final String pass;
+	private final int maxPerHost;
+	private final int vmsPerConnection;
+	private final long idleTimeout;
+	private final long maxAge;
+	private final long leaseTimeout;
+
+	// by ESX host.
+	private final Map<String, List<HostConnection>> connections = new HashMap<String, List<HostConnection>>();
+	// connections being opened, by ESX host.
+	private final Map<String, Integer> opening = new HashMap<String, Integer>();
+
+	public static synchronized VixConnectionPool getInstance() {
+		if (instance == null) {
+			instance = new VixConnectionPool(CredentialsProperties.load());
+		}
+		return instance;
+	}
+
+	public VixConnectionPool(Properties properties) {
+		userId = properties.getProperty("login");
+		pass = properties.getProperty("pass");
+		maxPerHost = Math.max(1, CredentialsProperties.getInt(properties, "vix.pool.maxPerHost", 4));
+		vmsPerConnection = Math.max(1, CredentialsProperties.getInt(properties, "vix.pool.vmsPerConnection", 16));
+		idleTimeout = CredentialsProperties.getInt(properties, "vix.pool.idleTimeout", 300000);
+		maxAge = CredentialsProperties.getInt(properties, "vix.pool.maxAge", 1800000);
+		leaseTimeout = CredentialsProperties.getInt(properties, "vix.pool.leaseTimeout", 60000);
+	}
+
+	/**
+	 * get a connection to the host, opening one if needed. Has to be given
+	 * back with release() when the VM doesn't need it anymore.
+	 * 
+	 * @param host
+	 *            the server to connect to, also the ESX host.
+	 * @return
+	 * @throws VixException
+	 *             if a new connection was needed and failed.
+	 */
+	public HostConnection lease(String host) throws VixException {
+		return lease(host, host, userId, pass);
+	}
+
+	/**
+	 * same as lease(host), for the VMs of an ESX host managed from another
+	 * server.
+	 * 
+	 * @param server
+	 *            the server to connect to.
+	 * @param esxHost
+	 *            the ESX host of the VM. The connections are pooled and capped
+	 *            per ESX host.
+	 * @param userId
+	 * @param pass
+	 * @return
+	 * @throws VixException
+	 *             if a new connection was needed and failed.
+	 * @throws GridException
+	 *             if no connection was available within leaseTimeout, or if
+	 *             the thread was interrupted while waiting.
+	 */
+	public HostConnection lease(String server, String esxHost, String userId, String pass) throws VixException {
+		Metrics metrics = Metrics.getInstance();
+		List<HostConnection> forHost;
+		synchronized (this) {
+			long deadline = System.currentTimeMillis() + leaseTimeout;
+			while (true) {
+				long now = System.currentTimeMillis();
+				evictIdle(now);
+				forHost = connections.get(esxHost);
+				if (forHost == null) {
+					forHost = new ArrayList<HostConnection>();
+					connections.put(esxHost, forHost);
+				}
+				HostConnection best = null;
+				for (HostConnection c : forHost) {
+					if (isUsable(c, now) && (best == null || c.users < best.users)) {
+						best = c;
+					}
+				}
+				boolean full = forHost.size() + opening(esxHost) >= maxPerHost;
+				if (best != null && (best.users < vmsPerConnection || full)) {
+					best.users++;
+					metrics.increment(Metrics.VIX_POOL_HITS);
+					return best;
+				}
+				if (!full) {
+					break;
+				}
+				// all the connections are unusable, or being opened.
+				if (now >= deadline) {
+					throw new GridException("No VIX connection available for " + esxHost + " after " + leaseTimeout + "ms.");
+				}
+				try {
+					wait(deadline - now);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new GridException("interrupted while waiting for a VIX connection to " + esxHost);
+				}
+			}
+			opening.put(esxHost, opening(esxHost) + 1);
+		}
+		// connecting outside of the lock, it's slow.
+		metrics.increment(Metrics.VIX_POOL_MISSES);
+		HostConnection res = null;
+		try {
+			res = connect(server, esxHost, userId, pass);
+		} finally {
+			synchronized (this) {
+				opening.put(esxHost, opening(esxHost) - 1);
+				if (res != null) {
+					res.users++;
+					forHost.add(res);
+				}
+				notifyAll();
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * 
+	 * @param c
+	 * @param now
+	 * @return true if the connection can be given to one more VM.
+	 */
+	private boolean isUsable(HostConnection c, long now) {
+		if (!c.valid) {
+			return false;
+		}
+		if (maxAge > 0 && now - c.created > maxAge) {
+			return false;
+		}
+		// the last VM opened on it failed. Could be the VM, could be the
+		// connection : not giving it to other VMs.
+		return !c.lastFailed;
+	}
+
+	private int opening(String host) {
+		Integer res = opening.get(host);
+		return res == null ? 0 : res;
+	}
+
+	private HostConnection connect(String server, String esxHost, String userId, String pass) throws VixException {
+		long start = System.currentTimeMillis();
+		VixVSphereHandle handle = new VixVSphereHandle(server, userId, pass);
+		long elapsed = Metrics.getInstance().record(Metrics.VIX_POOL_CONNECT, start);
+		log.debug("new VIX connection to " + server + " for " + esxHost + " in " + elapsed + "ms.");
+		return new HostConnection(esxHost, handle);
+	}
+
+	/**
+	 * the VM doesn't use the connection anymore.
+	 * 
+	 * @param c
+	 */
+	public synchronized void release(HostConnection c) {
+		c.users--;
+		c.lastUsed = System.currentTimeMillis();
+		if (c.users <= 0 && !isUsable(c, c.lastUsed)) {
+			close(c);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * the connection failed. It won't be given to anyone anymore, and will be
+	 * closed once the VMs using it release it.
+	 * 
+	 * @param c
+	 */
+	public synchronized void invalidate(HostConnection c) {
+		c.valid = false;
+	}
+
+	private void evictIdle(long now) {
+		for (List<HostConnection> forHost : connections.values()) {
+			for (Iterator<HostConnection> it = forHost.iterator(); it.hasNext();) {
+				HostConnection c = it.next();
+				if (c.users <= 0 && (!isUsable(c, now) || now - c.lastUsed > idleTimeout)) {
+					it.remove();
+					close(c);
+				}
+			}
+		}
+	}
+
+	private void close(HostConnection c) {
+		c.valid = false;
+		List<HostConnection> forHost = connections.get(c.host);
+		if (forHost != null) {
+			forHost.remove(c);
+		}
+		try {
+			c.handle.disconnect();
+		} catch (Throwable t) {
+			log.warn("Error closing the VIX connection to " + c.host + " : " + t.getMessage());
+		}
+	}
+
+	/**
+	 * a connection for an ESX host, shared by the VMs on that host.
+	 */
+	public static class HostConnection {
+		private final String host;
+		private final VixVSphereHandle handle;
+		private int users = 0;
+		private boolean valid = true;
+		private final long created = System.currentTimeMillis();
+		private long lastUsed = created;
+		// the last VM opened on this connection failed to open.
+		private volatile boolean lastFailed = false;
+
+		private HostConnection(String host, VixVSphereHandle handle) {
+			this.host = host;
+			this.handle = handle;
+		}
+
+		/**
+		 * 
+		 * @return the ESX host of the VMs using the connection.
+		 */
+		public String getHost() {
+			return host;
+		}
+
+		/**
+		 * 
+		 * @param vmxPath
+		 * @return a handle on the VM, using this connection.
+		 * @throws VixException
+		 */
+		public VixVmHandle openVm(String vmxPath) throws VixException {
+			try {
+				VixVmHandle res = handle.openVm(vmxPath);
+				lastFailed = false;
+				return res;
+			} catch (VixException e) {
+				// a missing VM, a wrong path or a VM still booting says nothing
+				// of the connection.
+				lastFailed = VixErrors.isRetryable(e) && !VixErrors.isGuestNotReady(e);
+				throw e;
+			}
+		}
+	}
+}
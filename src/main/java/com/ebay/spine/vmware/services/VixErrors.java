@@ -0,0 +1,88 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import com.vmware.vix.VixException;
+
+/**
+ * Which VIX errors are worth retrying. Codes from vix.h.
+ * 
+ * Transient : the VM is busy, still booting, or the tools aren't running yet.
+ * That's what is seen right after a revert. Permanent : the arguments are
+ * wrong, the VM or file doesn't exist, or the operation isn't supported.
+ * Anything else is retried, VIX reports most network glitches with generic
+ * codes.
+ * 
+ * @author freynaud
+ * 
+ */
+public class VixErrors {
+
+	public static final long VIX_E_INVALID_ARG = 3;
+	public static final long VIX_E_FILE_NOT_FOUND = 4;
+	public static final long VIX_E_OBJECT_IS_BUSY = 5;
+	public static final long VIX_E_NOT_SUPPORTED = 6;
+	public static final long VIX_E_TIMEOUT_WAITING_FOR_TOOLS = 3000;
+	public static final long VIX_E_VM_NOT_RUNNING = 3006;
+	public static final long VIX_E_TOOLS_NOT_RUNNING = 3016;
+	public static final long VIX_E_INTERACTIVE_SESSION_NOT_PRESENT = 3034;
+	public static final long VIX_E_VM_NOT_FOUND = 4000;
+
+	private static final long[] PERMANENT = { VIX_E_INVALID_ARG, VIX_E_FILE_NOT_FOUND, VIX_E_NOT_SUPPORTED, VIX_E_VM_NOT_FOUND };
+	private static final long[] GUEST_NOT_READY = { VIX_E_OBJECT_IS_BUSY, VIX_E_TIMEOUT_WAITING_FOR_TOOLS, VIX_E_VM_NOT_RUNNING,
+			VIX_E_TOOLS_NOT_RUNNING, VIX_E_INTERACTIVE_SESSION_NOT_PRESENT };
+
+	private VixErrors() {
+	}
+
+	/**
+	 * 
+	 * @param t
+	 * @return false for the VIX errors that will fail again, true otherwise.
+	 */
+	public static boolean isRetryable(Throwable t) {
+		return !is(t, PERMANENT);
+	}
+
+	/**
+	 * 
+	 * @param t
+	 * @return true for the transient errors of the VM itself : busy, not
+	 *         running, tools not up yet. They say nothing of the host
+	 *         connection.
+	 */
+	public static boolean isGuestNotReady(Throwable t) {
+		return is(t, GUEST_NOT_READY);
+	}
+
+	private static boolean is(Throwable t, long[] codes) {
+		if (t instanceof VixException) {
+			long code = ((VixException) t).getErrorCode();
+			for (long c : codes) {
+				if (code == c) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	public static final RetryPolicy.Classifier CLASSIFIER = new RetryPolicy.Classifier() {
+		public boolean isRetryable(Throwable t) {
+			return VixErrors.isRetryable(t);
+		}
+	};
+}
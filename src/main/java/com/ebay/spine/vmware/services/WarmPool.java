@@ -0,0 +1,394 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.ebay.spine.vmware.model.VirtualMachineWrapper;
+
+/**
+ * Spare VMs kept clean, powered on and checked, ready to replace the VM of a
+ * node that reached its test limit. The node gets a clean VM right away and
+ * the used VM is cleaned in the background, to become a spare in turn.
+ * 
+ * The spares are the VMs designated as such ( see NodeClassifier, spare=true
+ * ), never the VMs of the nodes, registered or not. Once swapped, the spare
+ * belongs to the node and the used VM to the warm pool. Configured in
+ * credentials.properties :
+ * 
+ * warmpool.linux=X and warmpool.windows=Y : number of spares to keep for each
+ * role. Default 0 = no warm pool.
+ * 
+ * warmpool.snapshot=Z : the clean snapshot spares are reverted to.
+ * 
+ * warmpool.period : ms between 2 checks of the pool, default 30000. Each
+ * check makes sure the spares ready are still powered on and answer, and
+ * prepares new ones up to the target. The first one runs when the pool
+ * starts, so that the first swaps find spares.
+ * 
+ * The hits, misses, time to get a spare ready and number of spares ready are
+ * in the warmpool.* metrics.
+ * 
+ * @author freynaud
+ * 
+ */
+public class WarmPool {
+
+	private static final Logger log = Logger.getLogger(WarmPool.class);
+
+	private static WarmPool instance = null;
+	private static boolean started = false;
+
+	private final HypervisorBackend backend;
+	private final String snapshot;
+	private final Map<NodeRole, Integer> targets = new EnumMap<NodeRole, Integer>(NodeRole.class);
+	private final Map<NodeRole, ConcurrentLinkedQueue<VirtualMachineWrapper>> ready = new EnumMap<NodeRole, ConcurrentLinkedQueue<VirtualMachineWrapper>>(NodeRole.class);
+	private final Map<NodeRole, AtomicInteger> preparing = new EnumMap<NodeRole, AtomicInteger>(NodeRole.class);
+	// VMs used by a proxy.
+	private final Set<String> claimed = Collections.synchronizedSet(new HashSet<String>());
+	// VMs of the warm pool, ready or being prepared.
+	private final Set<String> taken = Collections.synchronizedSet(new HashSet<String>());
+	// VM id -> prepare running for it.
+	private final Map<String, Future<?>> inFlight = new ConcurrentHashMap<String, Future<?>>();
+
+	public static synchronized WarmPool getInstance() {
+		if (instance == null) {
+			instance = new WarmPool(Hypervisor.getBackend(), CredentialsProperties.load());
+		}
+		return instance;
+	}
+
+	/**
+	 * checks and replenishes the pool now, then every warmpool.period. Does
+	 * nothing if it's already started, or if no spares are kept.
+	 */
+	public static synchronized void start() {
+		if (started) {
+			return;
+		}
+		started = true;
+		final WarmPool pool = getInstance();
+		if (!pool.isEnabled()) {
+			return;
+		}
+		long period = CredentialsProperties.getInt(CredentialsProperties.load(), "warmpool.period", 30000);
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "warm-pool");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					pool.maintain();
+				} catch (Throwable t) {
+					log.error("Error maintaining the warm pool : " + t.getMessage(), t);
+				}
+			}
+		}, 0, period, TimeUnit.MILLISECONDS);
+	}
+
+	public WarmPool(HypervisorBackend backend, Properties properties) {
+		this.backend = backend;
+		this.snapshot = properties.getProperty("warmpool.snapshot");
+		for (NodeRole role : NodeRole.values()) {
+			int target = CredentialsProperties.getInt(properties, "warmpool." + role.name().toLowerCase(), 0);
+			if (target > 0 && snapshot == null) {
+				log.warn("warmpool.snapshot not specified. No warm pool for " + role);
+				target = 0;
+			}
+			targets.put(role, target);
+			final ConcurrentLinkedQueue<VirtualMachineWrapper> spares = new ConcurrentLinkedQueue<VirtualMachineWrapper>();
+			ready.put(role, spares);
+			preparing.put(role, new AtomicInteger());
+			if (target > 0) {
+				Metrics.getInstance().gauge(Metrics.WARMPOOL_READY + role.name().toLowerCase(), new Gauge() {
+					@Override
+					public long getValue() {
+						return spares.size();
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @return true if spares are kept for at least one role.
+	 */
+	public boolean isEnabled() {
+		for (NodeRole role : NodeRole.values()) {
+			if (isEnabled(role)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 
+	 * @param role
+	 * @return true if spares are kept for that role.
+	 */
+	public boolean isEnabled(NodeRole role) {
+		return role != null && targets.get(role) > 0;
+	}
+
+	/**
+	 * marks the VM as used by a node. It is never used as a spare while the
+	 * node uses it : it leaves the spares ready, and a prepare running for it
+	 * is cancelled.
+	 * 
+	 * @param vm
+	 */
+	public void claim(VirtualMachineWrapper vm) {
+		Future<?> prepare;
+		synchronized (this) {
+			claimed.add(vm.getId());
+			NodeRole role = vm.getRole();
+			if (role != null && ready.get(role).remove(vm)) {
+				taken.remove(vm.getId());
+				log.warn(vm.getName() + " was a spare ready to be used, and is now claimed by a node.");
+			}
+			prepare = inFlight.get(vm.getId());
+		}
+		if (prepare != null) {
+			prepare.cancel(true);
+			log.warn(vm.getName() + " was being prepared as a spare, and is now claimed by a node.");
+		}
+	}
+
+	/**
+	 * 
+	 * @param role
+	 * @param capabilities
+	 *            the capabilities the VM gets from its vSphere attributes (
+	 *            see VirtualMachineWrapper.getCapabilities() ). Only a spare
+	 *            with the same ones is given, so that the node keeps serving
+	 *            the requests it registered for.
+	 * @return a clean VM for the role, null if there is none ready. The VM
+	 *         now belongs to the caller.
+	 */
+	public VirtualMachineWrapper acquire(NodeRole role, Map<String, Object> capabilities) {
+		if (!isEnabled(role)) {
+			return null;
+		}
+		VirtualMachineWrapper vm = null;
+		for (VirtualMachineWrapper spare : ready.get(role)) {
+			if (sameCapabilities(spare.getCapabilities(), capabilities) && ready.get(role).remove(spare)) {
+				vm = spare;
+				break;
+			}
+		}
+		if (vm != null) {
+			claimed.add(vm.getId());
+			taken.remove(vm.getId());
+			Metrics.getInstance().increment(Metrics.WARMPOOL_HITS);
+		} else {
+			Metrics.getInstance().increment(Metrics.WARMPOOL_MISSES);
+		}
+		replenish(role);
+		return vm;
+	}
+
+	private static boolean sameCapabilities(Map<String, Object> a, Map<String, Object> b) {
+		if (a == null || a.isEmpty()) {
+			return b == null || b.isEmpty();
+		}
+		return a.equals(b);
+	}
+
+	/**
+	 * checks the spares ready and replenishes each role. Called by the
+	 * scheduler of start().
+	 */
+	void maintain() {
+		for (NodeRole role : NodeRole.values()) {
+			if (isEnabled(role)) {
+				check(role);
+				replenish(role);
+			}
+		}
+	}
+
+	/**
+	 * the spares ready that are not powered on or don't answer anymore are
+	 * prepared again.
+	 * 
+	 * @param role
+	 */
+	void check(NodeRole role) {
+		for (VirtualMachineWrapper vm : ready.get(role)) {
+			boolean healthy;
+			try {
+				healthy = backend.isPoweredOn(vm) && backend.isGuestReady(vm);
+			} catch (Throwable t) {
+				healthy = false;
+			}
+			if (healthy) {
+				continue;
+			}
+			synchronized (this) {
+				// acquired meanwhile otherwise.
+				if (!ready.get(role).remove(vm)) {
+					continue;
+				}
+			}
+			log.warn(vm.getName() + " was a spare ready to be used, but doesn't answer anymore. Preparing it again.");
+			prepare(role, vm);
+		}
+	}
+
+	/**
+	 * gives back a used VM. It will be cleaned in the background and become a
+	 * spare.
+	 * 
+	 * @param vm
+	 *            a VM the caller got from acquire(), or claimed.
+	 */
+	public void recycle(VirtualMachineWrapper vm) {
+		claimed.remove(vm.getId());
+		NodeRole role = vm.getRole();
+		if (!isEnabled(role) || !taken.add(vm.getId())) {
+			return;
+		}
+		prepare(role, vm);
+	}
+
+	/**
+	 * starts preparing spares until there is enough spares ready or being
+	 * prepared for the role.
+	 * 
+	 * @param role
+	 */
+	public void replenish(NodeRole role) {
+		if (!isEnabled(role)) {
+			return;
+		}
+		int target = targets.get(role);
+		for (VirtualMachineWrapper vm : backend.getNodeVMs(role)) {
+			if (ready.get(role).size() + preparing.get(role).get() >= target) {
+				return;
+			}
+			if (vm.isSpare() && !claimed.contains(vm.getId()) && taken.add(vm.getId())) {
+				prepare(role, vm);
+			}
+		}
+	}
+
+	/**
+	 * revert, power on and check the VM in the background, then make it
+	 * available as a spare. Dropped if a node claims the VM meanwhile.
+	 */
+	private void prepare(final NodeRole role, final VirtualMachineWrapper vm) {
+		preparing.get(role).incrementAndGet();
+		FutureTask<Object> task = new FutureTask<Object>(new Runnable() {
+			public void run() {
+				long start = System.currentTimeMillis();
+				try {
+					if (claimed.contains(vm.getId())) {
+						throw new Exception("claimed by a node.");
+					}
+					backend.revertToSnapshot(vm, snapshot);
+					backend.powerOn(vm);
+					if (!backend.isGuestReady(vm)) {
+						throw new Exception("health check failed.");
+					}
+					synchronized (WarmPool.this) {
+						if (claimed.contains(vm.getId())) {
+							throw new Exception("claimed by a node.");
+						}
+						ready.get(role).add(vm);
+					}
+					// reverted and checked : its past problems don't count
+					// anymore.
+					HealthMonitor.getInstance().reset(vm);
+					long elapsed = Metrics.getInstance().record(Metrics.WARMPOOL_TIME_TO_READY, start);
+					log.info(vm.getName() + " ready as a spare in " + elapsed + "ms.");
+				} catch (Throwable t) {
+					log.warn(vm.getName() + " cannot be used as a spare : " + t.getMessage());
+				}
+			}
+		}, null) {
+			// called once the prepare is over, or when it is cancelled.
+			@Override
+			protected void done() {
+				synchronized (WarmPool.this) {
+					inFlight.remove(vm.getId());
+					if (!ready.get(role).contains(vm)) {
+						// not a spare anymore. Will be picked up again by the
+						// next replenish if it is a free spare.
+						taken.remove(vm.getId());
+					}
+				}
+				preparing.get(role).decrementAndGet();
+			}
+		};
+		synchronized (this) {
+			inFlight.put(vm.getId(), task);
+		}
+		RecycleService.getInstance().submit(task);
+	}
+
+	/**
+	 * 
+	 * @return the snapshot the spares are reverted to.
+	 */
+	public String getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * 
+	 * @param role
+	 * @return the number of spares ready for that role.
+	 */
+	public int getSize(NodeRole role) {
+		return ready.get(role).size();
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer buff = new StringBuffer();
+		for (NodeRole role : NodeRole.values()) {
+			if (isEnabled(role)) {
+				buff.append(role + " : " + getSize(role) + "/" + targets.get(role) + " spares ready, " + preparing.get(role).get() + " being prepared.\n");
+			}
+		}
+		Metrics metrics = Metrics.getInstance();
+		buff.append(metrics.counter(Metrics.WARMPOOL_HITS) + " hits, " + metrics.counter(Metrics.WARMPOOL_MISSES) + " misses, average time to ready "
+				+ metrics.timer(Metrics.WARMPOOL_TIME_TO_READY).getMean() + "ms.\n");
+		return buff.toString();
+	}
+}
@@ -0,0 +1,83 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.sim;
+
+import java.util.Properties;
+import java.util.Random;
+
+import com.ebay.spine.vmware.services.CredentialsProperties;
+
+/**
+ * Log-normal durations, the usual shape of the time taken by VM operations : a
+ * median and a long tail.
+ * 
+ * @author freynaud
+ * 
+ */
+public class LatencyDistribution {
+
+	private final long median;
+	private final double sigma;
+	private final Random random;
+
+	/**
+	 * 
+	 * @param median
+	 *            in ms.
+	 * @param sigma
+	 *            0 = always the median. 0.5 = p95 a bit more than twice the
+	 *            median.
+	 * @param random
+	 */
+	public LatencyDistribution(long median, double sigma, Random random) {
+		this.median = median;
+		this.sigma = sigma;
+		this.random = random;
+	}
+
+	/**
+	 * reads key.latency ( the median in ms ) and key.sigma.
+	 * 
+	 * @param properties
+	 * @param key
+	 *            sim.revert for instance.
+	 * @param median
+	 *            default median.
+	 * @param random
+	 * @return
+	 */
+	public static LatencyDistribution from(Properties properties, String key, long median, Random random) {
+		long m = CredentialsProperties.getInt(properties, key + ".latency", (int) median);
+		double sigma = Double.parseDouble(properties.getProperty(key + ".sigma", "0.5"));
+		return new LatencyDistribution(m, sigma, random);
+	}
+
+	/**
+	 * 
+	 * @return a duration, in ms.
+	 */
+	public long sample() {
+		double gaussian;
+		synchronized (random) {
+			gaussian = random.nextGaussian();
+		}
+		return Math.round(median * Math.exp(sigma * gaussian));
+	}
+
+	public long getMedian() {
+		return median;
+	}
+}
@@ -0,0 +1,399 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.sim;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import org.openqa.grid.internal.GridException;
+
+import com.ebay.spine.vmware.model.SnapshotIndex;
+import com.ebay.spine.vmware.model.VirtualMachineWrapper;
+import com.ebay.spine.vmware.services.CredentialsProperties;
+import com.ebay.spine.vmware.services.HypervisorBackend;
+import com.ebay.spine.vmware.services.Metrics;
+import com.ebay.spine.vmware.services.NodeRole;
+import com.ebay.spine.vmware.services.RevertScheduler;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.VirtualMachineSnapshotTree;
+
+/**
+ * In memory hypervisor, to measure the scheduling and recycling logic without
+ * an ESX. Operations sleep for a duration taken from a log-normal
+ * distribution, and fail at a configured rate. Reverts go through a
+ * RevertScheduler like the real ones.
+ * 
+ * Configured with the sim.* keys of the properties :
+ * 
+ * sim.linux / sim.windows : number of VMs of each role, default 100 / 0.
+ * 
+ * sim.spares : number of VMs of each role that are spares of the WarmPool
+ * rather than nodes, default 0.
+ * 
+ * sim.datastores / sim.hosts : the VMs are spread over them, default 10 / 5.
+ * 
+ * sim.snapshot : the snapshot the VMs start with, default clean. The
+ * snapshots created later are children of the last one the VM was reverted
+ * to or created.
+ * 
+ * sim.revert, sim.createSnapshot, sim.deleteSnapshot, sim.powerOn,
+ * sim.guest : latency ( median in ms ), sigma and failureRate ( 0 to 1 ) of
+ * each kind of operation, for instance sim.revert.latency=30000
+ * sim.revert.sigma=0.5 sim.revert.failureRate=0.01
+ * 
+ * The guests all have the IP 127.0.0.1 : a node answering locally is found
+ * by the IpRegistry.
+ * 
+ * sim.timeScale : simulated time runs that many times faster, default 100.
+ * The durations recorded in the metrics are the scaled ones.
+ * 
+ * @author freynaud
+ * 
+ */
+public class SimulatedBackend implements HypervisorBackend {
+
+	private final Random random;
+	private final double timeScale;
+	private final String snapshot;
+	private final RevertScheduler scheduler;
+
+	private final Operation revert;
+	private final Operation createSnapshot;
+	private final Operation deleteSnapshot;
+	private final Operation powerOn;
+	private final Operation guest;
+
+	private final Map<String, VirtualMachineWrapper> byId = new HashMap<String, VirtualMachineWrapper>();
+	private final Map<NodeRole, List<VirtualMachineWrapper>> byRole = new EnumMap<NodeRole, List<VirtualMachineWrapper>>(NodeRole.class);
+	// vm id -> snapshots of the VM, created on first use.
+	private final Map<String, SimulatedSnapshots> snapshots = new HashMap<String, SimulatedSnapshots>();
+	private final Calendar started = Calendar.getInstance();
+
+	public SimulatedBackend(Properties properties) {
+		random = new Random(CredentialsProperties.getInt(properties, "sim.seed", 42));
+		timeScale = Double.parseDouble(properties.getProperty("sim.timeScale", "100"));
+		snapshot = properties.getProperty("sim.snapshot", "clean");
+		scheduler = new RevertScheduler(properties);
+		revert = new Operation(properties, "sim.revert", 30000);
+		createSnapshot = new Operation(properties, "sim.createSnapshot", 20000);
+		deleteSnapshot = new Operation(properties, "sim.deleteSnapshot", 20000);
+		powerOn = new Operation(properties, "sim.powerOn", 10000);
+		guest = new Operation(properties, "sim.guest", 2000);
+
+		int datastores = Math.max(1, CredentialsProperties.getInt(properties, "sim.datastores", 10));
+		int hosts = Math.max(1, CredentialsProperties.getInt(properties, "sim.hosts", 5));
+		int spares = CredentialsProperties.getInt(properties, "sim.spares", 0);
+		int i = 0;
+		for (NodeRole role : NodeRole.values()) {
+			int count = CredentialsProperties.getInt(properties, "sim." + role.name().toLowerCase(), role == NodeRole.LINUX ? 100 : 0);
+			List<VirtualMachineWrapper> vms = new ArrayList<VirtualMachineWrapper>();
+			for (int n = 0; n < count; n++, i++) {
+				String name = role.getPrefix() + "-sim-" + n;
+				String vmx = "[ds" + (i % datastores) + "] " + name + "/" + name + ".vmx";
+				VirtualMachineWrapper vm = new VirtualMachineWrapper(null, "sim-" + i, name, vmx);
+				vm.setRole(role);
+				vm.setSpare(n >= count - spares);
+				vm.setHostId("host-" + (i % hosts));
+				vm.setPowerState(VirtualMachinePowerState.poweredOn);
+				vms.add(vm);
+				byId.put(vm.getId(), vm);
+			}
+			byRole.put(role, Collections.unmodifiableList(vms));
+		}
+	}
+
+	/**
+	 * a kind of operation : how long it takes and how often it fails.
+	 */
+	private class Operation {
+		private final String name;
+		private final LatencyDistribution latency;
+		private final double failureRate;
+
+		Operation(Properties properties, String key, long median) {
+			name = key.substring("sim.".length());
+			latency = LatencyDistribution.from(properties, key, median, random);
+			failureRate = Double.parseDouble(properties.getProperty(key + ".failureRate", "0"));
+		}
+
+		/**
+		 * waits for the scaled duration of the operation.
+		 * 
+		 * @return false if the operation failed.
+		 */
+		boolean run() {
+			try {
+				Thread.sleep(Math.max(0, Math.round(latency.sample() / timeScale)));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new GridException("interrupted during " + name);
+			}
+			synchronized (random) {
+				return random.nextDouble() >= failureRate;
+			}
+		}
+
+		void runOrFail(VirtualMachineWrapper vm) {
+			if (!run()) {
+				throw new GridException("simulated " + name + " failure on " + vm.getName());
+			}
+		}
+	}
+
+	public VirtualMachineWrapper getVMById(String id) {
+		VirtualMachineWrapper res = byId.get(id);
+		if (res == null) {
+			throw new RuntimeException("Cannot find the VM with id " + id);
+		}
+		return res;
+	}
+
+	public List<VirtualMachineWrapper> getNodeVMs(NodeRole role) {
+		return byRole.get(role);
+	}
+
+	public List<VirtualMachineWrapper> getAllNodeVMs() {
+		List<VirtualMachineWrapper> res = new ArrayList<VirtualMachineWrapper>();
+		for (List<VirtualMachineWrapper> vms : byRole.values()) {
+			res.addAll(vms);
+		}
+		return res;
+	}
+
+	/**
+	 * the snapshot tree of a simulated VM. The VM starts with the sim.snapshot
+	 * snapshot only.
+	 */
+	private class SimulatedSnapshots {
+		private final List<String> names = new ArrayList<String>();
+		// position of the parent of each snapshot, -1 for a root.
+		private final List<Integer> parents = new ArrayList<Integer>();
+		private final List<Calendar> created = new ArrayList<Calendar>();
+		// the snapshot the VM runs on, -1 for none.
+		private int current = 0;
+		// for the snapshot references, never reused.
+		private int ids = 0;
+		private final List<Integer> refs = new ArrayList<Integer>();
+
+		SimulatedSnapshots() {
+			add(snapshot, -1, started);
+		}
+
+		private void add(String name, int parent, Calendar createTime) {
+			names.add(name);
+			parents.add(parent);
+			created.add(createTime);
+			refs.add(ids++);
+		}
+
+		synchronized boolean exists(String name) {
+			return names.contains(name);
+		}
+
+		synchronized void revert(String name) {
+			current = names.indexOf(name);
+		}
+
+		synchronized void create(String name) {
+			add(name, current, Calendar.getInstance());
+			current = names.size() - 1;
+		}
+
+		/**
+		 * removes the snapshot. Its children get its parent.
+		 */
+		synchronized void delete(String name) {
+			int position = names.indexOf(name);
+			int parent = parents.get(position);
+			names.remove(position);
+			parents.remove(position);
+			created.remove(position);
+			refs.remove(position);
+			for (int i = 0; i < parents.size(); i++) {
+				int p = parents.get(i);
+				parents.set(i, p == position ? (parent > position ? parent - 1 : parent) : (p > position ? p - 1 : p));
+			}
+			if (current == position) {
+				current = parent > position ? parent - 1 : parent;
+			} else if (current > position) {
+				current--;
+			}
+		}
+
+		synchronized void rename(String name, String newName) {
+			names.set(names.indexOf(name), newName);
+		}
+
+		synchronized VirtualMachineSnapshotTree[] toTree(String vmId) {
+			List<VirtualMachineSnapshotTree> nodes = new ArrayList<VirtualMachineSnapshotTree>();
+			for (int i = 0; i < names.size(); i++) {
+				VirtualMachineSnapshotTree node = new VirtualMachineSnapshotTree();
+				node.setName(names.get(i));
+				node.setCreateTime(created.get(i));
+				ManagedObjectReference mor = new ManagedObjectReference();
+				mor.setType("VirtualMachineSnapshot");
+				mor.set_value(vmId + "-snapshot-" + refs.get(i));
+				node.setSnapshot(mor);
+				nodes.add(node);
+			}
+			List<VirtualMachineSnapshotTree> roots = new ArrayList<VirtualMachineSnapshotTree>();
+			for (int i = 0; i < nodes.size(); i++) {
+				List<VirtualMachineSnapshotTree> children = new ArrayList<VirtualMachineSnapshotTree>();
+				for (int c = 0; c < nodes.size(); c++) {
+					if (parents.get(c) == i) {
+						children.add(nodes.get(c));
+					}
+				}
+				if (!children.isEmpty()) {
+					nodes.get(i).setChildSnapshotList(children.toArray(new VirtualMachineSnapshotTree[children.size()]));
+				}
+				if (parents.get(i) == -1) {
+					roots.add(nodes.get(i));
+				}
+			}
+			return roots.toArray(new VirtualMachineSnapshotTree[roots.size()]);
+		}
+	}
+
+	private SimulatedSnapshots snapshotsOf(VirtualMachineWrapper vm) {
+		synchronized (snapshots) {
+			SimulatedSnapshots res = snapshots.get(vm.getId());
+			if (res == null) {
+				res = new SimulatedSnapshots();
+				snapshots.put(vm.getId(), res);
+			}
+			return res;
+		}
+	}
+
+	public boolean snapshotExists(VirtualMachineWrapper vm, String name) {
+		return snapshotsOf(vm).exists(name);
+	}
+
+	/**
+	 * waits for a permit of the RevertScheduler, like a real revert.
+	 */
+	public void revertToSnapshot(VirtualMachineWrapper vm, String name) {
+		checkSnapshot(vm, name);
+		Metrics metrics = Metrics.getInstance();
+		RevertScheduler.Permit permit;
+		long queued = System.currentTimeMillis();
+		try {
+			permit = scheduler.acquire(vm.getDatastore(), vm.getHostId());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new GridException("interrupted while waiting to revert " + vm.getName());
+		} finally {
+			metrics.record(Metrics.REVERT_WAIT, queued);
+		}
+		long start = System.currentTimeMillis();
+		boolean success = false;
+		try {
+			success = revert.run();
+		} finally {
+			scheduler.release(permit, metrics.record(Metrics.REVERT, start), success);
+		}
+		if (!success) {
+			metrics.increment(Metrics.REVERT_FAILURES);
+			throw new GridException("simulated revert failure on " + vm.getName());
+		}
+		snapshotsOf(vm).revert(name);
+	}
+
+	public void createSnapshot(VirtualMachineWrapper vm, String name) {
+		long start = System.currentTimeMillis();
+		createSnapshot.runOrFail(vm);
+		snapshotsOf(vm).create(name);
+		Metrics.getInstance().record(Metrics.CREATE_SNAPSHOT, start);
+	}
+
+	/**
+	 * the snapshots are not backed by a VCenter : only their names, depths
+	 * and creation times can be used.
+	 */
+	public SnapshotIndex getSnapshots(VirtualMachineWrapper vm) {
+		return new SnapshotIndex(vm, null, snapshotsOf(vm).toTree(vm.getId()));
+	}
+
+	public void deleteSnapshot(VirtualMachineWrapper vm, String name) {
+		checkSnapshot(vm, name);
+		Metrics metrics = Metrics.getInstance();
+		long start = System.currentTimeMillis();
+		try {
+			deleteSnapshot.runOrFail(vm);
+		} catch (GridException e) {
+			metrics.increment(Metrics.DELETE_SNAPSHOT_FAILURES);
+			throw e;
+		} finally {
+			metrics.record(Metrics.DELETE_SNAPSHOT, start);
+		}
+		snapshotsOf(vm).delete(name);
+	}
+
+	public void renameSnapshot(VirtualMachineWrapper vm, String name, String newName) {
+		checkSnapshot(vm, name);
+		snapshotsOf(vm).rename(name, newName);
+	}
+
+	private void checkSnapshot(VirtualMachineWrapper vm, String name) {
+		if (!snapshotExists(vm, name)) {
+			throw new GridException("Cannot find snapshot " + name + " on VM " + vm.getId());
+		}
+	}
+
+	public void powerOn(VirtualMachineWrapper vm) {
+		powerOn.runOrFail(vm);
+		vm.setPowerState(VirtualMachinePowerState.poweredOn);
+	}
+
+	public boolean isPoweredOn(VirtualMachineWrapper vm) {
+		return vm.getPowerState() == VirtualMachinePowerState.poweredOn;
+	}
+
+	public int runProgramInGuest(VirtualMachineWrapper vm, String interpreter, String command) {
+		long start = System.currentTimeMillis();
+		boolean success = guest.run();
+		Metrics.getInstance().record(Metrics.VIX_RUN_PROGRAM, start);
+		if (!success) {
+			Metrics.getInstance().increment(Metrics.VIX_RUN_PROGRAM_FAILURES);
+		}
+		return success ? 0 : 1;
+	}
+
+	public boolean isGuestReady(VirtualMachineWrapper vm) {
+		return isPoweredOn(vm);
+	}
+
+	public List<String> getGuestIps(VirtualMachineWrapper vm) {
+		return Collections.singletonList("127.0.0.1");
+	}
+
+	public boolean isReachable(VirtualMachineWrapper vm, int port) {
+		return isPoweredOn(vm);
+	}
+
+	public RevertScheduler getRevertScheduler() {
+		return scheduler;
+	}
+}
@@ -0,0 +1,172 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ebay.spine.vmware.ArrivalTrace.Arrival;
+import com.ebay.spine.vmware.sim.ManualClock;
+
+public class ArrivalForecasterTest {
+
+	private static final String KEY = "firefox";
+	private static final long START = 1000000;
+
+	private ManualClock clock;
+	private ArrivalForecaster forecaster;
+
+	@Before
+	public void setup() {
+		clock = new ManualClock(START);
+		// the defaults : 2 min / 30 min windows, trough under 0.3.
+		forecaster = PreRevertPlanner.createForecaster(clock, new Properties());
+	}
+
+	/**
+	 * one arrival every interval ms, for duration ms.
+	 */
+	private void arrivals(long interval, long duration) {
+		long end = clock.now() + duration;
+		while (clock.now() < end) {
+			forecaster.record(KEY);
+			clock.advance(interval);
+		}
+	}
+
+	@Test
+	public void steadyRate() {
+		arrivals(10000, 3600000);
+		assertEquals(6, forecaster.getRate(KEY), 1);
+		assertEquals(6, forecaster.getBaseline(KEY), 1);
+		assertFalse(forecaster.isTrough(KEY, 0));
+	}
+
+	@Test
+	public void noTroughBeforeTheUsualRateIsKnown() {
+		arrivals(10000, 600000);
+		clock.advance(600000);
+		assertFalse(forecaster.isTrough(KEY, 0));
+	}
+
+	@Test
+	public void quietPeriodIsATrough() {
+		arrivals(10000, 3600000);
+		clock.advance(600000);
+		assertTrue(forecaster.isTrough(KEY, 0));
+		assertTrue(forecaster.expectedArrivals(KEY, 60000) < 0.1);
+	}
+
+	@Test
+	public void pendingRequestsAreNeverATrough() {
+		arrivals(10000, 3600000);
+		clock.advance(600000);
+		assertFalse(forecaster.isTrough(KEY, 1));
+	}
+
+	@Test
+	public void troughEndsWhenSessionsComeBack() {
+		arrivals(10000, 3600000);
+		clock.advance(600000);
+		assertTrue(forecaster.isTrough(KEY, 0));
+		arrivals(10000, 300000);
+		assertFalse(forecaster.isTrough(KEY, 0));
+	}
+
+	@Test
+	public void unknownCapability() {
+		assertEquals(0, forecaster.getRate("chrome"), 0);
+		assertFalse(forecaster.isTrough("chrome", 0));
+	}
+
+	/**
+	 * records a busy hour, a quiet half hour and a busy half hour in a trace,
+	 * and replays it one plan at a time like the planner : the sessions of
+	 * the second busy period mostly arrive outside of a trough.
+	 */
+	@Test
+	public void replayTrace() throws Exception {
+		File file = File.createTempFile("arrivals", ".trace");
+		file.deleteOnExit();
+		ArrivalTrace trace = new ArrivalTrace(file.getAbsolutePath());
+		long time = START;
+		for (; time < START + 3600000; time += 10000) {
+			trace.record(time, KEY);
+		}
+		time += 1800000;
+		long restart = time;
+		for (; time < restart + 1800000; time += 10000) {
+			trace.record(time, KEY);
+		}
+		trace.flush();
+		trace.close();
+
+		List<Arrival> arrivals = new ArrivalTrace(file.getAbsolutePath()).read();
+		assertEquals(540, arrivals.size());
+		assertEquals(START, arrivals.get(0).getTime());
+		assertEquals(KEY, arrivals.get(0).getKey());
+
+		long period = 10000;
+		long troughTime = 0;
+		int inTrough = 0;
+		boolean trough = false;
+		int next = 0;
+		long end = arrivals.get(arrivals.size() - 1).getTime();
+		while (clock.now() <= end) {
+			long until = clock.now() + period;
+			while (next < arrivals.size() && arrivals.get(next).getTime() < until) {
+				Arrival arrival = arrivals.get(next++);
+				clock.set(Math.max(clock.now(), arrival.getTime()));
+				forecaster.record(arrival.getKey());
+				if (trough) {
+					inTrough++;
+				}
+			}
+			clock.set(until);
+			trough = forecaster.isTrough(KEY, 0);
+			if (trough) {
+				troughTime += period;
+			}
+		}
+		// most of the quiet half hour, none of the busy hour.
+		assertTrue(troughTime >= 1500000);
+		assertTrue(troughTime <= 1800000 + 10 * period);
+		// only the first sessions after the quiet period.
+		assertTrue(inTrough > 0);
+		assertTrue(inTrough < 10);
+	}
+
+	@Test
+	public void traceStopsRecordingOnceClosed() throws Exception {
+		File file = File.createTempFile("arrivals", ".trace");
+		file.deleteOnExit();
+		ArrivalTrace trace = new ArrivalTrace(file.getAbsolutePath());
+		trace.record(START, KEY);
+		trace.flush();
+		trace.close();
+		trace.record(START + 1, KEY);
+		trace.flush();
+		assertEquals(1, new ArrivalTrace(file.getAbsolutePath()).read().size());
+	}
+}
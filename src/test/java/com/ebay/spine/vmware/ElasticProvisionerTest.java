@@ -0,0 +1,297 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.ebay.spine.vmware.model.VirtualMachineWrapper;
+import com.ebay.spine.vmware.services.CloneBackend;
+import com.ebay.spine.vmware.services.VirtualMachineInventory;
+import com.ebay.spine.vmware.sim.ManualClock;
+
+public class ElasticProvisionerTest {
+
+	private static final long COOLDOWN = 60000;
+
+	/**
+	 * clones in memory, taking latency ms each, and keeping track of the
+	 * clones running at the same time on each datastore.
+	 */
+	static class FakeCloneBackend implements CloneBackend {
+		final long latency;
+		final AtomicInteger ids = new AtomicInteger();
+		final List<String> created = Collections.synchronizedList(new ArrayList<String>());
+		final List<String> destroyed = Collections.synchronizedList(new ArrayList<String>());
+		final Map<String, AtomicInteger> running = new ConcurrentHashMap<String, AtomicInteger>();
+		int maxRunning = 0;
+
+		FakeCloneBackend(long latency) {
+			this.latency = latency;
+		}
+
+		public VirtualMachineWrapper createLinkedClone(VirtualMachineWrapper template, String snapshot, String cloneName) {
+			AtomicInteger onDatastore = running.get(template.getDatastore());
+			int now = onDatastore.incrementAndGet();
+			synchronized (this) {
+				maxRunning = Math.max(maxRunning, now);
+			}
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				onDatastore.decrementAndGet();
+			}
+			created.add(cloneName);
+			return new VirtualMachineWrapper(null, "clone-" + ids.incrementAndGet(), cloneName, "[" + template.getDatastore() + "] " + cloneName + "/" + cloneName + ".vmx");
+		}
+
+		public void destroy(VirtualMachineWrapper vm) {
+			destroyed.add(vm.getName());
+		}
+	}
+
+	static class FakeInventory implements VirtualMachineInventory {
+		final Map<String, VirtualMachineWrapper> vms = new ConcurrentHashMap<String, VirtualMachineWrapper>();
+
+		public VirtualMachineWrapper getVMByName(String name) {
+			return vms.get(name);
+		}
+
+		public void add(VirtualMachineWrapper vm) {
+			vms.put(vm.getName(), vm);
+		}
+
+		public void remove(VirtualMachineWrapper vm) {
+			vms.remove(vm.getName());
+		}
+	}
+
+	/**
+	 * the provisioner without the grid : the queue is set by the test, and the
+	 * nodes are only names.
+	 */
+	static class TestProvisioner extends ElasticProvisioner {
+		volatile int pending = 0;
+		volatile boolean registrable = true;
+		final Set<String> nodes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		final Set<String> busy = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		TestProvisioner(FakeInventory inventory, FakeCloneBackend backend, ManualClock clock, Properties properties) {
+			super(null, inventory, backend, clock, properties);
+		}
+
+		@Override
+		int getPendingRequests() {
+			return pending;
+		}
+
+		@Override
+		protected boolean register(VirtualMachineWrapper templateVm, VirtualMachineWrapper clone) {
+			return registrable && nodes.add(clone.getName());
+		}
+
+		@Override
+		protected boolean unregister(VirtualMachineWrapper clone) {
+			return !busy.contains(clone.getName()) && nodes.remove(clone.getName());
+		}
+	}
+
+	private final ManualClock clock = new ManualClock(1000000);
+	private final FakeInventory inventory = new FakeInventory();
+
+	private TestProvisioner provisioner(FakeCloneBackend backend, int min, int max, int batch, int perDatastore) {
+		VirtualMachineWrapper template = new VirtualMachineWrapper(null, "template-id", "template", "[ds1] template/template.vmx");
+		inventory.add(template);
+		backend.running.put("ds1", new AtomicInteger());
+		Properties properties = new Properties();
+		properties.setProperty("elastic.template", "template");
+		properties.setProperty("elastic.snapshot", "clean");
+		properties.setProperty("elastic.min", "" + min);
+		properties.setProperty("elastic.max", "" + max);
+		properties.setProperty("elastic.batch", "" + batch);
+		properties.setProperty("elastic.cooldown", "" + COOLDOWN);
+		properties.setProperty("elastic.maxClonesPerDatastore", "" + perDatastore);
+		return new TestProvisioner(inventory, backend, clock, properties);
+	}
+
+	/**
+	 * waits for the clones being created or destroyed in the background.
+	 */
+	private static void await(List<String> list, int size) throws InterruptedException {
+		long end = System.currentTimeMillis() + 10000;
+		while (list.size() < size && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+		assertEquals(size, list.size());
+	}
+
+	private static void awaitClones(ElasticProvisioner provisioner, int count) throws InterruptedException {
+		long end = System.currentTimeMillis() + 10000;
+		while (provisioner.getCloneCount() < count && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+		assertEquals(count, provisioner.getCloneCount());
+	}
+
+	@Test
+	public void minIsReachedWithoutWaitingForTheCooldown() throws Exception {
+		FakeCloneBackend backend = new FakeCloneBackend(0);
+		TestProvisioner provisioner = provisioner(backend, 3, 10, 2, 2);
+		provisioner.scale();
+		awaitClones(provisioner, 3);
+		assertEquals(3, provisioner.nodes.size());
+		for (String clone : backend.created) {
+			assertTrue(inventory.vms.containsKey(clone));
+		}
+
+		// nothing pending, but never below min.
+		clock.advance(COOLDOWN);
+		provisioner.scale();
+		assertEquals(3, provisioner.getCloneCount());
+		assertTrue(backend.destroyed.isEmpty());
+	}
+
+	@Test
+	public void scalesUpByBatchUntilMaxWithACooldown() throws Exception {
+		FakeCloneBackend backend = new FakeCloneBackend(0);
+		TestProvisioner provisioner = provisioner(backend, 0, 5, 2, 2);
+		provisioner.pending = 10;
+
+		provisioner.scale();
+		awaitClones(provisioner, 2);
+
+		// cooling down.
+		clock.advance(COOLDOWN - 1);
+		provisioner.scale();
+		assertEquals(2, backend.created.size());
+
+		clock.advance(1);
+		provisioner.scale();
+		awaitClones(provisioner, 4);
+
+		// only one more fits.
+		clock.advance(COOLDOWN);
+		provisioner.scale();
+		awaitClones(provisioner, 5);
+
+		clock.advance(COOLDOWN);
+		provisioner.scale();
+		Thread.sleep(50);
+		assertEquals(5, backend.created.size());
+		assertEquals(5, provisioner.getCloneCount());
+	}
+
+	@Test
+	public void noScaleUpUnderTheQueueThreshold() throws Exception {
+		FakeCloneBackend backend = new FakeCloneBackend(0);
+		TestProvisioner provisioner = provisioner(backend, 0, 5, 2, 2);
+		provisioner.pending = 0;
+		provisioner.scale();
+		Thread.sleep(50);
+		assertTrue(backend.created.isEmpty());
+	}
+
+	@Test
+	public void scalesDownIdleClonesDownToMin() throws Exception {
+		FakeCloneBackend backend = new FakeCloneBackend(0);
+		TestProvisioner provisioner = provisioner(backend, 1, 10, 2, 2);
+		provisioner.pending = 10;
+		// min first, then 2 batches.
+		provisioner.scale();
+		awaitClones(provisioner, 1);
+		for (int expected : new int[] { 3, 5 }) {
+			clock.advance(COOLDOWN);
+			provisioner.scale();
+			awaitClones(provisioner, expected);
+		}
+
+		// the queue is empty, but one clone is running a test.
+		provisioner.pending = 0;
+		String busy = backend.created.get(4);
+		provisioner.busy.add(busy);
+		clock.advance(COOLDOWN);
+		provisioner.scale();
+		await(backend.destroyed, 2);
+		assertEquals(3, provisioner.getCloneCount());
+		assertFalse(backend.destroyed.contains(busy));
+		for (String clone : backend.destroyed) {
+			assertFalse(inventory.vms.containsKey(clone));
+			assertFalse(provisioner.nodes.contains(clone));
+		}
+
+		// cooling down.
+		provisioner.busy.clear();
+		provisioner.scale();
+		assertEquals(3, provisioner.getCloneCount());
+
+		// down to min.
+		clock.advance(COOLDOWN);
+		provisioner.scale();
+		await(backend.destroyed, 4);
+		assertEquals(1, provisioner.getCloneCount());
+		clock.advance(COOLDOWN);
+		provisioner.scale();
+		Thread.sleep(50);
+		assertEquals(4, backend.destroyed.size());
+	}
+
+	@Test
+	public void clonesPerDatastoreAreLimited() throws Exception {
+		FakeCloneBackend backend = new FakeCloneBackend(50);
+		TestProvisioner provisioner = provisioner(backend, 0, 6, 6, 2);
+		provisioner.pending = 10;
+		provisioner.scale();
+		awaitClones(provisioner, 6);
+		synchronized (backend) {
+			assertEquals(2, backend.maxRunning);
+		}
+	}
+
+	@Test
+	public void cloneWithoutANodeToCopyIsDestroyed() throws Exception {
+		FakeCloneBackend backend = new FakeCloneBackend(0);
+		TestProvisioner provisioner = provisioner(backend, 1, 10, 2, 2);
+		provisioner.registrable = false;
+		provisioner.scale();
+		await(backend.destroyed, 1);
+		assertEquals(0, provisioner.getCloneCount());
+		assertFalse(inventory.vms.containsKey(backend.destroyed.get(0)));
+	}
+
+	@Test
+	public void noTemplateNoClone() throws Exception {
+		FakeCloneBackend backend = new FakeCloneBackend(0);
+		TestProvisioner provisioner = provisioner(backend, 2, 10, 2, 2);
+		inventory.vms.remove("template");
+		provisioner.scale();
+		Thread.sleep(50);
+		assertTrue(backend.created.isEmpty());
+	}
+}
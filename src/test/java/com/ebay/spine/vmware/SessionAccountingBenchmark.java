@@ -0,0 +1,88 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Session admission on one node under contention : what getNewSession costs
+ * before the grid creates the session. Run with main().
+ *
+ * @author freynaud
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SessionAccountingBenchmark {
+
+	private SessionAccounting accounting;
+
+	@Setup
+	public void setUp() {
+		// never due, the node keeps accepting sessions.
+		accounting = new SessionAccounting(SessionAccountingTest.budget(Integer.MAX_VALUE));
+	}
+
+	@Benchmark
+	@Threads(1)
+	public boolean admitAndFinishAlone() {
+		return admitAndFinish();
+	}
+
+	@Benchmark
+	@Threads(8)
+	public boolean admitAndFinishContended() {
+		return admitAndFinish();
+	}
+
+	@Benchmark
+	@Threads(8)
+	public boolean admitAndRollbackContended() {
+		boolean admitted = accounting.admit();
+		if (admitted) {
+			accounting.count(-1, 0);
+		}
+		return admitted;
+	}
+
+	private boolean admitAndFinish() {
+		boolean admitted = accounting.admit();
+		if (admitted) {
+			accounting.count(0, 1);
+		}
+		if (accounting.get().getFinished() > Integer.MAX_VALUE / 2) {
+			// far from overflowing, whatever the run time.
+			setUp();
+		}
+		return admitted;
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(SessionAccountingBenchmark.class.getSimpleName()).forks(1).build()).run();
+	}
+}
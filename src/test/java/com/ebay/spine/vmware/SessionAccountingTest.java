@@ -0,0 +1,151 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class SessionAccountingTest {
+
+	/**
+	 * due once the budget is started, like a node reverting every budget
+	 * tests.
+	 */
+	static SessionAccounting.Budget budget(final int budget) {
+		return new SessionAccounting.Budget() {
+			public boolean isDue(int started) {
+				return started >= budget;
+			}
+		};
+	}
+
+	@Test
+	public void admitsUntilTheBudgetThenDrains() {
+		SessionAccounting accounting = new SessionAccounting(budget(2));
+		assertTrue(accounting.admit());
+		assertEquals(NodeState.BUSY, accounting.get().getState());
+		assertTrue(accounting.admit());
+		assertEquals(NodeState.DRAINING, accounting.get().getState());
+		assertFalse(accounting.admit());
+
+		assertFalse(accounting.count(0, 1).entered(NodeState.RECYCLING));
+		SessionAccounting.Change last = accounting.count(0, 1);
+		assertTrue(last.entered(NodeState.RECYCLING));
+		assertEquals(2, last.getAfter().getStarted());
+		assertEquals(2, last.getAfter().getFinished());
+		assertFalse(accounting.admit());
+	}
+
+	@Test
+	public void rollbackGivesTheSlotBack() {
+		SessionAccounting accounting = new SessionAccounting(budget(10));
+		assertTrue(accounting.admit());
+		SessionAccounting.Change change = accounting.count(-1, 0);
+		assertEquals(NodeState.AVAILABLE, change.getAfter().getState());
+		assertEquals(0, change.getAfter().getStarted());
+		assertEquals(0, change.getAfter().getFinished());
+	}
+
+	@Test
+	public void rollbackOfTheLastSlotUndoesTheDrain() {
+		SessionAccounting accounting = new SessionAccounting(budget(1));
+		assertTrue(accounting.admit());
+		assertEquals(NodeState.DRAINING, accounting.get().getState());
+		SessionAccounting.Change change = accounting.count(-1, 0);
+		assertEquals(NodeState.AVAILABLE, change.getAfter().getState());
+		assertFalse(change.entered(NodeState.RECYCLING));
+		// the slot can be used again.
+		assertTrue(accounting.admit());
+	}
+
+	@Test
+	public void noSessionOutsideOfAcceptingStates() {
+		SessionAccounting accounting = new SessionAccounting(budget(10));
+		for (NodeState state : NodeState.values()) {
+			accounting.set(SessionCounts.CLEAN.with(state));
+			assertEquals(state.acceptsSessions(), accounting.admit());
+		}
+	}
+
+	/**
+	 * many threads getting sessions, giving some slots back and finishing the
+	 * other ones on the same node, until it is recycling.
+	 */
+	@Test
+	public void concurrentSessionsNeverExceedTheBudget() throws Exception {
+		final int budget = 2000;
+		final int threads = 16;
+		final SessionAccounting accounting = new SessionAccounting(budget(budget));
+		final AtomicInteger recycles = new AtomicInteger();
+		final AtomicInteger overBudget = new AtomicInteger();
+		final AtomicInteger finished = new AtomicInteger();
+		final CountDownLatch go = new CountDownLatch(1);
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			final Random random = new Random(i);
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					try {
+						go.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					while (accounting.get().getState() != NodeState.RECYCLING) {
+						if (!accounting.admit()) {
+							Thread.yield();
+							continue;
+						}
+						if (accounting.get().getStarted() > budget) {
+							overBudget.incrementAndGet();
+						}
+						// no session could be created for some of them.
+						SessionAccounting.Change change = random.nextInt(5) == 0 ? accounting.count(-1, 0) : accounting.count(0, 1);
+						if (change.getAfter().getFinished() > change.getBefore().getFinished()) {
+							finished.incrementAndGet();
+						}
+						if (change.entered(NodeState.RECYCLING)) {
+							recycles.incrementAndGet();
+						}
+					}
+				}
+			});
+			t.start();
+			workers.add(t);
+		}
+		go.countDown();
+		for (Thread t : workers) {
+			t.join(60000);
+			assertFalse("the node never reached RECYCLING : " + accounting, t.isAlive());
+		}
+
+		SessionCounts end = accounting.get();
+		assertEquals(0, overBudget.get());
+		assertEquals(1, recycles.get());
+		assertEquals(NodeState.RECYCLING, end.getState());
+		assertEquals(budget, end.getStarted());
+		assertEquals(budget, end.getFinished());
+		assertEquals(budget, finished.get());
+	}
+}
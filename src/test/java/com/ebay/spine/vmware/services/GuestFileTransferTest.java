@@ -0,0 +1,292 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ebay.spine.vmware.model.VirtualMachineWrapper;
+
+public class GuestFileTransferTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * a linux guest whose file system is a local folder. Every call takes
+	 * latency ms, like a VIX call would.
+	 */
+	static class FakeGuest implements GuestFileTransfer.Guest {
+		final File root;
+		final long latency;
+		final AtomicInteger calls = new AtomicInteger();
+		final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+
+		FakeGuest(File root, long latency) {
+			this.root = root;
+			this.latency = latency;
+		}
+
+		File file(String guestPath) {
+			return new File(root, guestPath);
+		}
+
+		public void copyToGuest(String hostFile, String guestFile) {
+			call();
+			received.add(hostFile);
+			copy(new File(hostFile), file(guestFile));
+		}
+
+		public void copyToHost(String guestFile, String hostFile) {
+			call();
+			copy(file(guestFile), new File(hostFile));
+		}
+
+		/**
+		 * runs the zip, unzip and rm commands of GuestOs.LINUX.
+		 */
+		public int run(String interpreter, String command) {
+			call();
+			List<String> args = quoted(command);
+			if (command.contains("unzip")) {
+				GuestFileTransfer.extract(file(args.get(1)), file(args.get(0)));
+				file(args.get(1)).delete();
+			} else if (command.contains("zip -r")) {
+				File archive = GuestFileTransfer.bundle(file(args.get(0)));
+				copy(archive, file(args.get(1)));
+				archive.delete();
+			} else if (command.startsWith("rm -f")) {
+				file(args.get(0)).delete();
+			} else {
+				return 1;
+			}
+			return 0;
+		}
+
+		private void call() {
+			calls.incrementAndGet();
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private static List<String> quoted(String command) {
+			List<String> res = new ArrayList<String>();
+			int start = command.indexOf('\'');
+			while (start != -1) {
+				int end = command.indexOf('\'', start + 1);
+				res.add(command.substring(start + 1, end));
+				start = command.indexOf('\'', end + 1);
+			}
+			return res;
+		}
+
+		private static void copy(File from, File to) {
+			try {
+				to.getParentFile().mkdirs();
+				Files.copy(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private File work;
+	private final Map<VirtualMachineWrapper, FakeGuest> guests = new ConcurrentHashMap<VirtualMachineWrapper, FakeGuest>();
+
+	@Before
+	public void setUp() throws IOException {
+		work = Files.createTempDirectory("spine-transfer-test").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		delete(work);
+	}
+
+	private GuestFileTransfer transfer(int threads) {
+		return new GuestFileTransfer(threads) {
+			@Override
+			GuestFileTransfer.Guest guestOf(VirtualMachineWrapper vm) {
+				return guests.get(vm);
+			}
+		};
+	}
+
+	private VirtualMachineWrapper vm(int i, long latency) {
+		VirtualMachineWrapper vm = new VirtualMachineWrapper(null, "uuid-" + i, "vm-" + i, "[ds] vm-" + i + "/vm-" + i + ".vmx");
+		vm.setRole(NodeRole.LINUX);
+		File root = new File(work, "guest-" + i);
+		root.mkdirs();
+		guests.put(vm, new FakeGuest(root, latency));
+		return vm;
+	}
+
+	/**
+	 *
+	 * @param files
+	 *            number of files, of about 3.5KB each
+	 * @return a local folder with files in sub folders.
+	 */
+	private File folder(String name, int files) throws IOException {
+		File folder = new File(work, name);
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < 512; i++) {
+			content.append("line ").append(i % 10).append('\n');
+		}
+		for (int i = 0; i < files; i++) {
+			File f = new File(folder, "dir-" + (i % 3) + "/file-" + i + ".txt");
+			f.getParentFile().mkdirs();
+			Files.write(f.toPath(), (i + content.toString()).getBytes(UTF8));
+		}
+		return folder;
+	}
+
+	@Test
+	public void pushThenPullKeepsTheContent() throws IOException {
+		GuestFileTransfer transfer = transfer(2);
+		VirtualMachineWrapper vm = vm(1, 0);
+		File local = folder("local", 20);
+
+		long pushed = transfer.push(vm, local, "/home/qa/data");
+		FakeGuest guest = guests.get(vm);
+		assertEquals(20, count(guest.file("/home/qa/data")));
+		// the archive is only a transfer file, on both sides.
+		assertFalse(new File(guest.received.get(0)).exists());
+		assertEquals(0, guest.file("/tmp").list().length);
+
+		File back = new File(work, "back");
+		long pulled = transfer.pull(vm, "/home/qa/data", back);
+		for (int i = 0; i < 20; i++) {
+			String path = "dir-" + (i % 3) + "/file-" + i + ".txt";
+			assertEquals(new String(Files.readAllBytes(new File(local, path).toPath()), UTF8), new String(Files.readAllBytes(new File(back, path).toPath()), UTF8));
+		}
+		assertEquals(0, guest.file("/tmp").list().length);
+
+		// a push is 2 calls, a pull 3, whatever the number of files.
+		assertEquals(5, guest.calls.get());
+		assertEquals(2, transfer.getTransfers());
+		assertEquals(pushed + pulled, transfer.getTotalBytes());
+		// compressed.
+		assertTrue(pushed < 20 * 4096);
+	}
+
+	/**
+	 * 8 VMs on 4 threads, each guest call taking 50ms : the push takes about
+	 * 2 rounds of 2 calls instead of 8, and the stats show the latency of one
+	 * VM.
+	 */
+	@Test
+	public void parallelPushLatencyAndThroughput() throws Exception {
+		long latency = 50;
+		int threads = 4;
+		GuestFileTransfer transfer = transfer(threads);
+		List<VirtualMachineWrapper> vms = new ArrayList<VirtualMachineWrapper>();
+		for (int i = 0; i < 8; i++) {
+			vms.add(vm(i, latency));
+		}
+		File local = folder("local", 50);
+
+		long start = System.currentTimeMillis();
+		Map<VirtualMachineWrapper, Future<Long>> futures = transfer.push(vms, local, "/home/qa/data");
+		long bytes = 0;
+		for (Future<Long> f : futures.values()) {
+			bytes += f.get();
+		}
+		long elapsed = System.currentTimeMillis() - start;
+
+		String archive = null;
+		for (VirtualMachineWrapper vm : vms) {
+			FakeGuest guest = guests.get(vm);
+			assertEquals(50, count(guest.file("/home/qa/data")));
+			assertEquals(2, guest.calls.get());
+			// the archive is built once for all the VMs.
+			if (archive == null) {
+				archive = guest.received.get(0);
+			}
+			assertEquals(archive, guest.received.get(0));
+		}
+		assertFalse(new File(archive).exists());
+
+		long perVm = 2 * latency;
+		assertTrue("took " + elapsed + "ms", elapsed >= 2 * perVm);
+		assertTrue("took " + elapsed + "ms", elapsed < vms.size() * perVm);
+		assertEquals(vms.size(), transfer.getTransfers());
+		assertEquals(bytes, transfer.getTotalBytes());
+		assertTrue(transfer.getAverageLatency() >= perVm);
+		assertTrue(transfer.getThroughput() > 0);
+		assertTrue(transfer.getThroughput() <= bytes * 1000 / (vms.size() * perVm));
+	}
+
+	@Test(expected = ExecutionException.class)
+	public void failedUnpackFailsThatVm() throws Exception {
+		GuestFileTransfer transfer = new GuestFileTransfer(1) {
+			@Override
+			GuestFileTransfer.Guest guestOf(VirtualMachineWrapper vm) {
+				return new FakeGuest(new File(work, "broken"), 0) {
+					@Override
+					public int run(String interpreter, String command) {
+						return 9;
+					}
+				};
+			}
+		};
+		List<VirtualMachineWrapper> vms = new ArrayList<VirtualMachineWrapper>();
+		vms.add(vm(1, 0));
+		transfer.push(vms, folder("local", 1), "/home/qa/data").get(vms.get(0)).get();
+	}
+
+	private static int count(File folder) {
+		int res = 0;
+		File[] children = folder.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				res += child.isDirectory() ? count(child) : 1;
+			}
+		}
+		return res;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,217 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.ebay.spine.vmware.model.VirtualMachineWrapper;
+import com.vmware.vim25.CustomFieldDef;
+import com.vmware.vim25.CustomFieldStringValue;
+import com.vmware.vim25.CustomFieldValue;
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.mo.ServerConnection;
+
+public class InventoryLoaderTest {
+
+	/**
+	 * a VCenter answering from memory, counting the calls and taking latency
+	 * ms for each of them.
+	 */
+	static class FakeRemote implements InventoryLoader.Remote {
+		final List<ObjectContent> contents = new ArrayList<ObjectContent>();
+		CustomFieldDef[] fields = new CustomFieldDef[0];
+		long latency = 0;
+		int customFieldCalls = 0;
+		int retrieveCalls = 0;
+
+		public CustomFieldDef[] getCustomFields() {
+			customFieldCalls++;
+			sleep();
+			return fields;
+		}
+
+		public ManagedObjectReference getRootFolder() {
+			return mor("Folder", "group-d1");
+		}
+
+		public ObjectContent[] retrieveProperties(PropertyFilterSpec spec) {
+			retrieveCalls++;
+			sleep();
+			return contents.toArray(new ObjectContent[contents.size()]);
+		}
+
+		public ServerConnection nextConnection() {
+			return null;
+		}
+
+		private void sleep() {
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		void add(String type, String id, Map<String, Object> props) {
+			List<DynamicProperty> set = new ArrayList<DynamicProperty>();
+			for (Map.Entry<String, Object> e : props.entrySet()) {
+				DynamicProperty p = new DynamicProperty();
+				p.setName(e.getKey());
+				p.setVal(e.getValue());
+				set.add(p);
+			}
+			ObjectContent content = new ObjectContent();
+			content.setObj(mor(type, id));
+			content.setPropSet(set.toArray(new DynamicProperty[set.size()]));
+			contents.add(content);
+		}
+
+		void addVm(int i) {
+			Map<String, Object> props = new HashMap<String, Object>();
+			props.put(InventoryLoader.NAME, "vm-" + i);
+			props.put(InventoryLoader.UUID, "uuid-" + i);
+			props.put(InventoryLoader.VMX, "[ds" + (i % 4) + "] vm-" + i + "/vm-" + i + ".vmx");
+			props.put(InventoryLoader.IP, "10.0." + (i / 256) + "." + (i % 256));
+			props.put(InventoryLoader.POWER, VirtualMachinePowerState.poweredOn);
+			props.put(InventoryLoader.HOST, mor("HostSystem", "host-" + (i % 8)));
+			props.put(InventoryLoader.FOLDER, mor("Folder", "group-v" + (i % 2)));
+			props.put(InventoryLoader.RESOURCE_POOL, mor("ResourcePool", "resgroup-" + (i % 3)));
+			add(InventoryLoader.VM_TYPE, "vm-" + i, props);
+		}
+	}
+
+	static ManagedObjectReference mor(String type, String id) {
+		ManagedObjectReference mor = new ManagedObjectReference();
+		mor.setType(type);
+		mor.set_value(id);
+		return mor;
+	}
+
+	static Map<String, Object> name(String name) {
+		Map<String, Object> props = new HashMap<String, Object>();
+		props.put("name", name);
+		return props;
+	}
+
+	@Test
+	public void loadsTheVmsWithTheirAttributes() {
+		FakeRemote remote = new FakeRemote();
+		CustomFieldDef field = new CustomFieldDef();
+		field.setKey(7);
+		field.setName("owner");
+		remote.fields = new CustomFieldDef[] { field };
+		CustomFieldStringValue owner = new CustomFieldStringValue();
+		owner.setKey(7);
+		owner.setValue("qa");
+
+		Map<String, Object> props = new HashMap<String, Object>();
+		props.put(InventoryLoader.NAME, "linux-1");
+		props.put(InventoryLoader.UUID, "uuid-1");
+		props.put(InventoryLoader.VMX, "[ds1] linux-1/linux-1.vmx");
+		props.put(InventoryLoader.IP, "10.0.0.1");
+		props.put(InventoryLoader.POWER, VirtualMachinePowerState.poweredOff);
+		props.put(InventoryLoader.HOST, mor("HostSystem", "host-9"));
+		props.put(InventoryLoader.GUEST_ID, "ubuntu64Guest");
+		props.put(InventoryLoader.FOLDER, mor("Folder", "group-v3"));
+		props.put(InventoryLoader.RESOURCE_POOL, mor("ResourcePool", "resgroup-4"));
+		props.put(InventoryLoader.CUSTOM, new CustomFieldValue[] { owner });
+		// the VM comes before its folder, the names are still resolved.
+		remote.add(InventoryLoader.VM_TYPE, "vm-1", props);
+		remote.add("Folder", "group-v3", name("linux"));
+
+		List<VirtualMachineWrapper> vms = new InventoryLoader(null, remote).load();
+		assertEquals(1, vms.size());
+		VirtualMachineWrapper vm = vms.get(0);
+		assertEquals("linux-1", vm.getName());
+		assertEquals("uuid-1", vm.getId());
+		assertEquals("[ds1] linux-1/linux-1.vmx", vm.getConfigPath());
+		assertEquals("10.0.0.1", vm.getIp());
+		assertEquals(VirtualMachinePowerState.poweredOff, vm.getPowerState());
+		assertEquals("host-9", vm.getHostId());
+		assertEquals("ubuntu64Guest", vm.getAttribute("guestId"));
+		assertEquals("linux", vm.getAttribute("folder"));
+		// no name loaded for that pool, known by its id.
+		assertEquals("resgroup-4", vm.getAttribute("resourcePool"));
+		assertEquals("qa", vm.getAttribute("custom.owner"));
+	}
+
+	@Test
+	public void vmsWithoutConfigAreSkipped() {
+		FakeRemote remote = new FakeRemote();
+		remote.addVm(1);
+		Map<String, Object> cloning = new HashMap<String, Object>();
+		cloning.put(InventoryLoader.NAME, "being-cloned");
+		remote.add(InventoryLoader.VM_TYPE, "vm-2", cloning);
+
+		List<VirtualMachineWrapper> vms = new InventoryLoader(null, remote).load();
+		assertEquals(1, vms.size());
+		assertEquals("vm-1", vms.get(0).getName());
+	}
+
+	@Test
+	public void noCustomAttributesOnAStandaloneEsx() {
+		FakeRemote remote = new FakeRemote();
+		remote.fields = null;
+		remote.addVm(1);
+
+		InventoryLoader loader = new InventoryLoader(null, remote);
+		assertEquals(1, loader.load().size());
+		assertEquals(1, loader.getLastRemoteCalls());
+		assertNull(loader.load().get(0).getAttribute("custom.owner"));
+	}
+
+	/**
+	 * the whole inventory takes the same 2 calls, whatever its size, and the
+	 * elapsed time is the latency of those 2 calls, not of one per VM.
+	 */
+	@Test
+	public void remoteCallsDontGrowWithTheInventory() {
+		int latency = 20;
+		for (int size : new int[] { 10, 1000, 10000 }) {
+			FakeRemote remote = new FakeRemote();
+			remote.latency = latency;
+			for (int i = 0; i < 5; i++) {
+				remote.add("Folder", "group-v" + i, name("folder-" + i));
+			}
+			for (int i = 0; i < size; i++) {
+				remote.addVm(i);
+			}
+
+			InventoryLoader loader = new InventoryLoader(null, remote);
+			List<VirtualMachineWrapper> vms = loader.load();
+			assertEquals(size, vms.size());
+			assertEquals("folder-1", vms.get(1).getAttribute("folder"));
+			assertEquals(2, loader.getLastRemoteCalls());
+			assertEquals(1, remote.customFieldCalls);
+			assertEquals(1, remote.retrieveCalls);
+			assertTrue(loader.getLastElapsed() >= 2 * latency);
+			assertTrue("took " + loader.getLastElapsed() + "ms for " + size + " VMs", loader.getLastElapsed() < 2 * latency + 5000);
+		}
+	}
+}
@@ -0,0 +1,233 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.ebay.spine.vmware.model.VirtualMachineWrapper;
+import com.ebay.spine.vmware.sim.ReplayUpdateSource;
+import com.vmware.vim25.InvalidCollectorVersion;
+import com.vmware.vim25.VirtualMachineSnapshotInfo;
+import com.vmware.vim25.VirtualMachineSnapshotTree;
+import com.vmware.vim25.mo.VirtualMachine;
+
+public class InventoryTrackerTest {
+
+	private static final String VM = InventoryLoader.VM_TYPE;
+
+	/**
+	 * keeps what the tracker publishes.
+	 */
+	static class RecordingPublisher implements InventoryTracker.Publisher {
+		final Map<String, VirtualMachineWrapper> known = new ConcurrentHashMap<String, VirtualMachineWrapper>();
+		final List<Map<String, VirtualMachineWrapper>> published = Collections
+				.synchronizedList(new ArrayList<Map<String, VirtualMachineWrapper>>());
+
+		public VirtualMachineWrapper getKnown(String id) {
+			return known.get(id);
+		}
+
+		public void publish(Collection<VirtualMachineWrapper> vms) {
+			Map<String, VirtualMachineWrapper> byName = new HashMap<String, VirtualMachineWrapper>();
+			for (VirtualMachineWrapper vm : vms) {
+				byName.put(vm.getName(), vm);
+			}
+			published.add(byName);
+		}
+
+		Map<String, VirtualMachineWrapper> last() {
+			return published.get(published.size() - 1);
+		}
+	}
+
+	private final ReplayUpdateSource source = new ReplayUpdateSource();
+	private final RecordingPublisher publisher = new RecordingPublisher();
+	private InventoryTracker tracker;
+
+	@After
+	public void tearDown() {
+		if (tracker != null) {
+			tracker.stop();
+		}
+	}
+
+	private void start(VirtualMachineWrapper... inventory) {
+		tracker = new InventoryTracker("test", Arrays.asList(inventory), publisher, source, new InventoryLoader(null, new InventoryLoaderTest.FakeRemote()));
+		tracker.start();
+	}
+
+	private void replayed() throws InterruptedException {
+		assertTrue("the tracker didn't apply the updates", source.awaitReplayed(10000));
+	}
+
+	static Map<String, Object> props(int i, String name) {
+		Map<String, Object> props = new HashMap<String, Object>();
+		props.put(InventoryLoader.NAME, name);
+		props.put(InventoryLoader.UUID, "uuid-" + i);
+		props.put(InventoryLoader.VMX, "[ds1] " + name + "/" + name + ".vmx");
+		props.put(InventoryLoader.IP, "10.0.0." + i);
+		return props;
+	}
+
+	static Map<String, Object> change(String property, Object val) {
+		Map<String, Object> props = new HashMap<String, Object>();
+		props.put(property, val);
+		return props;
+	}
+
+	static VirtualMachineSnapshotInfo snapshots(String... names) {
+		// a chain : each snapshot is the child of the previous one.
+		VirtualMachineSnapshotTree child = null;
+		for (int i = names.length - 1; i >= 0; i--) {
+			VirtualMachineSnapshotTree node = new VirtualMachineSnapshotTree();
+			node.setName(names[i]);
+			node.setSnapshot(InventoryLoaderTest.mor("VirtualMachineSnapshot", "snapshot-" + i));
+			node.setChildSnapshotList(child == null ? null : new VirtualMachineSnapshotTree[] { child });
+			child = node;
+		}
+		VirtualMachineSnapshotInfo info = new VirtualMachineSnapshotInfo();
+		info.setRootSnapshotList(new VirtualMachineSnapshotTree[] { child });
+		return info;
+	}
+
+	@Test
+	public void vmsAreAddedRenamedAndRemoved() throws Exception {
+		start();
+		source.add(ReplayUpdateSource.enter(VM, "vm-1", props(1, "linux-1")), ReplayUpdateSource.enter(VM, "vm-2", props(2, "linux-2")));
+		replayed();
+		assertEquals(1, publisher.published.size());
+		VirtualMachineWrapper first = publisher.last().get("linux-1");
+		assertEquals("uuid-1", first.getId());
+		assertEquals(2, publisher.last().size());
+
+		source.add(ReplayUpdateSource.modify(VM, "vm-1", change(InventoryLoader.NAME, "linux-1b")));
+		replayed();
+		assertEquals(2, publisher.published.size());
+		assertSame(first, publisher.last().get("linux-1b"));
+		assertNull(publisher.last().get("linux-1"));
+
+		source.add(ReplayUpdateSource.leave(VM, "vm-2"));
+		replayed();
+		assertEquals(3, publisher.published.size());
+		assertEquals(1, publisher.last().size());
+		assertTrue(publisher.last().containsKey("linux-1b"));
+
+		assertEquals(Arrays.asList("", "1", "2", "3"), source.getRequestedVersions());
+	}
+
+	@Test
+	public void onlyTheChangesOfTheVmListOrAttributesArePublished() throws Exception {
+		start();
+		source.add(ReplayUpdateSource.enter(VM, "vm-1", props(1, "linux-1")));
+		replayed();
+		VirtualMachineWrapper vm = publisher.last().get("linux-1");
+
+		source.add(ReplayUpdateSource.modify(VM, "vm-1", change(InventoryLoader.IP, "10.0.0.99")));
+		// a VM being created : no config yet.
+		source.add(ReplayUpdateSource.enter(VM, "vm-2", change(InventoryLoader.NAME, "cloning")));
+		replayed();
+		assertEquals(1, publisher.published.size());
+		assertEquals("10.0.0.99", vm.getIp());
+
+		// the folder may change the role.
+		source.add(ReplayUpdateSource.enter("Folder", "group-v7", change("name", "windows")));
+		source.add(ReplayUpdateSource.modify(VM, "vm-1", change(InventoryLoader.FOLDER, InventoryLoaderTest.mor("Folder", "group-v7"))));
+		replayed();
+		assertEquals(2, publisher.published.size());
+		assertEquals("windows", vm.getAttribute("folder"));
+	}
+
+	@Test
+	public void snapshotChangesAreApplied() throws Exception {
+		start();
+		Map<String, Object> props = props(1, "linux-1");
+		props.put(InventoryLoader.SNAPSHOT, snapshots("base", "clean"));
+		source.add(ReplayUpdateSource.enter(VM, "vm-1", props));
+		replayed();
+		VirtualMachineWrapper vm = publisher.last().get("linux-1");
+		assertTrue(vm.snapshotExists("clean"));
+		assertFalse(vm.snapshotExists("fresh"));
+
+		source.add(ReplayUpdateSource.modify(VM, "vm-1", change(InventoryLoader.SNAPSHOT, snapshots("base", "clean", "fresh"))));
+		replayed();
+		assertTrue(vm.snapshotExists("fresh"));
+		assertEquals(3, vm.getSnapshotIndex().getDepth(vm.getSnapshotIndex().indexOf("fresh")));
+		// same VMs.
+		assertEquals(1, publisher.published.size());
+	}
+
+	@Test
+	public void theVmsTheGridHasAreReused() throws Exception {
+		VirtualMachineWrapper cached = new VirtualMachineWrapper(new VirtualMachine(null, InventoryLoaderTest.mor(VM, "vm-1")), "uuid-1", "linux-1",
+				"[ds1] linux-1/linux-1.vmx");
+		VirtualMachineWrapper clone = new VirtualMachineWrapper(null, "uuid-2", "linux-2", "[ds1] linux-2/linux-2.vmx");
+		publisher.known.put(clone.getId(), clone);
+		start(cached);
+		source.add(ReplayUpdateSource.enter(VM, "vm-1", props(1, "linux-1")), ReplayUpdateSource.enter(VM, "vm-2", props(2, "linux-2")));
+		replayed();
+		assertSame(cached, publisher.last().get("linux-1"));
+		assertSame(clone, publisher.last().get("linux-2"));
+	}
+
+	/**
+	 * the server forgot the version : the full state is asked again, the VMs
+	 * deleted in between are removed and the other ones keep their wrapper.
+	 */
+	@Test
+	public void invalidCollectorVersionResyncsTheFullState() throws Exception {
+		start();
+		source.add(ReplayUpdateSource.enter(VM, "vm-1", props(1, "linux-1")), ReplayUpdateSource.enter(VM, "vm-2", props(2, "linux-2")),
+				ReplayUpdateSource.enter(VM, "vm-3", props(3, "linux-3")));
+		replayed();
+		VirtualMachineWrapper first = publisher.last().get("linux-1");
+		VirtualMachineWrapper third = publisher.last().get("linux-3");
+
+		source.fail(new InvalidCollectorVersion());
+		source.add(ReplayUpdateSource.enter(VM, "vm-1", props(1, "linux-1")), ReplayUpdateSource.enter(VM, "vm-3", props(3, "linux-3b")),
+				ReplayUpdateSource.enter(VM, "vm-4", props(4, "linux-4")));
+		replayed();
+
+		assertEquals(Arrays.asList("", "1", "", "2"), source.getRequestedVersions());
+		Map<String, VirtualMachineWrapper> last = publisher.last();
+		assertEquals(3, last.size());
+		assertSame(first, last.get("linux-1"));
+		assertSame(third, last.get("linux-3b"));
+		assertEquals("uuid-4", last.get("linux-4").getId());
+		assertNull(last.get("linux-2"));
+
+		// back to incremental updates : an object not in the batch stays.
+		source.add(ReplayUpdateSource.modify(VM, "vm-4", change(InventoryLoader.NAME, "linux-4b")));
+		replayed();
+		assertEquals(3, publisher.last().size());
+		assertSame(first, publisher.last().get("linux-1"));
+	}
+}
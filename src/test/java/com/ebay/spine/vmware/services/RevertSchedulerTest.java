@@ -0,0 +1,163 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ebay.spine.vmware.services.RevertScheduler.Permit;
+
+public class RevertSchedulerTest {
+
+	private RevertScheduler scheduler;
+	private ExecutorService waiters;
+
+	@Before
+	public void setup() {
+		Properties props = new Properties();
+		props.setProperty("revert.maxPerDatastore", "1");
+		props.setProperty("revert.maxPerHost", "2");
+		scheduler = new RevertScheduler(props);
+		waiters = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void teardown() {
+		waiters.shutdownNow();
+	}
+
+	private Future<Permit> acquireLater(final String datastore, final String host) throws InterruptedException {
+		int before = scheduler.getQueueLength();
+		Future<Permit> permit = waiters.submit(new Callable<Permit>() {
+			public Permit call() throws Exception {
+				return scheduler.acquire(datastore, host);
+			}
+		});
+		// waits until the revert is either queued or started.
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!permit.isDone() && scheduler.getQueueLength() == before && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		return permit;
+	}
+
+	private Permit granted(Future<Permit> permit) throws Exception {
+		return permit.get(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void limitedPerDatastore() throws Exception {
+		Permit first = scheduler.acquire("ds1", "h1");
+		Future<Permit> second = acquireLater("ds1", "h2");
+		assertFalse(second.isDone());
+		assertEquals(1, scheduler.getQueueLength());
+
+		scheduler.release(first, 10, true);
+		assertNotNull(granted(second));
+		assertEquals(0, scheduler.getQueueLength());
+	}
+
+	@Test
+	public void limitedPerHost() throws Exception {
+		scheduler.acquire("ds1", "h1");
+		scheduler.acquire("ds2", "h1");
+		Future<Permit> third = acquireLater("ds3", "h1");
+		assertFalse(third.isDone());
+		assertEquals(1, scheduler.getQueueLength());
+	}
+
+	@Test
+	public void waitingForDatastoreDoesntBlockTheHost() throws Exception {
+		scheduler.acquire("ds1", "h1");
+		Future<Permit> sameDatastore = acquireLater("ds1", "h1");
+		assertFalse(sameDatastore.isDone());
+
+		// h1 still has room for a revert on another datastore.
+		Future<Permit> otherDatastore = acquireLater("ds2", "h1");
+		assertNotNull(granted(otherDatastore));
+		assertFalse(sameDatastore.isDone());
+	}
+
+	@Test
+	public void waitingForHostDoesntBlockTheDatastore() throws Exception {
+		scheduler.acquire("ds1", "h1");
+		scheduler.acquire("ds2", "h1");
+		Future<Permit> sameHost = acquireLater("ds3", "h1");
+		assertFalse(sameHost.isDone());
+
+		Future<Permit> otherHost = acquireLater("ds3", "h2");
+		assertNotNull(granted(otherHost));
+	}
+
+	@Test
+	public void oldestFirst() throws Exception {
+		Permit first = scheduler.acquire("ds1", "h1");
+		Future<Permit> second = acquireLater("ds1", "h1");
+		Future<Permit> third = acquireLater("ds1", "h2");
+		assertEquals(2, scheduler.getQueueLength());
+
+		scheduler.release(first, 10, true);
+		Permit p = granted(second);
+		assertFalse(third.isDone());
+
+		scheduler.release(p, 10, true);
+		assertNotNull(granted(third));
+	}
+
+	@Test
+	public void unknownDatastoresAreNotShared() throws Exception {
+		scheduler.acquire(null, "h1");
+		Future<Permit> other = acquireLater(null, "h2");
+		assertNotNull(granted(other));
+		assertEquals(0, scheduler.getQueueLength());
+	}
+
+	@Test
+	public void unknownHostsAreNotShared() throws Exception {
+		scheduler.acquire("ds1", null);
+		scheduler.acquire("ds2", null);
+		Future<Permit> third = acquireLater("ds3", null);
+		assertNotNull(granted(third));
+	}
+
+	@Test
+	public void interruptedWaiterLeavesTheQueue() throws Exception {
+		Permit first = scheduler.acquire("ds1", "h1");
+		Future<Permit> second = acquireLater("ds1", "h1");
+		Future<Permit> third = acquireLater("ds1", "h1");
+		second.cancel(true);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (scheduler.getQueueLength() != 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(1, scheduler.getQueueLength());
+
+		scheduler.release(first, 10, true);
+		assertNotNull(granted(third));
+	}
+}
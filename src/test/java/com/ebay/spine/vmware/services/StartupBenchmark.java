@@ -0,0 +1,202 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.ebay.spine.vmware.model.VirtualMachineWrapper;
+import com.ebay.spine.vmware.sim.LatencyDistribution;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.VirtualMachineSnapshotInfo;
+import com.vmware.vim25.VirtualMachineSnapshotTree;
+import com.vmware.vim25.mo.VirtualMachine;
+
+/**
+ * Compares the time a hub takes to know its VMs and their snapshots, with and
+ * without the InventoryCache, against a fake VCenter. Run with main(), from a
+ * folder with a credentials.properties containing :
+ * 
+ * bench.vms : number of VMs, default 1000.
+ * 
+ * bench.snapshots : depth of the snapshot tree of each VM, default 3.
+ * 
+ * sim.inventory.latency / sim.inventory.sigma : time to load the inventory,
+ * per 1000 VMs, default 3000ms.
+ * 
+ * sim.snapshots.latency / sim.snapshots.sigma : time to load the snapshots of
+ * a VM, default 150ms.
+ * 
+ * snapshots.warmup.threads : snapshots loaded in parallel, default 8.
+ * 
+ * sim.timeScale : the fake VCenter runs that many times faster, default 100.
+ * 
+ * The cold start is reported in simulated time, the warm start only reads the
+ * cache file and is measured as is.
+ * 
+ * @author freynaud
+ * 
+ */
+public class StartupBenchmark {
+
+	private final int vms;
+	private final int depth;
+	private final int threads;
+	private final double timeScale;
+	private final LatencyDistribution inventoryLatency;
+	private final LatencyDistribution snapshotsLatency;
+
+	public StartupBenchmark(Properties properties) {
+		Random random = new Random(CredentialsProperties.getInt(properties, "sim.seed", 42));
+		vms = CredentialsProperties.getInt(properties, "bench.vms", 1000);
+		depth = CredentialsProperties.getInt(properties, "bench.snapshots", 3);
+		threads = Math.max(1, CredentialsProperties.getInt(properties, "snapshots.warmup.threads", 8));
+		timeScale = Double.parseDouble(properties.getProperty("sim.timeScale", "100"));
+		inventoryLatency = LatencyDistribution.from(properties, "sim.inventory", 3000, random);
+		snapshotsLatency = LatencyDistribution.from(properties, "sim.snapshots", 150, random);
+	}
+
+	/**
+	 * the same VMs VCenter would return.
+	 */
+	private List<VirtualMachineWrapper> createInventory() {
+		List<VirtualMachineWrapper> res = new ArrayList<VirtualMachineWrapper>();
+		for (int i = 0; i < vms; i++) {
+			String name = "spine-linux-sim-" + i;
+			VirtualMachineWrapper vm = new VirtualMachineWrapper(new VirtualMachine(null, mor("VirtualMachine", "vm-" + i)), "sim-" + i, name, "[ds"
+					+ (i % 10) + "] " + name + "/" + name + ".vmx");
+			vm.setIp("10.0." + (i / 250) + "." + (i % 250));
+			vm.setHostId("host-" + (i % 5));
+			vm.setSnapshotInfo(createSnapshots(i));
+			res.add(vm);
+		}
+		return res;
+	}
+
+	private VirtualMachineSnapshotInfo createSnapshots(int vm) {
+		VirtualMachineSnapshotTree child = null;
+		for (int d = depth; d >= 1; d--) {
+			VirtualMachineSnapshotTree node = new VirtualMachineSnapshotTree();
+			node.setName(d == depth ? "clean" : "base-" + d);
+			node.setSnapshot(mor("VirtualMachineSnapshot", "snapshot-" + vm + "-" + d));
+			node.setChildSnapshotList(child == null ? new VirtualMachineSnapshotTree[0] : new VirtualMachineSnapshotTree[] { child });
+			child = node;
+		}
+		VirtualMachineSnapshotInfo res = new VirtualMachineSnapshotInfo();
+		res.setRootSnapshotList(child == null ? new VirtualMachineSnapshotTree[0] : new VirtualMachineSnapshotTree[] { child });
+		return res;
+	}
+
+	private static ManagedObjectReference mor(String type, String value) {
+		ManagedObjectReference res = new ManagedObjectReference();
+		res.setType(type);
+		res.set_value(value);
+		return res;
+	}
+
+	private void sleep(LatencyDistribution latency, double factor) throws InterruptedException {
+		Thread.sleep(Math.max(0, Math.round(latency.sample() * factor / timeScale)));
+	}
+
+	/**
+	 * one inventory load, then the snapshots of each VM in parallel, like the
+	 * pool without a cache.
+	 * 
+	 * @return the simulated time, in ms.
+	 */
+	long coldStart() throws Exception {
+		long start = System.currentTimeMillis();
+		sleep(inventoryLatency, vms / 1000.0);
+		final List<VirtualMachineWrapper> inventory = createInventory();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> loads = new ArrayList<Future<?>>();
+			for (final VirtualMachineWrapper vm : inventory) {
+				loads.add(executor.submit(new Runnable() {
+					public void run() {
+						try {
+							sleep(snapshotsLatency, 1);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						vm.getSnapshotIndex();
+					}
+				}));
+			}
+			for (Future<?> load : loads) {
+				load.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return Math.round((System.currentTimeMillis() - start) * timeScale);
+	}
+
+	/**
+	 * reads the cache and rebuilds the VMs and their snapshot trees.
+	 * 
+	 * @return the measured time, in ms.
+	 */
+	long warmStart(File file) {
+		long start = System.currentTimeMillis();
+		InventoryCache cache = new InventoryCache(file);
+		int snapshots = 0;
+		for (List<InventoryCache.Entry> entries : cache.read().values()) {
+			for (InventoryCache.Entry entry : entries) {
+				snapshots += entry.toWrapper(null).getSnapshotIndex().size();
+			}
+		}
+		cache.close();
+		if (snapshots != vms * depth) {
+			throw new IllegalStateException("expected " + vms * depth + " snapshots in the cache, got " + snapshots);
+		}
+		return System.currentTimeMillis() - start;
+	}
+
+	public void run() throws Exception {
+		File file = File.createTempFile("inventory", ".cache");
+		file.delete();
+		try {
+			List<VirtualMachineWrapper> inventory = createInventory();
+			for (VirtualMachineWrapper vm : inventory) {
+				vm.getSnapshotIndex();
+			}
+			InventoryCache cache = new InventoryCache(file);
+			cache.update("default", inventory);
+			cache.close();
+
+			long cold = coldStart();
+			// the first read warms the JVM up.
+			warmStart(file);
+			long warm = warmStart(file);
+			System.out.println(vms + " VMs, " + depth + " snapshots each, cache of " + file.length() / 1024 + "KB.");
+			System.out.println("cold start : " + cold + "ms ( simulated )");
+			System.out.println("warm start : " + warm + "ms");
+		} finally {
+			file.delete();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		new StartupBenchmark(CredentialsProperties.load()).run();
+	}
+}
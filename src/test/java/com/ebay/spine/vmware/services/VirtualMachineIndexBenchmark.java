@@ -0,0 +1,108 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.ebay.spine.vmware.model.VirtualMachineWrapper;
+
+/**
+ * VirtualMachineIndex against the linear scans the pool used to do, for the
+ * lookup of a node by uuid ( every proxy registration ) and the list of the
+ * nodes of a role. Run with main().
+ * 
+ * @author freynaud
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class VirtualMachineIndexBenchmark {
+
+	@Param({ "100", "1000", "10000" })
+	public int vms;
+
+	private List<VirtualMachineWrapper> all;
+	private VirtualMachineIndex index;
+	private String[] ids;
+	private int next = 0;
+
+	@Setup
+	public void setUp() {
+		all = VirtualMachineIndexTest.inventory(vms);
+		index = new VirtualMachineIndex(all);
+		Random random = new Random(1);
+		ids = new String[1024];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = "uuid-" + random.nextInt(vms);
+		}
+	}
+
+	private String nextId() {
+		next = (next + 1) & (ids.length - 1);
+		return ids[next];
+	}
+
+	@Benchmark
+	public VirtualMachineWrapper byIdIndexed() {
+		return index.getById(nextId());
+	}
+
+	@Benchmark
+	public VirtualMachineWrapper byIdScan() {
+		String id = nextId();
+		for (VirtualMachineWrapper vm : all) {
+			if (vm.getId().equals(id)) {
+				return vm;
+			}
+		}
+		return null;
+	}
+
+	@Benchmark
+	public List<VirtualMachineWrapper> nodesIndexed() {
+		return index.getByRole(NodeRole.LINUX);
+	}
+
+	@Benchmark
+	public List<VirtualMachineWrapper> nodesScan() {
+		List<VirtualMachineWrapper> res = new ArrayList<VirtualMachineWrapper>();
+		for (VirtualMachineWrapper vm : all) {
+			if (vm.getName().startsWith(NodeRole.LINUX.getPrefix())) {
+				res.add(vm);
+			}
+		}
+		return res;
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(VirtualMachineIndexBenchmark.class.getSimpleName()).forks(1).build()).run();
+	}
+}
@@ -0,0 +1,88 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.ebay.spine.vmware.model.VirtualMachineWrapper;
+
+public class VirtualMachineIndexTest {
+
+	/**
+	 * 
+	 * @param count
+	 * @return VMs alternating linux nodes, windows nodes and VMs that are not
+	 *         nodes.
+	 */
+	static List<VirtualMachineWrapper> inventory(int count) {
+		List<VirtualMachineWrapper> res = new ArrayList<VirtualMachineWrapper>();
+		for (int i = 0; i < count; i++) {
+			NodeRole role = i % 3 == 0 ? NodeRole.LINUX : i % 3 == 1 ? NodeRole.WINDOWS : null;
+			String name = (role == null ? "template" : role.getPrefix()) + "-" + i;
+			VirtualMachineWrapper vm = new VirtualMachineWrapper(null, "uuid-" + i, name, "[ds] " + name + "/" + name + ".vmx");
+			vm.setRole(role);
+			res.add(vm);
+		}
+		return res;
+	}
+
+	@Test
+	public void lookups() {
+		List<VirtualMachineWrapper> vms = inventory(9);
+		VirtualMachineIndex index = new VirtualMachineIndex(vms);
+		assertEquals(9, index.size());
+		assertSame(vms.get(4), index.getById("uuid-4"));
+		assertSame(vms.get(5), index.getByName(vms.get(5).getName()));
+		assertNull(index.getById("unknown"));
+		assertNull(index.getById(null));
+		assertNull(index.getByName(null));
+		assertEquals(3, index.getByRole(NodeRole.LINUX).size());
+		assertEquals(3, index.getByRole(NodeRole.WINDOWS).size());
+		assertEquals(6, index.getNodes().size());
+		for (VirtualMachineWrapper vm : index.getByRole(NodeRole.LINUX)) {
+			assertEquals(NodeRole.LINUX, vm.getRole());
+		}
+	}
+
+	@Test
+	public void firstVmWithANameWins() {
+		List<VirtualMachineWrapper> vms = inventory(3);
+		VirtualMachineWrapper twin = new VirtualMachineWrapper(null, "uuid-twin", vms.get(0).getName(), "[ds] twin.vmx");
+		vms.add(twin);
+		VirtualMachineIndex index = new VirtualMachineIndex(vms);
+		assertSame(vms.get(0), index.getByName(twin.getName()));
+		assertSame(twin, index.getById("uuid-twin"));
+	}
+
+	@Test
+	public void emptyRoles() {
+		assertTrue(VirtualMachineIndex.EMPTY.getByRole(NodeRole.WINDOWS).isEmpty());
+		assertTrue(VirtualMachineIndex.EMPTY.getNodes().isEmpty());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void viewsAreImmutable() {
+		new VirtualMachineIndex(inventory(3)).getAll().clear();
+	}
+}
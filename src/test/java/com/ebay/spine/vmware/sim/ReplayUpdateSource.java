@@ -0,0 +1,183 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.sim;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import com.ebay.spine.vmware.services.InventoryUpdateSource;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.UpdateSet;
+
+/**
+ * In memory stream of inventory changes. Replays the UpdateSets and errors it
+ * is given, in order, to whoever waits for updates. The versions are
+ * numbered 1, 2 ...
+ * 
+ * @author freynaud
+ * 
+ */
+public class ReplayUpdateSource implements InventoryUpdateSource {
+
+	private static final Object CLOSED = new Object();
+
+	// UpdateSets, Exceptions, or CLOSED.
+	private final LinkedList<Object> updates = new LinkedList<Object>();
+	private final List<String> requested = new ArrayList<String>();
+	private int taken = 0;
+	private int version = 0;
+
+	/**
+	 * queues a batch of changes.
+	 * 
+	 * @param objects
+	 *            see enter(), modify() and leave().
+	 */
+	public synchronized void add(ObjectUpdate... objects) {
+		PropertyFilterUpdate filter = new PropertyFilterUpdate();
+		filter.setObjectSet(objects);
+		UpdateSet set = new UpdateSet();
+		set.setFilterSet(new PropertyFilterUpdate[] { filter });
+		set.setVersion(Integer.toString(++version));
+		updates.add(set);
+		notifyAll();
+	}
+
+	/**
+	 * queues an error, InvalidCollectorVersion for instance.
+	 * 
+	 * @param e
+	 */
+	public synchronized void fail(Exception e) {
+		updates.add(e);
+		notifyAll();
+	}
+
+	public synchronized UpdateSet waitForUpdates(String version) throws Exception {
+		requested.add(version);
+		notifyAll();
+		while (updates.isEmpty()) {
+			wait();
+		}
+		if (updates.getFirst() == CLOSED) {
+			return null;
+		}
+		Object next = updates.removeFirst();
+		taken++;
+		if (next instanceof Exception) {
+			throw (Exception) next;
+		}
+		return (UpdateSet) next;
+	}
+
+	public synchronized void close() {
+		updates.add(CLOSED);
+		notifyAll();
+	}
+
+	/**
+	 * 
+	 * @return the versions asked so far, in order.
+	 */
+	public synchronized List<String> getRequestedVersions() {
+		return new ArrayList<String>(requested);
+	}
+
+	/**
+	 * blocks until everything queued has been taken and applied, ie the
+	 * updates have been asked for again.
+	 * 
+	 * @param timeout
+	 *            ms
+	 * @return false if it timed out.
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean awaitReplayed(long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		while (!updates.isEmpty() || requested.size() <= taken) {
+			long left = end - System.currentTimeMillis();
+			if (left <= 0) {
+				return false;
+			}
+			wait(left);
+		}
+		return true;
+	}
+
+	/**
+	 * 
+	 * @param type
+	 *            VirtualMachine, Folder ...
+	 * @param id
+	 * @param properties
+	 *            the values of the properties, by property path.
+	 * @return a new object.
+	 */
+	public static ObjectUpdate enter(String type, String id, Map<String, Object> properties) {
+		return update(ObjectUpdateKind.enter, type, id, properties);
+	}
+
+	/**
+	 * 
+	 * @param type
+	 * @param id
+	 * @param properties
+	 *            the properties that changed. A null value is a removed
+	 *            property.
+	 * @return a change of an object.
+	 */
+	public static ObjectUpdate modify(String type, String id, Map<String, Object> properties) {
+		return update(ObjectUpdateKind.modify, type, id, properties);
+	}
+
+	/**
+	 * 
+	 * @param type
+	 * @param id
+	 * @return a deleted object.
+	 */
+	public static ObjectUpdate leave(String type, String id) {
+		return update(ObjectUpdateKind.leave, type, id, null);
+	}
+
+	private static ObjectUpdate update(ObjectUpdateKind kind, String type, String id, Map<String, Object> properties) {
+		ManagedObjectReference mor = new ManagedObjectReference();
+		mor.setType(type);
+		mor.set_value(id);
+		ObjectUpdate res = new ObjectUpdate();
+		res.setKind(kind);
+		res.setObj(mor);
+		if (properties != null) {
+			List<PropertyChange> changes = new ArrayList<PropertyChange>();
+			for (Map.Entry<String, Object> e : properties.entrySet()) {
+				PropertyChange change = new PropertyChange();
+				change.setName(e.getKey());
+				change.setVal(e.getValue());
+				change.setOp(e.getValue() == null ? PropertyChangeOp.remove : PropertyChangeOp.assign);
+				changes.add(change);
+			}
+			res.setChangeSet(changes.toArray(new PropertyChange[changes.size()]));
+		}
+		return res;
+	}
+}
@@ -0,0 +1,225 @@
+/*
+Copyright eBay Inc., Spine authors, and other contributors.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.ebay.spine.vmware.sim;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openqa.grid.common.RegistrationRequest;
+import org.openqa.grid.internal.Registry;
+import org.openqa.grid.internal.TestSession;
+
+import com.ebay.spine.vmware.CapabilityIndex;
+import com.ebay.spine.vmware.RecycleCoordinator;
+import com.ebay.spine.vmware.VirtualMachineRemoteProxy;
+import com.ebay.spine.vmware.model.VirtualMachineWrapper;
+import com.ebay.spine.vmware.services.CredentialsProperties;
+import com.ebay.spine.vmware.services.Hypervisor;
+import com.ebay.spine.vmware.services.Metrics;
+
+/**
+ * Runs a lot of simulated sessions through VirtualMachineRemoteProxy nodes
+ * backed by the SimulatedBackend, to measure the revert throughput offline.
+ * One single shot run in a fresh JVM, as the grid services are singletons.
+ * Run with main(), from a folder with a credentials.properties containing the
+ * sim.* keys ( see SimulatedBackend ) and :
+ * 
+ * load.sessions : number of sessions to run, default 10000.
+ * 
+ * load.clients : number of sessions requested at the same time, default 50.
+ * 
+ * load.test.latency / load.test.sigma : duration of a test, default 60000ms.
+ * 
+ * load.maxTestBeforeClean, load.cleanupEvery : the restore strategy of the
+ * nodes, default 10 and none.
+ * 
+ * Logs the throughput and all the metrics at the end.
+ * 
+ * @author freynaud
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(1)
+public class RevertThroughputBenchmark {
+
+	private static final Logger log = Logger.getLogger(RevertThroughputBenchmark.class);
+
+	public static final String SESSION_WAIT = "load.sessionWait";
+
+	private final List<VirtualMachineRemoteProxy> proxies = new ArrayList<VirtualMachineRemoteProxy>();
+	private final Map<String, Object> capability = new HashMap<String, Object>();
+	private final AtomicInteger completed = new AtomicInteger();
+	private final Random random = new Random(7);
+	private Properties properties;
+	private SimulatedBackend backend;
+	private LatencyDistribution testDuration;
+	private double timeScale;
+	private AtomicInteger remaining;
+	private Registry registry;
+	private long start;
+
+	@Setup
+	public void setUp() {
+		properties = CredentialsProperties.load();
+		backend = new SimulatedBackend(properties);
+		testDuration = LatencyDistribution.from(properties, "load.test", 60000, random);
+		timeScale = Double.parseDouble(properties.getProperty("sim.timeScale", "100"));
+		remaining = new AtomicInteger(CredentialsProperties.getInt(properties, "load.sessions", 10000));
+		capability.put("browserName", "firefox");
+		register();
+	}
+
+	/**
+	 * registers a proxy for each simulated VM that isn't a spare.
+	 */
+	private void register() {
+		Hypervisor.setBackend(backend);
+		registry = Registry.newInstance();
+		for (VirtualMachineWrapper vm : backend.getAllNodeVMs()) {
+			if (vm.isSpare()) {
+				continue;
+			}
+			RegistrationRequest request = new RegistrationRequest();
+			Map<String, Object> slot = new HashMap<String, Object>(capability);
+			slot.put("maxInstances", 1);
+			List<Map<String, Object>> capabilities = new ArrayList<Map<String, Object>>();
+			capabilities.add(slot);
+			request.setCapabilities(capabilities);
+			Map<String, Object> config = new HashMap<String, Object>();
+			config.put("vm", vm.getId());
+			config.put("remoteHost", "http://" + vm.getName() + ":5555");
+			config.put("maxTestBeforeClean", CredentialsProperties.getInt(properties, "load.maxTestBeforeClean", 10));
+			config.put("cleanSnapshot", properties.getProperty("sim.snapshot", "clean"));
+			int cleanupEvery = CredentialsProperties.getInt(properties, "load.cleanupEvery", -1);
+			if (cleanupEvery > 0) {
+				config.put("cleanupEvery", cleanupEvery);
+				config.put("cleanupScript", "cleanup");
+			}
+			request.setConfiguration(config);
+			VirtualMachineRemoteProxy proxy = new VirtualMachineRemoteProxy(request, registry);
+			registry.add(proxy);
+			proxies.add(proxy);
+		}
+		log.info(proxies.size() + " simulated nodes registered.");
+	}
+
+	/**
+	 * a client running sessions one after the other until there is none left.
+	 */
+	private class Client implements Runnable {
+		public void run() {
+			try {
+				while (remaining.getAndDecrement() > 0) {
+					long queued = System.currentTimeMillis();
+					TestSession session = getNewSession();
+					Metrics.getInstance().record(SESSION_WAIT, queued);
+					Thread.sleep(Math.round(testDuration.sample() / timeScale));
+					session.getSlot().forceRelease();
+					completed.incrementAndGet();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * asks the nodes that have the capability in turn, from a random one,
+		 * like a queue that never gives up.
+		 */
+		private TestSession getNewSession() throws InterruptedException {
+			List<VirtualMachineRemoteProxy> candidates = new ArrayList<VirtualMachineRemoteProxy>(CapabilityIndex.getInstance().getProxies(capability, registry.getCapabilityMatcher()));
+			int n = candidates.size();
+			if (n == 0) {
+				throw new IllegalStateException("no node for " + capability);
+			}
+			while (true) {
+				int first;
+				synchronized (random) {
+					first = random.nextInt(n);
+				}
+				for (int i = 0; i < n; i++) {
+					TestSession session = candidates.get((first + i) % n).getNewSession(capability);
+					if (session != null) {
+						return session;
+					}
+				}
+				Thread.sleep(10);
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @return the number of sessions run.
+	 */
+	@Benchmark
+	public int run() throws Exception {
+		int clients = Math.max(1, CredentialsProperties.getInt(properties, "load.clients", 50));
+		start = System.currentTimeMillis();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < clients; i++) {
+			Thread t = new Thread(new Client(), "load-client-" + i);
+			t.start();
+			threads.add(t);
+		}
+		for (Thread t : threads) {
+			while (t.isAlive()) {
+				t.join(10000);
+				RecycleCoordinator coordinator = RecycleCoordinator.getInstance();
+				log.info(completed.get() + " sessions done. " + coordinator.getActive() + " nodes reverting, " + coordinator.getWaiting()
+						+ " waiting.");
+			}
+		}
+		return completed.get();
+	}
+
+	@TearDown
+	public void report() throws Exception {
+		long elapsed = Math.max(1, System.currentTimeMillis() - start);
+		double simulated = elapsed * timeScale / 1000;
+		log.info(completed.get() + " sessions in " + elapsed + "ms ( " + Math.round(simulated) + "s simulated ), "
+				+ Math.round(completed.get() * 3600 / simulated) + " sessions per simulated hour.");
+		log.info(Metrics.getInstance().toJSON().toString(2));
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(RevertThroughputBenchmark.class.getSimpleName()).build()).run();
+	}
+}